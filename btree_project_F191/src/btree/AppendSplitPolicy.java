@@ -0,0 +1,40 @@
+package btree;
+
+/**
+ * A split policy for indexes that are mostly loaded in ascending key order.
+ * When a key is appended to the right-most page of a level, that page keeps
+ * the given fraction of its entries instead of half of them, so pages filled
+ * by appends stay (nearly) full instead of half empty. With the default
+ * fraction of 1 the full page is left as it is and the new key starts a new,
+ * empty page. Any other split is a half split.
+ */
+public class AppendSplitPolicy implements SplitPolicy {
+
+	private float leftFraction;
+
+	/**
+	 * Keep all entries on the page and start a new page for appended keys.
+	 */
+	public AppendSplitPolicy() {
+		this(1.0f);
+	}
+
+	/**
+	 * @param leftFraction
+	 *            the fraction of the entries that stay on a right-most page
+	 *            when a key is appended to it, in (0, 1] (for example 0.9 for
+	 *            a 90/10 split). Input parameter.
+	 */
+	public AppendSplitPolicy(float leftFraction) {
+		if (!(leftFraction > 0.0f && leftFraction <= 1.0f))
+			throw new IllegalArgumentException("left fraction out of range: "
+					+ leftFraction);
+		this.leftFraction = leftFraction;
+	}
+
+	public int splitPoint(int entryCount, int insertPosition, boolean rightmost) {
+		if (rightmost && insertPosition == entryCount)
+			return Math.max(1, Math.round(entryCount * leftFraction));
+		return entryCount / 2;
+	}
+}
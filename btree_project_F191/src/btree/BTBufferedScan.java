@@ -0,0 +1,159 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTBufferedScan is the BTFileScan that BTreeFile.new_scan returns for a
+ * buffered index, and BTMemTable.new_scan for a memtable. It merges their
+ * messages (see BTMessages) into the entries a scan of the leaves returns,
+ * one key at a time, so it returns what the index holds once they are
+ * applied.
+ *
+ * The scan holds the flush lock of the messages shared until it is done
+ * or destroyed; a thread with such a scan open may change the index, but
+ * its changes are not flushed meanwhile.
+ */
+public class BTBufferedScan extends BTFileScan {
+
+	private final BTFileScan leaves;
+	private final BTMessages messages;
+	// the memtable the scan reads, null for a buffered index
+	private final BTMemTable table;
+	private final KeyClass lowKey;
+	private final KeyClass highKey;
+	private boolean reading = true;
+
+	private boolean started;
+	// the next entry of the leaves, not returned yet
+	private KeyDataEntry next;
+	// the key returned last, and the entries of it left to return
+	private KeyClass lastKey;
+	private final ArrayDeque<KeyDataEntry> entries = new ArrayDeque<KeyDataEntry>();
+	private KeyDataEntry current;
+
+	/**
+	 * Merge messages into a scan of the leaves. The flush lock is held by
+	 * the thread already, and is given up with the scan.
+	 */
+	BTBufferedScan(BTreeFile bfile, BTMessages messages, BTMemTable table,
+			BTFileScan leaves, KeyClass lowKey, KeyClass highKey) {
+		this.bfile = bfile;
+		this.messages = messages;
+		this.table = table;
+		this.leaves = leaves;
+		this.lowKey = lowKey;
+		this.highKey = highKey;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (entries.isEmpty() && reading)
+				nextKey();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+		current = entries.poll();
+		return current;
+	}
+
+	/*
+	 * Collect the entries of the next key of the leaves or of the messages.
+	 */
+	private void nextKey() throws ScanIteratorException, KeyNotMatchException,
+			IOException, InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (!started) {
+			next = leaves.get_next();
+			started = true;
+		}
+		KeyClass key = messages.nextKey(lastKey, lowKey, highKey);
+		if (next != null && (key == null || BT.keyCompare(next.key, key) < 0))
+			key = next.key;
+		if (key == null) {
+			DestroyBTreeFileScan();
+			return;
+		}
+		List<RID> rids = new ArrayList<RID>();
+		while (next != null && BT.keyCompare(next.key, key) == 0) {
+			rids.add(((LeafData) next.data).getData());
+			next = leaves.get_next();
+		}
+		messages.apply(key, rids, 0);
+		for (RID rid : rids)
+			entries.add(new KeyDataEntry(key, rid));
+		lastKey = key;
+	}
+
+	/**
+	 * Delete the entry returned last. The delete is a message, like any
+	 * other.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null)
+			throw new ScanDeleteException(null, "no current entry");
+		try {
+			RID rid = ((LeafData) current.data).getData();
+			if (table != null)
+				table.Delete(current.key, rid);
+			else
+				bfile.Delete(current.key, rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "");
+		}
+		current = null;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return leaves.keysize();
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (!reading)
+			return;
+		reading = false;
+		next = null;
+		try {
+			leaves.DestroyBTreeFileScan();
+		} finally {
+			messages.endRead();
+		}
+	}
+}
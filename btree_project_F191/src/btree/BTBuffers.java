@@ -0,0 +1,123 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTBuffers makes the calls of an index to the buffer manager of
+ * SystemDefs. A BufMgr is not safe for several threads: every call to it is
+ * made with its lock held, and no latch is waited for while holding it. A
+ * ConcurrentBufMgr is called without a lock, except for the calls that
+ * reach the disk manager (see diskLock).
+ */
+class BTBuffers {
+
+	/**
+	 * The lock for calls that may reach the disk manager, e.g. constructors
+	 * of pages that allocate a page, or calls for file entries.
+	 *
+	 * @return the object to synchronize on
+	 */
+	static Object diskLock() {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		return bm instanceof ConcurrentBufMgr ? SystemDefs.JavabaseDB : bm;
+	}
+
+	/**
+	 * Pin a page, which is read from disk unless it is in the pool.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 * @param page
+	 *            the pinned page. Output parameter.
+	 */
+	static void pinPage(PageId pageno, Page page) throws ReplacerException,
+			HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			BufMgrException, IOException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			bm.pinPage(pageno, page, false);
+		else
+			synchronized (bm) {
+				bm.pinPage(pageno, page, false);
+			}
+	}
+
+	/**
+	 * Unpin a page.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 * @param dirty
+	 *            true if the page was changed. Input parameter.
+	 */
+	static void unpinPage(PageId pageno, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			bm.unpinPage(pageno, dirty);
+		else
+			synchronized (bm) {
+				bm.unpinPage(pageno, dirty);
+			}
+	}
+
+	/**
+	 * Free a page the caller does not hold pinned.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 */
+	static void freePage(PageId pageno) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			bm.freePage(pageno);
+		else
+			synchronized (bm) {
+				bm.freePage(pageno);
+			}
+	}
+
+	/**
+	 * Copy a page that the caller has not latched. A BufMgr frees a page
+	 * with a single pin even if the pin is not the caller's, so the page is
+	 * only pinned while its lock is held; a ConcurrentBufMgr frees a page
+	 * only once its last pin is given up.
+	 *
+	 * @param pageno
+	 *            the page id. Input parameter.
+	 * @param page
+	 *            a page object to pin it with. Input parameter.
+	 * @param copy
+	 *            the bytes of the page. Output parameter.
+	 */
+	static void copyPage(PageId pageno, Page page, byte[] copy)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, HashEntryNotFoundException,
+			IOException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr) {
+			bm.pinPage(pageno, page, false);
+			System.arraycopy(page.getpage(), 0, copy, 0, copy.length);
+			bm.unpinPage(pageno, false);
+		} else
+			synchronized (bm) {
+				bm.pinPage(pageno, page, false);
+				System.arraycopy(page.getpage(), 0, copy, 0, copy.length);
+				bm.unpinPage(pageno, false);
+			}
+	}
+}
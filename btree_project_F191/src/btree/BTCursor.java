@@ -0,0 +1,213 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTCursor is a range scan that does not return entries. next() moves to
+ * the next entry of the range; its key and rid are then read with
+ * getIntKey() or getStringKey() and getRid(), straight from the pinned leaf
+ * (see BTIntPage). Where the range ends is found once per leaf, with a
+ * binary search, so moving the cursor allocates nothing per entry; only
+ * getStringKey() makes the string it returns. The current leaf stays pinned
+ * and latched shared (see BTLatches) until the cursor runs past its range
+ * or is closed, so the cursor has to be used by the thread that opened it.
+ * On posting leaves (see LeafFormat.POSTING) the rids of a record are read
+ * when the cursor moves to it, and next() steps through them before it
+ * moves to the next record. BTreeFile.new_cursor() opens a cursor on any
+ * index, BTreeFile.new_scan(int, int) on one with integer keys.
+ */
+public class BTCursor implements GlobalConst {
+
+	private final Page page = new Page();
+	private final PageId pageId = new PageId(INVALID_PAGE);
+	private final int keyType;
+	private final boolean prefixLeaves;
+	private final boolean postingLeaves;
+	private final KeyClass hiKey;
+
+	// the bytes of the pinned leaf, null when the cursor is done
+	private byte[] data;
+	private int slot;
+	// the slots of the leaf before `end' are in the range; if `last' is
+	// set, the range ends in this leaf
+	private int end;
+	private boolean last;
+	// the prefix of the leaf, if the leaves are prefix compressed
+	private String prefix;
+	// the rids of the current record and the position of the current one,
+	// if the leaves are posting leaves
+	private final BTPostingLeaf.Rids rids = new BTPostingLeaf.Rids();
+	private int ridIndex;
+
+	BTCursor(int keyType, boolean prefixLeaves, boolean postingLeaves,
+			KeyClass hiKey) {
+		this.keyType = keyType;
+		this.prefixLeaves = prefixLeaves;
+		this.postingLeaves = postingLeaves;
+		this.hiKey = hiKey;
+	}
+
+	/*
+	 * Start the cursor in front of `slot' of a leaf, which stays pinned and
+	 * latched for the cursor.
+	 */
+	void open(BTLeafPage leaf, int slot) throws IOException,
+			KeyNotMatchException, ConstructPageException {
+		pageId.pid = leaf.getCurPage().pid;
+		enter(leaf);
+		this.slot = slot - 1;
+	}
+
+	/*
+	 * Start the cursor in front of `slot' of the leaf `leafId', which the
+	 * caller has latched for the cursor.
+	 */
+	void open(int leafId, int slot) throws IOException, ReplacerException,
+			HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException,
+			KeyNotMatchException, ConstructPageException {
+		pageId.pid = leafId;
+		BTBuffers.pinPage(pageId, page);
+		enter(page);
+		this.slot = slot - 1;
+	}
+
+	/*
+	 * Make the pinned leaf the current one and find where the range ends in
+	 * it.
+	 */
+	private void enter(Page leaf) throws IOException, KeyNotMatchException,
+			ConstructPageException {
+		data = leaf.getpage();
+		int count = BTIntPage.slotCount(data);
+		if (prefixLeaves)
+			prefix = BTPrefixLeaf.prefix(new BTSortedPage(leaf, keyType));
+		if (hiKey == null)
+			end = count;
+		else if (keyType == AttrType.attrInteger)
+			end = BTIntPage.upperBound(data, ((IntegerKey) hiKey).getKey()
+					.intValue());
+		else if (prefixLeaves)
+			end = BTPrefixLeaf.upperBound(new BTSortedPage(leaf, keyType),
+					hiKey);
+		else
+			end = BTPageOps.upperBound(new BTSortedPage(leaf, keyType), hiKey);
+		last = end < count;
+	}
+
+	/**
+	 * Move to the next entry of the range.
+	 *
+	 * @return false if the cursor is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public boolean next() throws ScanIteratorException {
+		if (data == null)
+			return false;
+
+		try {
+			if (ridIndex + 1 < rids.size()) {
+				ridIndex++;
+				return true;
+			}
+			slot++;
+			while (slot >= end && !last) {
+				// empty page or end of page: have to go right
+				int next = BTIntPage.nextPage(data);
+				if (next != INVALID_PAGE)
+					BTLatches.shared(next);
+				release();
+				if (next == INVALID_PAGE)
+					return false;
+				pageId.pid = next;
+				BTBuffers.pinPage(pageId, page);
+				enter(page);
+				slot = 0;
+			}
+			if (slot >= end) {
+				// went past right end of scan
+				release();
+				return false;
+			}
+			if (postingLeaves) {
+				rids.clear();
+				BTPostingLeaf.read(data, slot, keyType, rids);
+				ridIndex = 0;
+			}
+			return true;
+		} catch (Exception e) {
+			throw new ScanIteratorException(e, "cursor failed");
+		}
+	}
+
+	/**
+	 * Access method to the key of the current entry of an index with
+	 * integer keys.
+	 *
+	 * @return the key of the entry next() moved to
+	 */
+	public int getIntKey() {
+		return BTIntPage.keyAt(data, slot);
+	}
+
+	/**
+	 * Access method to the key of the current entry of an index with string
+	 * keys.
+	 *
+	 * @return the whole key of the entry next() moved to
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public String getStringKey() throws IOException {
+		String key = Convert.getStrValue(BTIntPage.slotOffset(data, slot),
+				data, BTIntPage.slotLength(data, slot) - 8);
+		return prefixLeaves ? prefix + key : key;
+	}
+
+	/**
+	 * Copy the rid of the current entry.
+	 *
+	 * @param rid
+	 *            the rid of the entry next() moved to. Output parameter.
+	 */
+	public void getRid(RID rid) {
+		if (postingLeaves)
+			rids.get(ridIndex, rid);
+		else
+			BTIntPage.ridAt(data, slot, rid);
+	}
+
+	/**
+	 * Stop the cursor and unpin its leaf.
+	 *
+	 * @exception ReplacerException
+	 *                error from the buffer manager
+	 * @exception PageUnpinnedException
+	 *                error from the buffer manager
+	 * @exception HashEntryNotFoundException
+	 *                error from the buffer manager
+	 * @exception InvalidFrameNumberException
+	 *                error from the buffer manager
+	 */
+	public void close() throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		if (data != null)
+			release();
+	}
+
+	/*
+	 * Unpin the current leaf and give up its latch.
+	 */
+	private void release() throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		BTBuffers.unpinPage(pageId, false);
+		BTLatches.release(pageId.pid);
+		data = null;
+	}
+}
@@ -0,0 +1,232 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTIntPage reads and writes the pages of an index with integer keys
+ * directly as bytes. Unlike BTPageOps it needs no page objects and no keys:
+ * it works on the byte array of a pinned page, decodes the big-endian
+ * fields of the page header, the slot directory and the records itself, and
+ * so allocates nothing. An integer leaf record is the key, the slot number
+ * and the page id of the rid; an index record is the key and the page id of
+ * the child, with the count of a counted index between them. The readers of the page header, the slot directory and the
+ * rids do not depend on the key type.
+ */
+class BTIntPage implements GlobalConst {
+
+	// bytes of an integer leaf record: key, slot number and page id
+	final static int LEAF_RECORD = 12;
+
+	/**
+	 * Compare two keys like BT.keyCompare does for integer keys.
+	 *
+	 * @param key1
+	 *            the first key. Input parameter.
+	 * @param key2
+	 *            the second key. Input parameter.
+	 * @return less than, equal to or greater than 0 as `key1' is less than,
+	 *         equal to or greater than `key2'
+	 */
+	static int compare(int key1, int key2) {
+		return key1 - key2;
+	}
+
+	/**
+	 * @param data
+	 *            a page. Input parameter.
+	 * @return the node type of the page, NodeType.INDEX or NodeType.LEAF
+	 */
+	static short type(byte[] data) {
+		return (short) getShort(data, HFPage.TYPE);
+	}
+
+	/**
+	 * @param data
+	 *            a page. Input parameter.
+	 * @return the number of slots of the page
+	 */
+	static int slotCount(byte[] data) {
+		return getShort(data, HFPage.SLOT_CNT);
+	}
+
+	/**
+	 * @param data
+	 *            a leaf page. Input parameter.
+	 * @return the page id of the next leaf, or INVALID_PAGE
+	 */
+	static int nextPage(byte[] data) {
+		return getInt(data, HFPage.NEXT_PAGE);
+	}
+
+	/**
+	 * The key in a slot.
+	 *
+	 * @param data
+	 *            an index or leaf page. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @return the key
+	 */
+	static int keyAt(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot));
+	}
+
+	/**
+	 * Copy the rid in a slot of a leaf into `rid'. The rid ends the record,
+	 * so this works for leaves of any key type.
+	 *
+	 * @param data
+	 *            the leaf page. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @param rid
+	 *            the rid. Output parameter.
+	 */
+	static void ridAt(byte[] data, int slot, RID rid) {
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		rid.slotNo = getInt(data, end - 8);
+		rid.pageNo.pid = getInt(data, end - 4);
+	}
+
+	/**
+	 * The child page an index entry points to.
+	 *
+	 * @param data
+	 *            the index page. Input parameter.
+	 * @param slot
+	 *            the slot of the entry, -1 for the left link. Input parameter.
+	 * @return the page id of the child
+	 */
+	static int childAt(byte[] data, int slot) {
+		if (slot < 0)
+			return getInt(data, HFPage.PREV_PAGE);
+		// the page id ends the record, behind the count of a counted index
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is not less than `key'.
+	 *
+	 * @param data
+	 *            the index or leaf page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot, or the number of slots if all keys are less than `key'
+	 */
+	static int lowerBound(byte[] data, int key) {
+		return search(data, key, false);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than `key'.
+	 *
+	 * @param data
+	 *            the index or leaf page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot, or the number of slots if no key is greater than
+	 *         `key'
+	 */
+	static int upperBound(byte[] data, int key) {
+		return search(data, key, true);
+	}
+
+	private static int search(byte[] data, int key, boolean after) {
+		int low = 0;
+		int high = slotCount(data);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int result = compare(keyAt(data, mid), key);
+			if (result < 0 || (after && result == 0))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Insert <key, rid> into a leaf behind the entries with an equal key, as
+	 * BTSortedPage.insertRecord and BTPageOps.insertRecordAt would.
+	 *
+	 * @param data
+	 *            the leaf page. Input and output parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @return false if the leaf has no room for the entry
+	 */
+	static boolean insert(byte[] data, int key, RID rid) {
+		int freeSpace = getShort(data, HFPage.FREE_SPACE);
+		if (freeSpace - HFPage.SIZE_OF_SLOT < LEAF_RECORD)
+			return false;
+
+		int count = slotCount(data);
+		int slot = upperBound(data, key);
+		int usedPtr = getShort(data, HFPage.USED_PTR) - LEAF_RECORD;
+		setInt(data, usedPtr, key);
+		setInt(data, usedPtr + 4, rid.slotNo);
+		setInt(data, usedPtr + 8, rid.pageNo.pid);
+
+		int slotStart = HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+		System.arraycopy(data, slotStart, data, slotStart
+				+ HFPage.SIZE_OF_SLOT, (count - slot) * HFPage.SIZE_OF_SLOT);
+		setShort(data, slotStart, LEAF_RECORD);
+		setShort(data, slotStart + 2, usedPtr);
+
+		setShort(data, HFPage.SLOT_CNT, count + 1);
+		setShort(data, HFPage.USED_PTR, usedPtr);
+		setShort(data, HFPage.FREE_SPACE, freeSpace - LEAF_RECORD
+				- HFPage.SIZE_OF_SLOT);
+		return true;
+	}
+
+	/**
+	 * @param data
+	 *            a page. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @return the offset of the record in the slot
+	 */
+	static int slotOffset(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	/**
+	 * @param data
+	 *            a page. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @return the length of the record in the slot
+	 */
+	static int slotLength(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	/*
+	 * The fields are written by Convert, that is, big-endian. BTPostingLeaf
+	 * reads and writes its rid lists with these, too.
+	 */
+	static int getShort(byte[] data, int offset) {
+		return (short) ((data[offset] << 8) | (data[offset + 1] & 0xff));
+	}
+
+	static int getInt(byte[] data, int offset) {
+		return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	static void setShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	static void setInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >> 24);
+		data[offset + 1] = (byte) (value >> 16);
+		data[offset + 2] = (byte) (value >> 8);
+		data[offset + 3] = (byte) value;
+	}
+}
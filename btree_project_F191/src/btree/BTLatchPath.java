@@ -0,0 +1,84 @@
+package btree;
+
+/**
+ * BTLatchPath holds the exclusive latches (see BTLatches) of one change of
+ * an index, in the order they were taken: the header page, then the pages
+ * on the way down that a split or a merge may still reach. Once a page is
+ * safe, its ancestors are given up.
+ */
+class BTLatchPath {
+
+	private int[] pids = new int[8];
+	private int size;
+
+	/**
+	 * Latch a page exclusive, unless the path holds it already.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	void exclusive(int pid) {
+		if (holds(pid))
+			return;
+		BTLatches.exclusive(pid);
+		if (size == pids.length) {
+			int[] grown = new int[size * 2];
+			System.arraycopy(pids, 0, grown, 0, size);
+			pids = grown;
+		}
+		pids[size++] = pid;
+	}
+
+	/**
+	 * Does the path hold the latch of a page?
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @return true if the page is latched by the path
+	 */
+	boolean holds(int pid) {
+		for (int i = 0; i < size; i++)
+			if (pids[i] == pid)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Give up the latch of one page.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	void release(int pid) {
+		for (int i = 0; i < size; i++)
+			if (pids[i] == pid) {
+				BTLatches.release(pid);
+				System.arraycopy(pids, i + 1, pids, i, size - i - 1);
+				size--;
+				return;
+			}
+	}
+
+	/**
+	 * Give up the latches taken before the one of a page: the page is safe,
+	 * so no change below it reaches its ancestors, which are left unchanged.
+	 *
+	 * @param pid
+	 *            the page id of the safe page. Input parameter.
+	 */
+	void releaseAbove(int pid) {
+		int i = 0;
+		while (i < size && pids[i] != pid)
+			BTLatches.releaseUnchanged(pids[i++]);
+		System.arraycopy(pids, i, pids, 0, size - i);
+		size -= i;
+	}
+
+	/**
+	 * Give up all latches of the path.
+	 */
+	void releaseAll() {
+		while (size > 0)
+			BTLatches.release(pids[--size]);
+	}
+}
@@ -0,0 +1,269 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * BTLatches keeps a reader/writer latch for every page of the database, so
+ * that several threads can work on one index. Searches latch the pages on
+ * their way down shared and give up a parent once its child is latched;
+ * writers latch the pages they may change exclusive and keep the latches of
+ * ancestors only while a split or a merge could still reach them. The latch
+ * of the header page guards the root id.
+ *
+ * A thread that holds latches on two leaves took them from left to right:
+ * scans move right with the next leaf latched before the current one is
+ * given up, and a scan that moves left gives up its leaf first. Latches are
+ * held while waiting for the buffer manager, but never taken while holding
+ * its lock.
+ *
+ * A latch belongs to the thread that took it, so a scan has to be used by
+ * the thread that opened it.
+ *
+ * Every page also has a version, which changes whenever the page is latched
+ * exclusive. A reader may read a page without latching it: it takes a stamp
+ * of the version first, copies what it needs and then validates the stamp.
+ * A count of the changes of a page only moves when an exclusive latch is
+ * given up on a page that may have been changed, so that what was decoded
+ * from a page stays valid while writers only pass it (see BTNodeCache).
+ * The insert or delete of the thread is logged then, too (see BTLog).
+ *
+ * The latch of a page that is freed, by a merge or by destroying its file,
+ * is dropped once no thread holds or waits for it. A thread may still have
+ * a stamp or a count of changes of the page, so the latch is kept in a
+ * bounded table of freed pages first, and is used again if the page is
+ * latched or allocated again while it is there. Counts of changes start
+ * from a different base for every latch that is made, so a count taken
+ * from a dropped latch never matches a new one.
+ */
+class BTLatches {
+
+	/*
+	 * The latch of a page. A page freed by a merge is marked, for the
+	 * threads that got its id from a link before. The version is write
+	 * locked while the page is latched exclusive; it is only ever read
+	 * optimistically. `changed' is set by a holder of the exclusive latch
+	 * that may have changed the page, until the latch is given up.
+	 */
+	@SuppressWarnings("serial")
+	private static class PageLatch extends ReentrantReadWriteLock {
+		volatile boolean freed;
+		final StampedLock version = new StampedLock();
+		long writeStamp;
+		volatile long changes = bases.incrementAndGet() << 32;
+		boolean changed;
+	}
+
+	// freed pages whose latches are kept for the threads that may still
+	// have a stamp of them
+	final static int MAX_FREED = 4096;
+
+	private final static AtomicLong bases = new AtomicLong();
+
+	private final static ConcurrentHashMap<Integer, PageLatch> latches = new ConcurrentHashMap<Integer, PageLatch>();
+
+	// guarded by itself, as is moving a latch between the two maps
+	@SuppressWarnings("serial")
+	private final static LinkedHashMap<Integer, PageLatch> freedLatches = new LinkedHashMap<Integer, PageLatch>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, PageLatch> eldest) {
+			return size() > MAX_FREED;
+		}
+	};
+
+	/*
+	 * The latch of a page, to be taken or changed; the latch of a freed page
+	 * is taken back from the freed ones.
+	 */
+	private static PageLatch latch(int pid) {
+		PageLatch latch = latches.get(pid);
+		if (latch != null)
+			return latch;
+		synchronized (freedLatches) {
+			latch = latches.get(pid);
+			if (latch == null) {
+				latch = freedLatches.remove(pid);
+				if (latch == null)
+					latch = new PageLatch();
+				latches.put(pid, latch);
+			}
+			return latch;
+		}
+	}
+
+	/*
+	 * The latch of a page, to be read only; the latch of a freed page stays
+	 * with the freed ones.
+	 */
+	private static PageLatch peek(int pid) {
+		PageLatch latch = latches.get(pid);
+		if (latch != null)
+			return latch;
+		synchronized (freedLatches) {
+			latch = latches.get(pid);
+			if (latch == null)
+				latch = freedLatches.get(pid);
+			if (latch == null) {
+				latch = new PageLatch();
+				latches.put(pid, latch);
+			}
+			return latch;
+		}
+	}
+
+	/*
+	 * Move the latch of a freed page to the freed ones, unless a thread
+	 * holds it or waits for it.
+	 */
+	private static void retire(int pid, PageLatch latch) {
+		synchronized (freedLatches) {
+			if (latch.freed && !latch.isWriteLocked()
+					&& latch.getReadLockCount() == 0
+					&& !latch.hasQueuedThreads() && latches.remove(pid, latch))
+				freedLatches.put(pid, latch);
+		}
+	}
+
+	/**
+	 * Latch a page for reading.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	static void shared(int pid) {
+		latch(pid).readLock().lock();
+	}
+
+	/**
+	 * Latch a page for writing. A thread cannot change a page it holds
+	 * shared, as it would wait for itself.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	static void exclusive(int pid) {
+		PageLatch latch = latch(pid);
+		if (latch.getReadHoldCount() > 0)
+			throw new IllegalStateException("page " + pid
+					+ " is latched shared by this thread, e.g. by an open scan");
+		latch.writeLock().lock();
+		if (latch.getWriteHoldCount() == 1)
+			latch.writeStamp = latch.version.writeLock();
+	}
+
+	/**
+	 * Give up the latch of a page, in the mode it was taken. A thread that
+	 * holds a page exclusive may latch it shared on top, as a search does
+	 * with the header page; it gives up the shared latch first.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	static void release(int pid) {
+		release(pid, true);
+	}
+
+	/**
+	 * Give up the latch of a page, which was not changed if it was held
+	 * exclusive, e.g. by a writer that went on to a safe child.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	static void releaseUnchanged(int pid) {
+		release(pid, false);
+	}
+
+	private static void release(int pid, boolean changed) {
+		PageLatch latch = latch(pid);
+		if (latch.getReadHoldCount() > 0)
+			latch.readLock().unlock();
+		else {
+			if (changed)
+				latch.changed = true;
+			if (latch.getWriteHoldCount() == 1) {
+				if (latch.changed) {
+					latch.changes++;
+					latch.changed = false;
+					// the change is logged before another thread can see it
+					BTLog.changing();
+				}
+				latch.version.unlockWrite(latch.writeStamp);
+			}
+			latch.writeLock().unlock();
+		}
+		if (latch.freed)
+			retire(pid, latch);
+	}
+
+	/**
+	 * A stamp of the version of a page, for a read that takes no latch.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @return the stamp, 0 while the page is latched exclusive
+	 */
+	static long optimistic(int pid) {
+		return peek(pid).version.tryOptimisticRead();
+	}
+
+	/**
+	 * Was the page left unchanged since a stamp was taken? What was read of
+	 * it in between is consistent then.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @param stamp
+	 *            the stamp from optimistic. Input parameter.
+	 * @return true if the page was not latched exclusive since
+	 */
+	static boolean validate(int pid, long stamp) {
+		return stamp != 0 && peek(pid).version.validate(stamp);
+	}
+
+	/**
+	 * The number of times the page was changed. A copy of a page taken while
+	 * the count was read is still valid as long as the count is the same and
+	 * the page is not latched exclusive.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @return the count of changes
+	 */
+	static long changes(int pid) {
+		return peek(pid).changes;
+	}
+
+	/**
+	 * Mark a page as freed, or as in use again, which both count as
+	 * changes of the page. The caller holds it exclusive, or has just
+	 * allocated or is about to free it. The latch of a freed page is dropped
+	 * once it is not held.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @param freed
+	 *            whether the page was freed. Input parameter.
+	 */
+	static void setFreed(int pid, boolean freed) {
+		PageLatch latch = latch(pid);
+		latch.freed = freed;
+		latch.changes++;
+		if (freed)
+			retire(pid, latch);
+	}
+
+	/**
+	 * Was the page freed since it was last allocated for an index?
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @return true if the page was freed
+	 */
+	static boolean isFreed(int pid) {
+		return peek(pid).freed;
+	}
+
+}
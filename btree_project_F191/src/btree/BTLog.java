@@ -0,0 +1,645 @@
+package btree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTLog is a write-ahead log of the inserts and deletes of all indexes of
+ * the database. It needs a ConcurrentBufMgr, and is installed before any
+ * index is opened:
+ *
+ * <pre>
+ * new SystemDefs(dbpath, numPages, numBufs, &quot;Clock&quot;);
+ * ConcurrentBufMgr.install(numBufs);
+ * BTLog.install(logpath);
+ * </pre>
+ *
+ * An insert or delete is logged as its file, key and rid before any page
+ * it changed can be seen by another thread, and returns once its record is
+ * on disk. Records are written in groups: a thread that finds the log being
+ * written waits, and the next write takes all records appended meanwhile,
+ * with one sync for all of them.
+ *
+ * The changed pages themselves stay in the buffer manager (see
+ * ConcurrentBufMgr.holdWrites) until a checkpoint, which logs them as one
+ * record, writes them to the database and empties the log. After a crash,
+ * install replays the last checkpoint found in the log and the inserts and
+ * deletes after it. A change replays on the pages of the checkpoint, so
+ * none may reach the database before the next one: once the buffer
+ * manager keeps too many pages aside, the thread that ends a change makes
+ * a checkpoint.
+ *
+ * The flush of the buffer of a buffered index (see BTreeFile.isBuffered)
+ * that is not part of an insert or delete is logged as its file. The
+ * inserts and deletes of a memtable (see BTMemTable) are logged as those of
+ * its index; a checkpoint replaces the log by one that holds the ones the
+ * memtables keep, which are not on the pages yet. Creating or destroying
+ * an index and a bulk load are not logged; they are followed by a
+ * checkpoint.
+ */
+public class BTLog {
+
+	private final static byte INSERT = 1;
+	private final static byte DELETE = 2;
+	private final static byte CHECKPOINT = 3;
+	private final static byte FLUSH = 4;
+
+	// how long a change waits to make a checkpoint that is due
+	private final static long CHECKPOINT_WAIT_MILLIS = 100;
+
+	private final static byte INT_KEY = 0;
+	private final static byte STRING_KEY = 1;
+
+	private static volatile BTLog log;
+
+	/*
+	 * The insert or delete a thread is making, until it is appended.
+	 */
+	private static class Change {
+		BTLog log;
+		boolean pending;
+		long lsn;
+		byte type;
+		String file;
+		KeyClass key;
+		int intKey;
+		RID rid;
+		final Bytes bytes = new Bytes();
+		final DataOutputStream out = new DataOutputStream(bytes);
+	}
+
+	/*
+	 * The bytes of a record, without a copy.
+	 */
+	private static class Bytes extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	private final static ThreadLocal<Change> changes = new ThreadLocal<Change>() {
+		protected Change initialValue() {
+			return new Change();
+		}
+	};
+
+	private final String path;
+	// replaced by a checkpoint that keeps records
+	private FileChannel channel;
+	// changes hold it shared until they are made, a checkpoint exclusive
+	private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+	// records appended and not written yet
+	private byte[] buffer = new byte[64 * 1024];
+	private byte[] spare;
+	private int used;
+	// the bytes appended and written, counted from the start
+	private long appended;
+	private long durable;
+	private boolean writing;
+
+	private BTLog(String path) throws IOException {
+		this.path = path;
+		channel = new RandomAccessFile(path, "rw").getChannel();
+	}
+
+	/**
+	 * Start logging to a file. If the file holds a log, the database is
+	 * brought back to the state it records first.
+	 *
+	 * @param path
+	 *            the log file. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer, or while replaying the log
+	 */
+	public static synchronized void install(String path) throws IOException {
+		if (log != null)
+			throw new IllegalStateException("a log is installed already");
+		if (!(SystemDefs.JavabaseBM instanceof ConcurrentBufMgr))
+			throw new IllegalStateException("the log needs a ConcurrentBufMgr");
+		try {
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).holdWrites(true);
+		} catch (Exception e) {
+			throw new IOException("holding the writes back failed", e);
+		}
+		BTLog opened = new BTLog(path);
+		opened.recover();
+		log = opened;
+		checkpoint();
+	}
+
+	/**
+	 * Make a checkpoint and stop logging. The pages of the buffer manager
+	 * are written to disk from then on as they are replaced.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static synchronized void close() throws IOException {
+		BTLog closing = log;
+		if (closing == null)
+			return;
+		checkpoint();
+		log = null;
+		try {
+			((ConcurrentBufMgr) SystemDefs.JavabaseBM).holdWrites(false);
+		} catch (Exception e) {
+			throw new IOException("writing the held pages failed", e);
+		}
+		closing.channel.close();
+	}
+
+	/**
+	 * Write the changed pages to the database and empty the log. Inserts and
+	 * deletes wait meanwhile, and the ones under way are finished first, so
+	 * the calling thread must not hold a page of an index, e.g. by an open
+	 * scan.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static void checkpoint() throws IOException {
+		BTLog current = log;
+		if (current == null)
+			return;
+		current.gate.writeLock().lock();
+		try {
+			current.checkpointNow();
+		} finally {
+			current.gate.writeLock().unlock();
+		}
+	}
+
+	private void checkpointNow() throws IOException {
+		ConcurrentBufMgr bm = (ConcurrentBufMgr) SystemDefs.JavabaseBM;
+		Map<Integer, byte[]> pages;
+		try {
+			pages = bm.changedPages();
+		} catch (Exception e) {
+			throw new IOException("reading the changed pages failed", e);
+		}
+		// the pages go to the log first: a crash while they are written to
+		// the database leaves some of them old, and the log has them all
+		Change change = changes.get();
+		change.bytes.reset();
+		change.out.writeByte(CHECKPOINT);
+		change.out.writeInt(pages.size());
+		for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+			change.out.writeInt(page.getKey());
+			change.out.write(page.getValue());
+		}
+		force(append(change.bytes));
+		try {
+			bm.flushAllPages();
+		} catch (Exception e) {
+			throw new IOException("writing the changed pages failed", e);
+		}
+		syncDB();
+		ByteArrayOutputStream kept = keptChanges();
+		synchronized (this) {
+			// nothing is appended while the gate is closed
+			if (kept.size() > 0) {
+				replace(kept);
+				return;
+			}
+			channel.truncate(0);
+			channel.position(0);
+		}
+	}
+
+	/*
+	 * The records of the inserts and deletes the memtables keep.
+	 */
+	private static ByteArrayOutputStream keptChanges() throws IOException {
+		ByteArrayOutputStream kept = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(kept);
+		Change change = new Change();
+		for (BTMemTable table : BTMemTable.openTables()) {
+			change.file = table.fileName();
+			for (BTMessages.Message message : table.pending()) {
+				change.type = message.insert ? INSERT : DELETE;
+				change.key = message.key;
+				change.rid = message.rid;
+				encode(change);
+				int length = change.bytes.size();
+				CRC32 crc = new CRC32();
+				crc.update(change.bytes.array(), 0, length);
+				out.writeInt(length);
+				out.write(change.bytes.array(), 0, length);
+				out.writeInt((int) crc.getValue());
+			}
+		}
+		return kept;
+	}
+
+	/*
+	 * Replace the log by one that holds only `records'. It is written next
+	 * to the log and moved over it, so a crash leaves the one or the other.
+	 */
+	private void replace(ByteArrayOutputStream records) throws IOException {
+		Path log = Paths.get(path);
+		Path next = Paths.get(path + ".new");
+		FileChannel out = FileChannel.open(next, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(records.toByteArray());
+			while (bytes.hasRemaining())
+				out.write(bytes);
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(next, log, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		Path dir = log.toAbsolutePath().getParent();
+		try {
+			FileChannel directory = FileChannel.open(dir,
+					StandardOpenOption.READ);
+			try {
+				directory.force(true);
+			} finally {
+				directory.close();
+			}
+		} catch (IOException e) {
+			// not every system syncs a directory
+		}
+		channel.close();
+		channel = FileChannel.open(log, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+	}
+
+	/**
+	 * Is a log installed?
+	 *
+	 * @return true if inserts and deletes are logged
+	 */
+	static boolean installed() {
+		return log != null;
+	}
+
+	/**
+	 * Make the writes to the database file durable.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void syncDB() throws IOException {
+		DB db = SystemDefs.JavabaseDB;
+		if (db instanceof MappedDB) {
+			((MappedDB) db).force();
+			return;
+		}
+		RandomAccessFile file = new RandomAccessFile(db.db_name(), "rw");
+		try {
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Start logging an insert or a delete of the calling thread. Nothing is
+	 * logged if no log is installed, or if the thread is making a change
+	 * already, e.g. an insert with an integer key that goes on as one with a
+	 * KeyClass key.
+	 *
+	 * @param file
+	 *            the name of the index. Input parameter.
+	 * @param insert
+	 *            true for an insert, false for a delete. Input parameter.
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param rid
+	 *            the rid. Input parameter.
+	 * @return true if the change is logged; end must be called then
+	 */
+	static boolean begin(String file, boolean insert, KeyClass key, RID rid) {
+		Change change = start(file, insert ? INSERT : DELETE, rid);
+		if (change == null)
+			return false;
+		change.key = key;
+		return true;
+	}
+
+	/**
+	 * Start logging an insert with an integer key, as begin does.
+	 *
+	 * @param file
+	 *            the name of the index. Input parameter.
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param rid
+	 *            the rid. Input parameter.
+	 * @return true if the change is logged; end must be called then
+	 */
+	static boolean begin(String file, int key, RID rid) {
+		Change change = start(file, INSERT, rid);
+		if (change == null)
+			return false;
+		change.intKey = key;
+		return true;
+	}
+
+	/**
+	 * Start logging the flush of the buffer of a buffered index, as begin
+	 * does. The merge of a memtable is logged the same way, which keeps
+	 * checkpoints out while it is under way; its inserts and deletes are
+	 * logged already, so it replays as nothing.
+	 *
+	 * @param file
+	 *            the name of the index. Input parameter.
+	 * @return true if the flush is logged; end must be called then
+	 */
+	static boolean beginFlush(String file) {
+		return start(file, FLUSH, null) != null;
+	}
+
+	private static Change start(String file, byte type, RID rid) {
+		BTLog current = log;
+		if (current == null)
+			return null;
+		Change change = changes.get();
+		if (change.log != null)
+			return null;
+		current.gate.readLock().lock();
+		change.log = current;
+		change.pending = true;
+		change.lsn = 0;
+		change.type = type;
+		change.file = file;
+		change.key = null;
+		change.rid = rid;
+		return change;
+	}
+
+	/**
+	 * A page the calling thread changed is about to be given up (see
+	 * BTLatches): its change is appended to the log unless it was already.
+	 */
+	static void changing() {
+		if (log == null)
+			return;
+		Change change = changes.get();
+		if (change.pending) {
+			change.pending = false;
+			try {
+				encode(change);
+				change.lsn = change.log.append(change.bytes);
+			} catch (IOException e) {
+				// encoding into memory does not fail
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * End logging a change, and wait until its record is on disk.
+	 *
+	 * @exception IOException
+	 *                writing the log failed
+	 */
+	static void end() throws IOException {
+		Change change = changes.get();
+		BTLog current = change.log;
+		long lsn = change.lsn;
+		change.log = null;
+		change.pending = false;
+		change.key = null;
+		change.rid = null;
+		current.gate.readLock().unlock();
+		if (lsn > 0)
+			current.force(lsn);
+		if (((ConcurrentBufMgr) SystemDefs.JavabaseBM).heldFull())
+			current.checkpointIfFree();
+	}
+
+	/*
+	 * Make a checkpoint unless the changes under way do not end soon. The
+	 * calling thread may hold a page of an index, e.g. by an open scan,
+	 * that one of them waits for; it gives up then, and a later change
+	 * tries again.
+	 */
+	private void checkpointIfFree() throws IOException {
+		try {
+			if (!gate.writeLock().tryLock(CHECKPOINT_WAIT_MILLIS,
+					TimeUnit.MILLISECONDS))
+				return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try {
+			if (log == this
+					&& ((ConcurrentBufMgr) SystemDefs.JavabaseBM).heldFull())
+				checkpointNow();
+		} finally {
+			gate.writeLock().unlock();
+		}
+	}
+
+	private static void encode(Change change) throws IOException {
+		change.bytes.reset();
+		DataOutputStream out = change.out;
+		out.writeByte(change.type);
+		out.writeUTF(change.file);
+		if (change.type == FLUSH)
+			return;
+		if (change.key == null) {
+			out.writeByte(INT_KEY);
+			out.writeInt(change.intKey);
+		} else if (change.key instanceof IntegerKey) {
+			out.writeByte(INT_KEY);
+			out.writeInt(((IntegerKey) change.key).getKey().intValue());
+		} else {
+			out.writeByte(STRING_KEY);
+			out.writeUTF(((StringKey) change.key).getKey());
+		}
+		out.writeInt(change.rid.pageNo.pid);
+		out.writeInt(change.rid.slotNo);
+	}
+
+	/*
+	 * Append a record, framed by its length and checksum, and return where
+	 * it ends.
+	 */
+	private long append(Bytes record) {
+		int length = record.size();
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, length);
+		synchronized (this) {
+			if (used + length + 8 > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length,
+						used + length + 8));
+			putInt(buffer, used, length);
+			System.arraycopy(record.array(), 0, buffer, used + 4, length);
+			putInt(buffer, used + 4 + length, (int) crc.getValue());
+			used += length + 8;
+			appended += length + 8;
+			return appended;
+		}
+	}
+
+	private static void putInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	/*
+	 * Wait until the log is on disk up to `lsn'. One of the waiting threads
+	 * writes what was appended so far, the others wait for it.
+	 */
+	private void force(long lsn) throws IOException {
+		while (true) {
+			byte[] out;
+			int length;
+			long end;
+			synchronized (this) {
+				while (writing && durable < lsn)
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				if (durable >= lsn)
+					return;
+				writing = true;
+				out = buffer;
+				length = used;
+				end = appended;
+				buffer = spare != null && spare.length >= out.length ? spare
+						: new byte[out.length];
+				spare = null;
+				used = 0;
+			}
+			boolean written = false;
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(out, 0, length);
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+				channel.force(false);
+				written = true;
+			} finally {
+				synchronized (this) {
+					writing = false;
+					if (written)
+						durable = end;
+					spare = out;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Bring the database back to the state the log records: the pages of
+	 * the last checkpoint, then the changes after it. The log is not
+	 * installed yet, so nothing is logged meanwhile.
+	 */
+	private void recover() throws IOException {
+		long size = channel.size();
+		if (size == 0)
+			return;
+		byte[] data = new byte[(int) size];
+		ByteBuffer bytes = ByteBuffer.wrap(data);
+		while (bytes.hasRemaining())
+			if (channel.read(bytes, bytes.position()) < 0)
+				break;
+
+		// the records up to the first one that was not written whole
+		ArrayList<Integer> records = new ArrayList<Integer>();
+		int lastCheckpoint = -1;
+		int offset = 0;
+		CRC32 crc = new CRC32();
+		while (offset + 8 <= data.length) {
+			int length = getInt(data, offset);
+			if (length < 1 || length > data.length - offset - 8)
+				break;
+			crc.reset();
+			crc.update(data, offset + 4, length);
+			if ((int) crc.getValue() != getInt(data, offset + 4 + length))
+				break;
+			if (data[offset + 4] == CHECKPOINT)
+				lastCheckpoint = records.size();
+			records.add(offset);
+			offset += length + 8;
+		}
+
+		HashMap<String, BTreeFile> files = new HashMap<String, BTreeFile>();
+		try {
+			for (int i = Math.max(lastCheckpoint, 0); i < records.size(); i++) {
+				int start = records.get(i) + 4;
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(data, start + 1, getInt(data,
+								start - 4) - 1));
+				if (data[start] == CHECKPOINT)
+					restorePages(in);
+				else
+					replay(in, data[start], files);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("replaying the log failed", e);
+		} finally {
+			for (BTreeFile file : files.values())
+				try {
+					file.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+		}
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	private static void restorePages(DataInputStream in) throws Exception {
+		int count = in.readInt();
+		PageId pageno = new PageId();
+		Page page = new Page();
+		for (int i = 0; i < count; i++) {
+			pageno.pid = in.readInt();
+			BTBuffers.pinPage(pageno, page);
+			in.readFully(page.getpage());
+			BTBuffers.unpinPage(pageno, true);
+		}
+	}
+
+	private static void replay(DataInputStream in, byte type,
+			HashMap<String, BTreeFile> files) throws Exception {
+		String name = in.readUTF();
+		BTreeFile file = files.get(name);
+		if (file == null) {
+			file = new BTreeFile(name);
+			files.put(name, file);
+		}
+		if (type == FLUSH) {
+			file.flushBuffer();
+			return;
+		}
+		KeyClass key;
+		if (in.readByte() == INT_KEY)
+			key = new IntegerKey(in.readInt());
+		else
+			key = new StringKey(in.readUTF());
+		RID rid = new RID(new PageId(in.readInt()), in.readInt());
+		if (type == INSERT)
+			file.insert(key, rid);
+		else
+			file.Delete(key, rid);
+	}
+}
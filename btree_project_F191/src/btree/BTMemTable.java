@@ -0,0 +1,494 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTMemTable is a write buffer in memory in front of a BTreeFile. Its
+ * inserts and deletes are kept as messages sorted by key (see BTMessages)
+ * and reach the leaves once maxEntries of them are kept: all at once, as
+ * one sorted batch (see BTreeFile.applyMessages), so the tree is searched
+ * once per leaf the batch reaches rather than once per insert, and a leaf
+ * is latched and written once for all inserts that belong to it.
+ *
+ * <pre>
+ * BTMemTable table = new BTMemTable(file, 50000);
+ * table.insert(key, rid);
+ * ...
+ * table.close();
+ * </pre>
+ *
+ * Lookups and scans of the table merge its messages into what they find
+ * on the leaves; the searches of the file itself see the messages once
+ * they are merged (see flush). A delete does not search the leaves, so it
+ * returns true whether or not the entry exists. Inserts and deletes go on
+ * while a batch is merged; lookups and scans of the table wait for it.
+ *
+ * The messages are kept in memory only. With a log installed (see BTLog)
+ * they are logged as inserts and deletes of the file, and a checkpoint
+ * keeps the ones not merged in the log; without one, the ones not merged
+ * are lost if the process ends before the table is flushed or closed.
+ */
+public class BTMemTable {
+
+	/*
+	 * The messages of a table, which is full at maxEntries.
+	 */
+	private static class Entries extends BTMessages {
+		private final int maxEntries;
+
+		Entries(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		boolean full() {
+			return size() >= maxEntries;
+		}
+	}
+
+	private final static Set<BTMemTable> open = new HashSet<BTMemTable>();
+
+	private final BTreeFile file;
+	private final Entries entries;
+
+	/**
+	 * Open a memtable in front of an index, which stays open while the
+	 * table is used.
+	 *
+	 * @param file
+	 *            the index, which is not a buffered one. Input parameter.
+	 * @param maxEntries
+	 *            the inserts and deletes kept before they are merged into
+	 *            the index. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTMemTable(BTreeFile file, int maxEntries) throws IOException {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be positive");
+		if (file.isBuffered())
+			throw new IllegalArgumentException(
+					"a buffered index cannot have a memtable");
+		this.file = file;
+		this.entries = new Entries(maxEntries);
+		synchronized (open) {
+			open.add(this);
+		}
+	}
+
+	/**
+	 * insert record with the given key and rid. The batch is merged into
+	 * the index if it is full.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		if (change(true, key, rid))
+			file.flushForInsert(entries);
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair. The batch is merged into
+	 * the index if it is full.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error in BT page constructor
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception LeafDeleteException
+	 *                delete error in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error in search in index pages
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		if (change(false, key, rid))
+			file.flushForDelete(entries);
+		return true;
+	}
+
+	/*
+	 * Add an insert or a delete, and log it in the order the messages are
+	 * made. Returns true if the table is full and the thread may merge it,
+	 * which it does once the change is done, as for a buffered index.
+	 */
+	private boolean change(boolean insert, KeyClass key, RID rid)
+			throws KeyNotMatchException, IOException {
+		if ((key instanceof IntegerKey) != (file.getHeaderPage()
+				.get_keyType() == AttrType.attrInteger))
+			throw new KeyNotMatchException(null,
+					"the key does not match the index");
+		boolean logged = BTLog.begin(file.fileName(), insert, key, rid);
+		try {
+			entries.lock();
+			try {
+				entries.put(entries.message(insert, key, rid));
+				if (logged)
+					BTLog.changing();
+				return entries.full() && entries.canFlush();
+			} finally {
+				entries.unlock();
+			}
+		} finally {
+			if (logged)
+				BTLog.end();
+		}
+	}
+
+	/**
+	 * Find the rids of all entries with a key, those of the table merged
+	 * into those of the index.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @param rids
+	 *            the rids of the entries are added to it. Output
+	 *            parameter.
+	 * @return the number of entries with the key
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int lookup(KeyClass key, List<RID> rids) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int before = rids.size();
+		entries.beginRead();
+		try {
+			file.lookup(key, rids);
+			entries.apply(key, rids, before);
+		} finally {
+			entries.endRead();
+		}
+		return rids.size() - before;
+	}
+
+	/**
+	 * Find the rids of all entries with a key, as lookup(key, rids) does.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids of the entries
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public List<RID> lookup(KeyClass key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		lookup(key, rids);
+		return rids;
+	}
+
+	/**
+	 * create a scan with given keys, as BTreeFile.new_scan does, that merges
+	 * the entries of the table into those of the index (see
+	 * BTBufferedScan). The table is not merged while the scan is open.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		// the scan holds the flush lock until it is done
+		entries.beginRead();
+		try {
+			return new BTBufferedScan(file, entries, this, file.new_scan(
+					lo_key, hi_key), lo_key, hi_key);
+		} catch (IOException | KeyNotMatchException | IteratorException
+				| ConstructPageException | PinPageException
+				| UnpinPageException | RuntimeException e) {
+			entries.endRead();
+			throw e;
+		}
+	}
+
+	/**
+	 * Merge the inserts and deletes kept in the table into the index. It
+	 * waits for the lookups and scans of the table, so the calling thread
+	 * must not have a scan of it open.
+	 *
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void flush() throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, FreePageException, RecordNotFoundException,
+			IndexFullDeleteException, IOException {
+		if (!entries.isEmpty())
+			file.flushMessages(entries, false);
+	}
+
+	/**
+	 * Merge the table into the index, as flush does, and close it. The
+	 * index stays open.
+	 *
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void close() throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, FreePageException, RecordNotFoundException,
+			IndexFullDeleteException, IOException {
+		flush();
+		synchronized (open) {
+			open.remove(this);
+		}
+	}
+
+	/**
+	 * The number of inserts and deletes kept in the table.
+	 *
+	 * @return the number of inserts and deletes not merged yet
+	 */
+	public int size() {
+		entries.lock();
+		try {
+			return entries.size();
+		} finally {
+			entries.unlock();
+		}
+	}
+
+	/**
+	 * The open tables, for a checkpoint (see BTLog).
+	 *
+	 * @return the tables
+	 */
+	static List<BTMemTable> openTables() {
+		synchronized (open) {
+			return new ArrayList<BTMemTable>(open);
+		}
+	}
+
+	/**
+	 * The name of the index of the table.
+	 *
+	 * @return the file name
+	 */
+	String fileName() {
+		return file.fileName();
+	}
+
+	/**
+	 * The inserts and deletes not merged yet, in the order they were made.
+	 *
+	 * @return the messages
+	 */
+	List<BTMessages.Message> pending() {
+		entries.lock();
+		try {
+			List<BTMessages.Message> pending = entries.all();
+			Collections.sort(pending, BTMessages.MADE);
+			return pending;
+		} finally {
+			entries.unlock();
+		}
+	}
+}
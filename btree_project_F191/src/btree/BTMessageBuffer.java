@@ -0,0 +1,314 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTMessageBuffer holds the inserts and deletes of a buffered index (see
+ * BTreeFile.isBuffered) that have not reached the leaves yet. They are kept
+ * as messages in a chain of pages of the index, in the order they were
+ * made, and the same messages are kept in memory (see BTMessages).
+ *
+ * The buffer is not locked while a flush applies the messages, so changes
+ * go on meanwhile; the ones added then are written to the pages again when
+ * the applied ones are taken out.
+ *
+ * There is one buffer per index of the database, whichever BTreeFile opened
+ * it.
+ */
+class BTMessageBuffer extends BTMessages implements GlobalConst {
+
+	// pages the buffer fills before it is flushed; a page holds about sixty
+	// messages of an integer key, so a flush brings several to most leaves
+	// of an index of a few thousand leaves
+	final static int MAX_PAGES = 128;
+
+	private final static byte INSERT = 1;
+	private final static byte DELETE = 2;
+
+	private final static Map<Integer, BTMessageBuffer> buffers = new HashMap<Integer, BTMessageBuffer>();
+
+	private final DB db;
+	private final int keyType;
+
+	// the chain of pages, guarded by lock
+	private final int firstPage;
+	private int lastPage;
+	private int pages;
+
+	private BTMessageBuffer(int firstPage, int keyType) {
+		this.db = SystemDefs.JavabaseDB;
+		this.firstPage = firstPage;
+		this.keyType = keyType;
+	}
+
+	/**
+	 * The buffer of an index, read from its pages the first time it is
+	 * used.
+	 *
+	 * @param headerPage
+	 *            the page id of the header page of the index. Input
+	 *            parameter.
+	 * @param firstPage
+	 *            the first page of the buffer. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @return the buffer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConvertException
+	 *                a message cannot be read
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static BTMessageBuffer get(int headerPage, int firstPage, int keyType)
+			throws PinPageException, UnpinPageException, ConvertException,
+			IOException {
+		synchronized (buffers) {
+			BTMessageBuffer buffer = buffers.get(headerPage);
+			// a buffer of another database with the same page ids is stale
+			if (buffer == null || buffer.db != SystemDefs.JavabaseDB
+					|| buffer.firstPage != firstPage) {
+				buffer = new BTMessageBuffer(firstPage, keyType);
+				buffer.load();
+				buffers.put(headerPage, buffer);
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * Forget the buffer of an index that is destroyed.
+	 *
+	 * @param headerPage
+	 *            the page id of the header page of the index. Input
+	 *            parameter.
+	 */
+	static void remove(int headerPage) {
+		synchronized (buffers) {
+			buffers.remove(headerPage);
+		}
+	}
+
+	/**
+	 * Add a message. The buffer is locked by the thread.
+	 *
+	 * @param insert
+	 *            an insert if set, a delete otherwise. Input parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                error when convert the message
+	 * @exception ConvertException
+	 *                error when convert the message
+	 * @exception ConstructPageException
+	 *                error when allocate a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	void add(boolean insert, KeyClass key, RID rid)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		Message message = message(insert, key, rid);
+		append(message);
+		put(message);
+	}
+
+	/**
+	 * Is the buffer full, so that it should be flushed? It may grow further
+	 * until it is.
+	 *
+	 * @return true if the buffer has MAX_PAGES pages
+	 */
+	boolean full() {
+		return pages >= MAX_PAGES;
+	}
+
+	/**
+	 * Take out the messages a flush applied. Those added meanwhile are
+	 * written to the pages again, in the order they were made.
+	 *
+	 * @param applied
+	 *            the messages applied. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                error when convert a message
+	 * @exception NodeNotMatchException
+	 *                error when convert a message
+	 * @exception ConvertException
+	 *                error when convert a message
+	 * @exception ConstructPageException
+	 *                error when allocate a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	void remove(List<Message> applied) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException,
+			IOException {
+		super.remove(applied);
+		BTLatches.exclusive(firstPage);
+		try {
+			HFPage page = new HFPage(pinPage(firstPage));
+			int next = page.getNextPage().pid;
+			page.init(new PageId(firstPage), page);
+			page.setNextPage(new PageId(INVALID_PAGE));
+			unpinPage(firstPage, true);
+			freePages(next);
+		} finally {
+			BTLatches.release(firstPage);
+		}
+		lastPage = firstPage;
+		pages = 1;
+		List<Message> left = all();
+		Collections.sort(left, MADE);
+		for (Message message : left)
+			append(message);
+	}
+
+	/*
+	 * Write a message to the last page, or to a new one if it is full.
+	 */
+	private void append(Message message) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			PinPageException, UnpinPageException, IOException {
+		byte[] entry = BT.getBytesFromEntry(new KeyDataEntry(message.key,
+				message.rid));
+		byte[] record = new byte[entry.length + 1];
+		record[0] = message.insert ? INSERT : DELETE;
+		System.arraycopy(entry, 0, record, 1, entry.length);
+
+		int pid = lastPage;
+		BTLatches.exclusive(pid);
+		try {
+			HFPage page = new HFPage(pinPage(pid));
+			boolean added = page.insertRecord(record) != null;
+			unpinPage(pid, added);
+			if (!added) {
+				// the new page is not reachable before it is linked
+				BTSortedPage next;
+				synchronized (BTBuffers.diskLock()) {
+					next = new BTSortedPage(keyType);
+				}
+				int nextId = next.getCurPage().pid;
+				BTLatches.setFreed(nextId, false);
+				next.setNextPage(new PageId(INVALID_PAGE));
+				next.insertRecord(record);
+				unpinPage(nextId, true);
+				page = new HFPage(pinPage(pid));
+				page.setNextPage(new PageId(nextId));
+				unpinPage(pid, true);
+				lastPage = nextId;
+				pages++;
+			}
+		} finally {
+			BTLatches.release(pid);
+		}
+	}
+
+	/**
+	 * Free the pages of a buffer from the given one on, e.g. of an index
+	 * that is destroyed.
+	 *
+	 * @param pid
+	 *            the first page to free, or INVALID_PAGE. Input parameter.
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void freePages(int pid) throws PinPageException,
+			UnpinPageException, FreePageException, IOException {
+		while (pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(pid));
+			int next = page.getNextPage().pid;
+			unpinPage(pid, false);
+			BTLatches.setFreed(pid, true);
+			try {
+				BTBuffers.freePage(new PageId(pid));
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new FreePageException(e, "");
+			}
+			pid = next;
+		}
+	}
+
+	/*
+	 * Read the messages from the pages, and find the last page.
+	 */
+	private void load() throws PinPageException, UnpinPageException,
+			ConvertException, IOException {
+		int pid = firstPage;
+		pages = 0;
+		while (pid != INVALID_PAGE) {
+			lastPage = pid;
+			pages++;
+			Page page = pinPage(pid);
+			try {
+				byte[] data = page.getpage();
+				int count = BTIntPage.slotCount(data);
+				for (int slot = 0; slot < count; slot++) {
+					int offset = BTIntPage.slotOffset(data, slot);
+					KeyDataEntry entry = BT.getEntryFromBytes(data, offset + 1,
+							BTIntPage.slotLength(data, slot) - 1, keyType,
+							NodeType.LEAF);
+					put(message(data[offset] == INSERT, entry.key,
+							((LeafData) entry.data).getData()));
+				}
+				pid = new HFPage(page).getNextPage().pid;
+			} catch (KeyNotMatchException e) {
+				throw new ConvertException(e, "bad message");
+			} catch (NodeNotMatchException e) {
+				throw new ConvertException(e, "bad message");
+			} finally {
+				unpinPage(lastPage, false);
+			}
+		}
+	}
+
+	private static Page pinPage(int pid) throws PinPageException {
+		Page page = new Page();
+		try {
+			BTBuffers.pinPage(new PageId(pid), page);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		return page;
+	}
+
+	private static void unpinPage(int pid, boolean dirty)
+			throws UnpinPageException {
+		try {
+			BTBuffers.unpinPage(new PageId(pid), dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import global.*;
+
+/**
+ * BTMessages holds inserts and deletes of an index that have not reached
+ * its leaves yet, as messages sorted by key, for the searches to merge
+ * into what they find on the leaves (see BTBufferedScan). It is the part
+ * of a message buffer (see BTMessageBuffer) and of a memtable (see
+ * BTMemTable) that is kept in memory.
+ *
+ * Messages are added and taken out one change at a time (see lock). A
+ * flush applies messages to the tree and then takes them out (see
+ * BTreeFile.flushMessages); it holds the flush lock exclusive, and the
+ * searches that merge messages hold it shared.
+ */
+abstract class BTMessages {
+
+	/*
+	 * An insert or delete of <key, rid>. Messages are ordered by key, and
+	 * by the order they were made for one key.
+	 */
+	static class Message {
+		final KeyClass key;
+		final long seq;
+		final boolean insert;
+		final RID rid;
+
+		Message(KeyClass key, long seq, boolean insert, RID rid) {
+			this.key = key;
+			this.seq = seq;
+			this.insert = insert;
+			this.rid = rid;
+		}
+	}
+
+	private final static Comparator<Message> ORDER = new Comparator<Message>() {
+		public int compare(Message a, Message b) {
+			int order;
+			try {
+				order = BT.keyCompare(a.key, b.key);
+			} catch (KeyNotMatchException e) {
+				throw new IllegalArgumentException("key types do not match", e);
+			}
+			return order != 0 ? order : Long.compare(a.seq, b.seq);
+		}
+	};
+
+	/*
+	 * The order the messages were made in.
+	 */
+	final static Comparator<Message> MADE = new Comparator<Message>() {
+		public int compare(Message a, Message b) {
+			return Long.compare(a.seq, b.seq);
+		}
+	};
+
+	private final ConcurrentSkipListSet<Message> messages = new ConcurrentSkipListSet<Message>(
+			ORDER);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+
+	// guarded by lock
+	private long nextSeq;
+	private int count;
+
+	/**
+	 * Take the lock for a change of the messages; it is given up by unlock.
+	 */
+	void lock() {
+		lock.lock();
+	}
+
+	void unlock() {
+		lock.unlock();
+	}
+
+	/**
+	 * Take the flush lock shared, for a search that merges messages; it is
+	 * given up by endRead.
+	 */
+	void beginRead() {
+		flushLock.readLock().lock();
+	}
+
+	void endRead() {
+		flushLock.readLock().unlock();
+	}
+
+	/**
+	 * Take the flush lock exclusive, which waits for the searches that merge
+	 * messages; it is given up by endFlush. It is taken before the messages
+	 * are locked, and before a flush is logged (see BTLog.beginFlush).
+	 */
+	void beginFlush() {
+		if (flushLock.getReadHoldCount() > 0)
+			throw new IllegalStateException(
+					"the index is read by this thread, e.g. by an open scan");
+		flushLock.writeLock().lock();
+	}
+
+	void endFlush() {
+		flushLock.writeLock().unlock();
+	}
+
+	/**
+	 * Could the thread flush the messages, or does it read the index
+	 * itself?
+	 *
+	 * @return true if the thread does not hold the flush lock shared
+	 */
+	boolean canFlush() {
+		return flushLock.getReadHoldCount() == 0;
+	}
+
+	/**
+	 * A new message, after all made so far. The messages are locked by the
+	 * thread.
+	 *
+	 * @param insert
+	 *            an insert if set, a delete otherwise. Input parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @return the message, which is not added yet (see put)
+	 */
+	Message message(boolean insert, KeyClass key, RID rid) {
+		return new Message(key, nextSeq++, insert, copy(rid));
+	}
+
+	/**
+	 * Add a message. The messages are locked by the thread.
+	 *
+	 * @param message
+	 *            the message. Input parameter.
+	 */
+	void put(Message message) {
+		messages.add(message);
+		count++;
+	}
+
+	/**
+	 * Are there enough messages to flush them?
+	 *
+	 * @return true if the messages should be flushed
+	 */
+	abstract boolean full();
+
+	/**
+	 * Take out the messages a flush applied. The messages are locked and
+	 * flushed by the thread.
+	 *
+	 * @param applied
+	 *            the messages. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                error when convert a message
+	 * @exception NodeNotMatchException
+	 *                error when convert a message
+	 * @exception ConvertException
+	 *                error when convert a message
+	 * @exception ConstructPageException
+	 *                error when allocate a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	void remove(List<Message> applied) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException,
+			IOException {
+		for (Message message : applied)
+			if (messages.remove(message))
+				count--;
+	}
+
+	/**
+	 * The messages, in key order. The messages are locked by the thread.
+	 *
+	 * @return the messages
+	 */
+	List<Message> all() {
+		return new ArrayList<Message>(messages);
+	}
+
+	/**
+	 * The number of messages. The messages are locked by the thread.
+	 *
+	 * @return the number of messages
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Are there no messages?
+	 *
+	 * @return true if there is no message
+	 */
+	boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/**
+	 * Apply the messages for a key to the rids found on the leaves: an
+	 * insert adds its rid, a delete takes out the first equal one, if any.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param rids
+	 *            the rids of the key from `from' on. Input and output
+	 *            parameter.
+	 * @param from
+	 *            where the rids of the key start. Input parameter.
+	 */
+	void apply(KeyClass key, List<RID> rids, int from) {
+		for (Message message : messages.subSet(
+				new Message(key, Long.MIN_VALUE, false, null), true,
+				new Message(key, Long.MAX_VALUE, false, null), true)) {
+			if (message.insert) {
+				rids.add(copy(message.rid));
+				continue;
+			}
+			for (int i = from; i < rids.size(); i++)
+				if (rids.get(i).equals(message.rid)) {
+					rids.remove(i);
+					break;
+				}
+		}
+	}
+
+	/**
+	 * The smallest key of a message after `after' (or not less than `low'
+	 * if after is null) and not greater than `high'.
+	 *
+	 * @param after
+	 *            the key before, or null. Input parameter.
+	 * @param low
+	 *            the low bound, or null. Input parameter.
+	 * @param high
+	 *            the high bound, or null. Input parameter.
+	 * @return the key, or null if there is none
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	KeyClass nextKey(KeyClass after, KeyClass low, KeyClass high)
+			throws KeyNotMatchException {
+		Message next;
+		if (after != null)
+			next = messages.higher(new Message(after, Long.MAX_VALUE, false,
+					null));
+		else if (low != null)
+			next = messages.ceiling(new Message(low, Long.MIN_VALUE, false,
+					null));
+		else
+			next = messages.isEmpty() ? null : messages.first();
+		if (next == null
+				|| (high != null && BT.keyCompare(next.key, high) > 0))
+			return null;
+		return next.key;
+	}
+
+	static RID copy(RID rid) {
+		return new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+	}
+}
@@ -0,0 +1,186 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTNodeCache keeps the index pages of a BTreeFile decoded, as a sorted
+ * array of keys and an array of child page ids, so that a search through
+ * the upper levels neither pins nor decodes them. A node is valid as long
+ * as its page has not been changed since it was decoded (see
+ * BTLatches.changes); a split or merge changes it, while writers that only
+ * pass a page leave it valid. Leaves are not kept. When the cache is full
+ * the node used least recently makes room for a new one.
+ */
+class BTNodeCache implements GlobalConst {
+
+	// at most this many nodes are kept; an index page holds about a hundred
+	// children, so this covers the upper levels of a large index
+	private final static int MAX_NODES = 1024;
+
+	/*
+	 * A decoded index page. keys[i] is the key of slot i, children[0] the
+	 * left link and children[i + 1] the child of slot i. Integer keys are
+	 * kept in intKeys, string keys in keys.
+	 */
+	static class Node {
+		final long changes;
+		final int[] intKeys;
+		final String[] keys;
+		final int[] children;
+
+		Node(long changes, int[] intKeys, String[] keys, int[] children) {
+			this.changes = changes;
+			this.intKeys = intKeys;
+			this.keys = keys;
+			this.children = children;
+		}
+
+		/**
+		 * The child behind the last entry with a key less than `key', as
+		 * BTPageOps.lowerBound finds it, or the left link for a null key.
+		 *
+		 * @param key
+		 *            the search key. Input parameter.
+		 * @return the page id of the child
+		 * @exception KeyNotMatchException
+		 *                the key does not match the keys of the node
+		 */
+		int child(KeyClass key) throws KeyNotMatchException {
+			if (key == null)
+				return children[0];
+			if (key instanceof IntegerKey && intKeys != null)
+				return child(((IntegerKey) key).getKey().intValue());
+			if (!(key instanceof StringKey) || keys == null)
+				throw new KeyNotMatchException(null, "key types do not match");
+			String search = ((StringKey) key).getKey();
+			int low = 0;
+			int high = keys.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (keys[mid].compareTo(search) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return children[low];
+		}
+
+		/**
+		 * The child behind the last entry with a key less than `key', for
+		 * an index with integer keys.
+		 *
+		 * @param key
+		 *            the search key. Input parameter.
+		 * @return the page id of the child
+		 */
+		int child(int key) {
+			int low = 0;
+			int high = intKeys.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (BTIntPage.compare(intKeys[mid], key) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return children[low];
+		}
+	}
+
+	// in access order, so the eldest node is the one used least recently;
+	// the map is also the lock of the cache
+	private final LinkedHashMap<Integer, Node> nodes = new LinkedHashMap<Integer, Node>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+			return size() > MAX_NODES;
+		}
+	};
+
+	/**
+	 * The node of an index page, if it is kept and still valid. The caller
+	 * has a stamp of the page's version (see BTLatches.optimistic), which
+	 * it validates after it used the node.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @return the node, or null
+	 */
+	Node get(int pid) {
+		Node node;
+		synchronized (nodes) {
+			node = nodes.get(pid);
+		}
+		if (node == null)
+			return null;
+		if (node.changes != BTLatches.changes(pid)) {
+			synchronized (nodes) {
+				if (nodes.get(pid) == node)
+					nodes.remove(pid);
+			}
+			return null;
+		}
+		return node;
+	}
+
+	/**
+	 * Decode an index page and keep it.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 * @param data
+	 *            a copy of the page, validated. Input parameter.
+	 * @param changes
+	 *            the count of changes of the page, read while the copy was
+	 *            valid. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @return the node
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	Node put(int pid, byte[] data, long changes, int keyType)
+			throws IOException {
+		int count = BTIntPage.slotCount(data);
+		int[] children = new int[count + 1];
+		children[0] = BTIntPage.childAt(data, -1);
+		int[] intKeys = null;
+		String[] keys = null;
+		if (keyType == AttrType.attrInteger)
+			intKeys = new int[count];
+		else
+			keys = new String[count];
+		for (int slot = 0; slot < count; slot++) {
+			if (intKeys != null)
+				intKeys[slot] = BTIntPage.keyAt(data, slot);
+			else
+				keys[slot] = stringKey(data, slot);
+			children[slot + 1] = BTIntPage.childAt(data, slot);
+		}
+		Node node = new Node(changes, intKeys, keys, children);
+		synchronized (nodes) {
+			nodes.put(pid, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Forget the node of a page, e.g. one that is freed.
+	 *
+	 * @param pid
+	 *            the page id. Input parameter.
+	 */
+	void remove(int pid) {
+		synchronized (nodes) {
+			nodes.remove(pid);
+		}
+	}
+
+	private static String stringKey(byte[] data, int slot)
+			throws IOException {
+		return Convert.getStrValue(BTIntPage.slotOffset(data, slot), data,
+				BTIntPage.slotLength(data, slot));
+	}
+}
@@ -0,0 +1,339 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPageOps works directly on the slot directory and the record area of a
+ * sorted page. It is used by BTreeFile for page-level operations that would
+ * cost a compaction of the page per record if they were done with record
+ * inserts and deletes.
+ */
+class BTPageOps implements GlobalConst {
+
+	/**
+	 * Split a sorted page. The records of the slots from `from' on are copied
+	 * to the empty page `target' in one pass, in slot order, and the source
+	 * page keeps the records before `from', compacted.
+	 *
+	 * @param source
+	 *            the page to split. Input and output parameter.
+	 * @param from
+	 *            the first slot that moves. Input parameter.
+	 * @param target
+	 *            an empty page of the same type. Output parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void splitTo(BTSortedPage source, int from, BTSortedPage target)
+			throws IOException {
+		byte[] data = source.getpage();
+		byte[] targetData = target.getpage();
+		int count = source.getSlotCnt();
+		int usedPtr = MAX_SPACE;
+		for (int i = from; i < count; i++) {
+			int length = source.getSlotLength(i);
+			usedPtr -= length;
+			System.arraycopy(data, source.getSlotOffset(i), targetData,
+					usedPtr, length);
+			target.setSlot(i - from, length, usedPtr);
+		}
+		setRecordArea(targetData, count - from, usedPtr);
+		truncate(source, from);
+	}
+
+	/**
+	 * Keep the first `count' slots of a sorted page and pack their records at
+	 * the end of the page.
+	 *
+	 * @param page
+	 *            the page. Input and output parameter.
+	 * @param count
+	 *            the number of slots to keep. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void truncate(BTSortedPage page, int count) throws IOException {
+		byte[] data = page.getpage();
+		byte[] records = new byte[MAX_SPACE];
+		int usedPtr = MAX_SPACE;
+		for (int i = 0; i < count; i++) {
+			int length = page.getSlotLength(i);
+			usedPtr -= length;
+			System.arraycopy(data, page.getSlotOffset(i), records, usedPtr,
+					length);
+			page.setSlot(i, length, usedPtr);
+		}
+		System.arraycopy(records, usedPtr, data, usedPtr, MAX_SPACE - usedPtr);
+		setRecordArea(data, count, usedPtr);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is not less than `key'.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot, or the number of slots if all keys are less than `key'
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int lowerBound(BTSortedPage page, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		return search(page, key, false);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than `key', which
+	 * is where a sorted insert of `key' puts its entry.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot, or the number of slots if no key is greater than
+	 *         `key'
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int upperBound(BTSortedPage page, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		return search(page, key, true);
+	}
+
+	private static int search(BTSortedPage page, KeyClass key, boolean after)
+			throws KeyNotMatchException, IOException {
+		int low = 0;
+		int high = page.getSlotCnt();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int result = compareKey(page, mid, key);
+			if (result < 0 || (after && result == 0))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Compare the key in a slot with `key' like BT.keyCompare does, reading
+	 * only the key from the page.
+	 *
+	 * @param page
+	 *            the sorted page. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @param key
+	 *            the key to compare with. Input parameter.
+	 * @return less than, equal to or greater than 0 as the key in the slot is
+	 *         less than, equal to or greater than `key'
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int compareKey(BTSortedPage page, int slot, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		int offset = page.getSlotOffset(slot);
+		if (key instanceof IntegerKey)
+			return Convert.getIntValue(offset, page.getpage())
+					- ((IntegerKey) key).getKey().intValue();
+		if (key instanceof StringKey)
+			return Convert.getStrValue(offset, page.getpage(),
+					page.getSlotLength(slot)).compareTo(
+					((StringKey) key).getKey());
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * The child page an index entry points to.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param slot
+	 *            the slot of the entry, -1 for the left link. Input parameter.
+	 * @return the page id of the child
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static PageId childAt(BTIndexPage page, int slot) throws IOException {
+		if (slot < 0)
+			return new PageId(page.getPrevPage().pid);
+		int end = page.getSlotOffset(slot) + page.getSlotLength(slot);
+		return new PageId(Convert.getIntValue(end - 4, page.getpage()));
+	}
+
+	/**
+	 * The number of leaf entries below a child of an index page of a counted
+	 * index. An entry keeps the count of its child in front of the page id;
+	 * the count of the left link, which has no record, is kept in the
+	 * nextPage field, which index pages do not use otherwise.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @param slot
+	 *            the slot of the entry, -1 for the left link. Input parameter.
+	 * @return the number of leaf entries below the child
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int childCount(BTIndexPage page, int slot) throws IOException {
+		if (slot < 0)
+			return page.getNextPage().pid;
+		int end = page.getSlotOffset(slot) + page.getSlotLength(slot);
+		return Convert.getIntValue(end - 8, page.getpage());
+	}
+
+	/**
+	 * Store the number of leaf entries below a child of an index page of a
+	 * counted index.
+	 *
+	 * @param page
+	 *            the index page. Input and output parameter.
+	 * @param slot
+	 *            the slot of the entry, -1 for the left link. Input parameter.
+	 * @param count
+	 *            the number of leaf entries below the child. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void setChildCount(BTIndexPage page, int slot, int count)
+			throws IOException {
+		if (slot < 0) {
+			page.setNextPage(new PageId(count));
+			return;
+		}
+		int end = page.getSlotOffset(slot) + page.getSlotLength(slot);
+		Convert.setIntValue(count, end - 8, page.getpage());
+	}
+
+	/**
+	 * The number of leaf entries below an index page of a counted index.
+	 *
+	 * @param page
+	 *            the index page. Input parameter.
+	 * @return the sum of the counts of its children
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int entryCount(BTIndexPage page) throws IOException {
+		int count = 0;
+		for (int slot = -1; slot < page.getSlotCnt(); slot++)
+			count += childCount(page, slot);
+		return count;
+	}
+
+	/**
+	 * Find the slot of the leaf entry <key, rid>.
+	 *
+	 * @param page
+	 *            the leaf page. Input parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @return the slot of the entry, or -1 if the page does not hold it
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int findEntry(BTLeafPage page, KeyClass key, RID rid)
+			throws KeyNotMatchException, IOException {
+		byte[] data = page.getpage();
+		for (int slot = lowerBound(page, key); slot < page.getSlotCnt()
+				&& compareKey(page, slot, key) == 0; slot++) {
+			int end = page.getSlotOffset(slot) + page.getSlotLength(slot);
+			if (Convert.getIntValue(end - 8, data) == rid.slotNo
+					&& Convert.getIntValue(end - 4, data) == rid.pageNo.pid)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Insert a record that is known to fit into the given slot of a sorted
+	 * page, shifting the slots behind it. A sorted insert would put the
+	 * record behind all records with an equal key.
+	 *
+	 * @param page
+	 *            the sorted page. Input and output parameter.
+	 * @param slot
+	 *            the slot the record gets. Input parameter.
+	 * @param record
+	 *            the record. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void insertRecordAt(BTSortedPage page, int slot, byte[] record)
+			throws IOException {
+		int last = page.insertRecord(record).slotNo;
+		short length = page.getSlotLength(last);
+		short offset = page.getSlotOffset(last);
+		for (int i = last; i > slot; i--)
+			page.setSlot(i, page.getSlotLength(i - 1), page.getSlotOffset(i - 1));
+		page.setSlot(slot, length, offset);
+	}
+
+	/**
+	 * Replace the record in a slot of a sorted page by one that is known to
+	 * fit in its place, and pack the records of the page again.
+	 *
+	 * @param page
+	 *            the sorted page. Input and output parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @param record
+	 *            the new record. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void replaceRecord(BTSortedPage page, int slot, byte[] record)
+			throws IOException {
+		byte[] data = page.getpage();
+		int count = page.getSlotCnt();
+		byte[] records = new byte[MAX_SPACE];
+		int usedPtr = MAX_SPACE;
+		for (int i = 0; i < count; i++) {
+			int length = i == slot ? record.length : page.getSlotLength(i);
+			usedPtr -= length;
+			if (i == slot)
+				System.arraycopy(record, 0, records, usedPtr, length);
+			else
+				System.arraycopy(data, page.getSlotOffset(i), records, usedPtr,
+						length);
+			page.setSlot(i, length, usedPtr);
+		}
+		System.arraycopy(records, usedPtr, data, usedPtr, MAX_SPACE - usedPtr);
+		setRecordArea(data, count, usedPtr);
+	}
+
+	/**
+	 * Write the header fields of a page whose records are packed from
+	 * `usedPtr' up.
+	 *
+	 * @param data
+	 *            the page. Output parameter.
+	 * @param slotCount
+	 *            the number of slots. Input parameter.
+	 * @param usedPtr
+	 *            the offset of the lowest record. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void setRecordArea(byte[] data, int slotCount, int usedPtr)
+			throws IOException {
+		Convert.setShortValue((short) slotCount, HFPage.SLOT_CNT, data);
+		Convert.setShortValue((short) usedPtr, HFPage.USED_PTR, data);
+		Convert.setShortValue((short) (usedPtr - HFPage.DPFIXED - slotCount
+				* HFPage.SIZE_OF_SLOT), HFPage.FREE_SPACE, data);
+	}
+}
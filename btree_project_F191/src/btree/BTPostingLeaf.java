@@ -0,0 +1,628 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTPostingLeaf implements the leaf page encoding of LeafFormat.POSTING. A
+ * leaf holds one record per key: the key, followed by the rids of all its
+ * entries in rid order, each written like the rid of a plain entry. A key
+ * with one entry is therefore stored just like in a plain leaf, and the
+ * records sort and are searched like plain ones; only the rids are read
+ * differently.
+ *
+ * A record does not grow beyond MAX_RECORD bytes. The rids of a key with
+ * more entries go to a chain of overflow pages, whose only record holds up
+ * to PAGE_RIDS rids in rid order, and the leaf record keeps the key and a
+ * rid with the slot number OVERFLOW and the first of the pages. The
+ * overflow pages of a key are guarded by the latch of its leaf (see
+ * BTLatches).
+ */
+class BTPostingLeaf implements GlobalConst {
+
+	// the longest record that holds its rids itself; a leaf holds at least
+	// four, so either half of a split leaf has room for one to grow
+	final static int MAX_RECORD = (MAX_SPACE - HFPage.DPFIXED) / 4;
+
+	// rids of an overflow page
+	private final static int PAGE_RIDS = (MAX_SPACE - HFPage.DPFIXED - HFPage.SIZE_OF_SLOT) / 8;
+
+	// the slot number of the rid that points to the overflow pages
+	private final static int OVERFLOW = -1;
+
+	// what removeFromChain found
+	private final static int NOT_FOUND = 0;
+	private final static int REMOVED = 1;
+	private final static int SHORT = 2;
+
+	/**
+	 * The rids of a key, as read from its record. A list is used again for
+	 * key after key, so reading it allocates nothing once it is large
+	 * enough.
+	 */
+	static class Rids {
+		// the rids in rid order, see pack
+		private long[] rids = new long[16];
+		private int size;
+
+		/**
+		 * @return the number of rids
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Copy a rid.
+		 *
+		 * @param i
+		 *            the position of the rid. Input parameter.
+		 * @param rid
+		 *            the rid. Output parameter.
+		 */
+		void get(int i, RID rid) {
+			rid.pageNo.pid = (int) (rids[i] >> 32);
+			rid.slotNo = (int) rids[i];
+		}
+
+		/**
+		 * Add a rid at the end; sort puts them in rid order.
+		 *
+		 * @param rid
+		 *            the rid. Input parameter.
+		 */
+		void add(RID rid) {
+			insert(size, pack(rid.pageNo.pid, rid.slotNo));
+		}
+
+		void sort() {
+			Arrays.sort(rids, 0, size);
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		/**
+		 * @param rid
+		 *            a rid. Input parameter.
+		 * @return the first position whose rid is not less than `rid'
+		 */
+		int lowerBound(RID rid) {
+			return search(pack(rid.pageNo.pid, rid.slotNo), false);
+		}
+
+		private void insert(int i, long rid) {
+			if (size == rids.length)
+				rids = Arrays.copyOf(rids, 2 * size);
+			System.arraycopy(rids, i, rids, i + 1, size - i);
+			rids[i] = rid;
+			size++;
+		}
+
+		private void remove(int i) {
+			System.arraycopy(rids, i + 1, rids, i, size - i - 1);
+			size--;
+		}
+
+		/*
+		 * The first position whose rid is not less than `rid', or greater
+		 * if `after' is set.
+		 */
+		private int search(long rid, boolean after) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (rids[middle] < rid || (after && rids[middle] == rid))
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Read the rids of the record in a slot, in rid order.
+	 *
+	 * @param data
+	 *            the posting leaf, pinned and latched. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @param rids
+	 *            the rids are added to it. Output parameter.
+	 * @exception PinPageException
+	 *                error when pin an overflow page
+	 * @exception UnpinPageException
+	 *                error when unpin an overflow page
+	 */
+	static void read(byte[] data, int slot, int keyType, Rids rids)
+			throws PinPageException, UnpinPageException {
+		int offset = BTIntPage.slotOffset(data, slot);
+		int ridsAt = offset + keyLength(data, offset, keyType);
+		int end = offset + BTIntPage.slotLength(data, slot);
+		if (BTIntPage.getInt(data, ridsAt) == OVERFLOW)
+			readChain(BTIntPage.getInt(data, ridsAt + 4), rids);
+		else
+			for (int at = ridsAt; at < end; at += 8)
+				rids.insert(rids.size, ridAt(data, at));
+	}
+
+	/**
+	 * Read the rids of the record in a slot into a list, in rid order.
+	 *
+	 * @param data
+	 *            the posting leaf, pinned and latched. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @param list
+	 *            the rids are added to it. Output parameter.
+	 * @exception PinPageException
+	 *                error when pin an overflow page
+	 * @exception UnpinPageException
+	 *                error when unpin an overflow page
+	 */
+	static void read(byte[] data, int slot, int keyType, List<RID> list)
+			throws PinPageException, UnpinPageException {
+		Rids rids = new Rids();
+		read(data, slot, keyType, rids);
+		for (int i = 0; i < rids.size(); i++) {
+			RID rid = new RID();
+			rids.get(i, rid);
+			list.add(rid);
+		}
+	}
+
+	/**
+	 * Add <key, rid> to the record of the key, or as a new record. A record
+	 * that would grow beyond MAX_RECORD moves its rids to overflow pages.
+	 *
+	 * @param page
+	 *            the posting leaf, latched exclusive. Input and output
+	 *            parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @return false if the page has no room for the entry
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception ConstructPageException
+	 *                error when allocate an overflow page
+	 * @exception PinPageException
+	 *                error when pin an overflow page
+	 * @exception UnpinPageException
+	 *                error when unpin an overflow page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static boolean insert(BTLeafPage page, KeyClass key, RID rid, int keyType)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		int slot = BTPageOps.lowerBound(page, key);
+		if (slot == page.getSlotCnt()
+				|| BTPageOps.compareKey(page, slot, key) != 0) {
+			byte[] record = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+			if (page.available_space() < record.length)
+				return false;
+			BTPageOps.insertRecordAt(page, slot, record);
+			return true;
+		}
+
+		byte[] data = page.getpage();
+		long wanted = pack(rid.pageNo.pid, rid.slotNo);
+		int offset = page.getSlotOffset(slot);
+		int length = page.getSlotLength(slot);
+		int keyLength = keyLength(data, offset, keyType);
+		if (BTIntPage.getInt(data, offset + keyLength) == OVERFLOW) {
+			addToChain(BTIntPage.getInt(data, offset + keyLength + 4), wanted,
+					keyType);
+			return true;
+		}
+
+		Rids rids = new Rids();
+		read(data, slot, keyType, rids);
+		rids.insert(rids.search(wanted, true), wanted);
+		byte[] record;
+		if (keyLength + 8 * rids.size() <= MAX_RECORD)
+			record = record(data, offset, keyLength, rids);
+		else {
+			record = Arrays.copyOfRange(data, offset, offset + keyLength + 8);
+			BTIntPage.setInt(record, keyLength, OVERFLOW);
+			BTIntPage.setInt(record, keyLength + 4, newChain(rids, keyType));
+		}
+		if (page.available_space() < record.length - length)
+			return false;
+		BTPageOps.replaceRecord(page, slot, record);
+		return true;
+	}
+
+	/**
+	 * Take <key, rid> out of the record of the key. The record goes once its
+	 * last rid goes, and the rids come back from the overflow pages once
+	 * there are few left.
+	 *
+	 * @param page
+	 *            the posting leaf, latched exclusive. Input and output
+	 *            parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @return false if the page does not hold the entry
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception DeleteRecException
+	 *                error when delete the record
+	 * @exception PinPageException
+	 *                error when pin an overflow page
+	 * @exception UnpinPageException
+	 *                error when unpin an overflow page
+	 * @exception FreePageException
+	 *                error when free an overflow page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static boolean delete(BTLeafPage page, KeyClass key, RID rid, int keyType)
+			throws KeyNotMatchException, DeleteRecException, PinPageException,
+			UnpinPageException, FreePageException, IOException {
+		int slot = BTPageOps.lowerBound(page, key);
+		if (slot == page.getSlotCnt()
+				|| BTPageOps.compareKey(page, slot, key) != 0)
+			return false;
+
+		byte[] data = page.getpage();
+		long wanted = pack(rid.pageNo.pid, rid.slotNo);
+		int offset = page.getSlotOffset(slot);
+		int length = page.getSlotLength(slot);
+		int keyLength = keyLength(data, offset, keyType);
+		Rids rids = new Rids();
+		int first = INVALID_PAGE;
+		if (BTIntPage.getInt(data, offset + keyLength) == OVERFLOW) {
+			first = BTIntPage.getInt(data, offset + keyLength + 4);
+			int found = removeFromChain(first, wanted);
+			if (found != SHORT)
+				return found == REMOVED;
+			readChain(first, rids);
+		} else {
+			read(data, slot, keyType, rids);
+			int i = rids.search(wanted, false);
+			if (i == rids.size() || rids.rids[i] != wanted)
+				return false;
+			rids.remove(i);
+		}
+
+		if (rids.size() == 0)
+			page.deleteSortedRecord(new RID(page.getCurPage(), slot));
+		else {
+			byte[] record = record(data, offset, keyLength, rids);
+			// the rids stay on their page if the leaf has no room for them
+			if (first != INVALID_PAGE
+					&& page.available_space() < record.length - length)
+				return true;
+			BTPageOps.replaceRecord(page, slot, record);
+		}
+		if (first != INVALID_PAGE)
+			freeChain(first);
+		return true;
+	}
+
+	/**
+	 * The record a bulk load writes for a key: the key and its rids, or the
+	 * key and the first of the overflow pages the rids are written to.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param rids
+	 *            the rids of the key, at least one. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @return the record
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception ConstructPageException
+	 *                error when allocate an overflow page
+	 * @exception UnpinPageException
+	 *                error when unpin an overflow page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static byte[] record(KeyClass key, Rids rids, int keyType)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, UnpinPageException,
+			IOException {
+		rids.sort();
+		RID rid = new RID();
+		rids.get(0, rid);
+		byte[] entry = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+		int keyLength = entry.length - 8;
+		if (keyLength + 8 * rids.size() <= MAX_RECORD)
+			return record(entry, 0, keyLength, rids);
+		BTIntPage.setInt(entry, keyLength, OVERFLOW);
+		BTIntPage.setInt(entry, keyLength + 4, newChain(rids, keyType));
+		return entry;
+	}
+
+	/**
+	 * Free the overflow pages of a leaf, e.g. of an index that is
+	 * destroyed.
+	 *
+	 * @param data
+	 *            the posting leaf. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	static void freeOverflow(byte[] data, int keyType)
+			throws PinPageException, UnpinPageException, FreePageException {
+		for (int slot = 0; slot < BTIntPage.slotCount(data); slot++) {
+			int ridsAt = BTIntPage.slotOffset(data, slot)
+					+ keyLength(data, BTIntPage.slotOffset(data, slot), keyType);
+			if (BTIntPage.getInt(data, ridsAt) == OVERFLOW)
+				freeChain(BTIntPage.getInt(data, ridsAt + 4));
+		}
+	}
+
+	/*
+	 * A record of the key at `offset' of `data' with the given rids.
+	 */
+	private static byte[] record(byte[] data, int offset, int keyLength,
+			Rids rids) {
+		byte[] record = new byte[keyLength + 8 * rids.size()];
+		System.arraycopy(data, offset, record, 0, keyLength);
+		for (int i = 0; i < rids.size(); i++)
+			putRid(record, keyLength + 8 * i, rids.rids[i]);
+		return record;
+	}
+
+	/*
+	 * Write the rids to a new chain of overflow pages, the last one first so
+	 * that each page is linked to the next as it is made, and return the
+	 * first page. The pages are not reachable before the leaf record points
+	 * to them.
+	 */
+	private static int newChain(Rids rids, int keyType)
+			throws ConstructPageException, UnpinPageException, IOException {
+		int next = INVALID_PAGE;
+		for (int end = rids.size(); end > 0; end -= PAGE_RIDS)
+			next = newPage(rids, Math.max(0, end - PAGE_RIDS), end, next,
+					keyType);
+		return next;
+	}
+
+	private static int newPage(Rids rids, int from, int to, int next,
+			int keyType) throws ConstructPageException, UnpinPageException,
+			IOException {
+		BTSortedPage page;
+		synchronized (BTBuffers.diskLock()) {
+			page = new BTSortedPage(keyType);
+		}
+		int pid = page.getCurPage().pid;
+		BTLatches.setFreed(pid, false);
+		page.setNextPage(new PageId(next));
+		setRids(page.getpage(), rids, from, to);
+		unpinPage(pid, true);
+		return pid;
+	}
+
+	/*
+	 * Add a rid to the page of the chain whose range it falls into; a full
+	 * page is split, and its upper half moves to a new page behind it.
+	 */
+	private static void addToChain(int first, long rid, int keyType)
+			throws ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		Rids rids = new Rids();
+		for (int pid = first;;) {
+			Page page = pinPage(pid);
+			byte[] data = page.getpage();
+			int next = BTIntPage.nextPage(data);
+			rids.clear();
+			readPage(data, rids);
+			if (next != INVALID_PAGE && rids.size() > 0
+					&& rid >= rids.rids[rids.size() - 1]) {
+				unpinPage(pid, false);
+				pid = next;
+				continue;
+			}
+			rids.insert(rids.search(rid, true), rid);
+			if (rids.size() <= PAGE_RIDS)
+				setRids(data, rids, 0, rids.size());
+			else {
+				int half = rids.size() / 2;
+				int newPid = newPage(rids, half, rids.size(), next, keyType);
+				setRids(data, rids, 0, half);
+				new HFPage(page).setNextPage(new PageId(newPid));
+			}
+			unpinPage(pid, true);
+			return;
+		}
+	}
+
+	/*
+	 * Take a rid out of the chain. A page that is left empty goes; the first
+	 * page takes over the rids of the second one instead, so the leaf record
+	 * keeps pointing to it. Returns NOT_FOUND, REMOVED, or SHORT if the first
+	 * page is the only one now and the rids left fit in half a record.
+	 */
+	private static int removeFromChain(int first, long rid)
+			throws PinPageException, UnpinPageException, FreePageException,
+			IOException {
+		Rids rids = new Rids();
+		int prev = INVALID_PAGE;
+		for (int pid = first; pid != INVALID_PAGE;) {
+			Page page = pinPage(pid);
+			byte[] data = page.getpage();
+			int next = BTIntPage.nextPage(data);
+			rids.clear();
+			readPage(data, rids);
+			int i = rids.search(rid, false);
+			if (i == rids.size() || rids.rids[i] != rid) {
+				unpinPage(pid, false);
+				if (i < rids.size())
+					return NOT_FOUND; // the rids behind are all greater
+				prev = pid;
+				pid = next;
+				continue;
+			}
+
+			rids.remove(i);
+			if (rids.size() > 0 || (prev == INVALID_PAGE && next == INVALID_PAGE)) {
+				setRids(data, rids, 0, rids.size());
+				unpinPage(pid, true);
+			} else if (prev != INVALID_PAGE) {
+				unpinPage(pid, false);
+				Page prevPage = pinPage(prev);
+				new HFPage(prevPage).setNextPage(new PageId(next));
+				unpinPage(prev, true);
+				freePage(pid);
+			} else {
+				Page nextPage = pinPage(next);
+				readPage(nextPage.getpage(), rids);
+				int afterNext = BTIntPage.nextPage(nextPage.getpage());
+				unpinPage(next, false);
+				setRids(data, rids, 0, rids.size());
+				new HFPage(page).setNextPage(new PageId(afterNext));
+				unpinPage(pid, true);
+				freePage(next);
+				next = afterNext;
+			}
+			if (pid == first && next == INVALID_PAGE
+					&& 8 * rids.size() <= MAX_RECORD / 2)
+				return SHORT;
+			return REMOVED;
+		}
+		return NOT_FOUND;
+	}
+
+	private static void readChain(int pid, Rids rids) throws PinPageException,
+			UnpinPageException {
+		while (pid != INVALID_PAGE) {
+			byte[] data = pinPage(pid).getpage();
+			readPage(data, rids);
+			int next = BTIntPage.nextPage(data);
+			unpinPage(pid, false);
+			pid = next;
+		}
+	}
+
+	private static void freeChain(int pid) throws PinPageException,
+			UnpinPageException, FreePageException {
+		while (pid != INVALID_PAGE) {
+			int next = BTIntPage.nextPage(pinPage(pid).getpage());
+			unpinPage(pid, false);
+			freePage(pid);
+			pid = next;
+		}
+	}
+
+	/*
+	 * The rids of an overflow page are its only record.
+	 */
+	private static void readPage(byte[] data, Rids rids) {
+		int offset = BTIntPage.slotOffset(data, 0);
+		int end = offset + BTIntPage.slotLength(data, 0);
+		for (int at = offset; at < end; at += 8)
+			rids.insert(rids.size, ridAt(data, at));
+	}
+
+	private static void setRids(byte[] data, Rids rids, int from, int to)
+			throws IOException {
+		int usedPtr = MAX_SPACE - 8 * (to - from);
+		for (int i = from; i < to; i++)
+			putRid(data, usedPtr + 8 * (i - from), rids.rids[i]);
+		BTIntPage.setShort(data, HFPage.DPFIXED, 8 * (to - from));
+		BTIntPage.setShort(data, HFPage.DPFIXED + 2, usedPtr);
+		BTPageOps.setRecordArea(data, 1, usedPtr);
+	}
+
+	/*
+	 * Bytes of the key of the record at `offset': an integer, or a string
+	 * as written by Convert.setStrValue, that is, behind its length.
+	 */
+	private static int keyLength(byte[] data, int offset, int keyType) {
+		if (keyType == AttrType.attrInteger)
+			return 4;
+		return 2 + (BTIntPage.getShort(data, offset) & 0xffff);
+	}
+
+	/*
+	 * A rid as a long that sorts in rid order: the page id, then the slot
+	 * number.
+	 */
+	private static long pack(int pid, int slotNo) {
+		return ((long) pid << 32) | (slotNo & 0xffffffffL);
+	}
+
+	/*
+	 * A rid is written as its slot number and its page id, as in a leaf
+	 * entry.
+	 */
+	private static long ridAt(byte[] data, int offset) {
+		return pack(BTIntPage.getInt(data, offset + 4), BTIntPage.getInt(data,
+				offset));
+	}
+
+	private static void putRid(byte[] data, int offset, long rid) {
+		BTIntPage.setInt(data, offset, (int) rid);
+		BTIntPage.setInt(data, offset + 4, (int) (rid >> 32));
+	}
+
+	private static Page pinPage(int pid) throws PinPageException {
+		Page page = new Page();
+		try {
+			BTBuffers.pinPage(new PageId(pid), page);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		return page;
+	}
+
+	private static void unpinPage(int pid, boolean dirty)
+			throws UnpinPageException {
+		try {
+			BTBuffers.unpinPage(new PageId(pid), dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	private static void freePage(int pid) throws FreePageException {
+		BTLatches.setFreed(pid, true);
+		try {
+			BTBuffers.freePage(new PageId(pid));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+}
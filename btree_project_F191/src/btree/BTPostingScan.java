@@ -0,0 +1,82 @@
+package btree;
+
+import global.*;
+
+/**
+ * BTPostingScan is the scan of an index with posting leaves (see
+ * LeafFormat.POSTING). A leaf record holds the rids of all entries of its
+ * key, so the scan moves from record to record like a plain scan moves from
+ * entry to entry, and returns the entries of a record one rid at a time, in
+ * rid order. The rids are read when the scan reaches the record, while its
+ * leaf is latched.
+ */
+public class BTPostingScan extends BTReadAheadScan {
+
+	private final BTPostingLeaf.Rids rids = new BTPostingLeaf.Rids();
+	// the key of the current record, and the position of the next rid
+	private KeyClass key;
+	private int next;
+	// the rid deleted last; the scan goes on behind it if its key is left
+	private RID resume;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (leafPage == null)
+			return null;
+
+		while (next == rids.size()) {
+			KeyDataEntry entry = super.get_next();
+			if (entry == null)
+				return null;
+			try {
+				boolean resumed = resume != null
+						&& BT.keyCompare(entry.key, key) == 0;
+				key = entry.key;
+				rids.clear();
+				BTPostingLeaf.read(leafPage.getpage(), curRid.slotNo, keyType,
+						rids);
+				next = resumed ? rids.lowerBound(resume) : 0;
+				resume = null;
+			} catch (Exception e) {
+				throw new ScanIteratorException(e, "posting scan failed");
+			}
+		}
+		RID rid = new RID();
+		rids.get(next++, rid);
+		return new KeyDataEntry(key, rid);
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (deletedcurrent || !didfirst)
+			return;
+
+		try {
+			RID rid = new RID();
+			rids.get(next - 1, rid);
+			bfile.releasePage(leafPage);
+			leafPage = null;
+			bfile.Delete(key, rid);
+			leafPage = bfile.findRunStart(key, curRid);
+			resume = rid;
+			rids.clear();
+			next = 0;
+			deletedcurrent = true;
+		} catch (Exception e) {
+			throw new ScanDeleteException(e, "delete current failed");
+		}
+	}
+}
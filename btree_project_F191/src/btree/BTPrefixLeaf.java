@@ -0,0 +1,401 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTPrefixLeaf implements the leaf page encoding of LeafFormat.PREFIX. The
+ * prefix that all keys of a leaf share is stored once, at the end of the
+ * page: the string as written by Convert.setStrValue, followed by the number
+ * of bytes it takes. The records grow down from below it as usual and hold
+ * the rest of their key (a StringKey) and the rid. Since every key of a page
+ * starts with the prefix, the stored keys sort like the whole keys, so the
+ * page can be searched like a plain leaf.
+ */
+class BTPrefixLeaf implements GlobalConst {
+
+	// bytes of a record besides its key: the rid, plus the slot
+	private final static int ENTRY_OVERHEAD = 8 + HFPage.SIZE_OF_SLOT;
+
+	/**
+	 * Make a new, empty leaf a prefix compressed leaf.
+	 *
+	 * @param page
+	 *            the empty leaf. Input and output parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void init(BTLeafPage page) throws IOException {
+		setPrefix(page.getpage(), "");
+		BTPageOps.setRecordArea(page.getpage(), 0, top(page));
+	}
+
+	/**
+	 * @param page
+	 *            a prefix compressed leaf. Input parameter.
+	 * @return the prefix all keys of the page start with
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static String prefix(BTSortedPage page) throws IOException {
+		byte[] data = page.getpage();
+		int length = Convert.getShortValue(MAX_SPACE - 2, data);
+		return Convert.getStrValue(MAX_SPACE - 2 - length, data, length);
+	}
+
+	/**
+	 * @param page
+	 *            a prefix compressed leaf. Input parameter.
+	 * @return the offset the record area ends at
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int top(BTSortedPage page) throws IOException {
+		return MAX_SPACE - 2 - Convert.getShortValue(MAX_SPACE - 2, page
+				.getpage());
+	}
+
+	/**
+	 * The whole key of an entry read from a page.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input parameter.
+	 * @param stored
+	 *            the key as stored in the page. Input parameter.
+	 * @return the whole key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static KeyClass wholeKey(BTSortedPage page, KeyClass stored)
+			throws IOException {
+		return new StringKey(prefix(page) + ((StringKey) stored).getKey());
+	}
+
+	/**
+	 * The whole key in a slot.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input parameter.
+	 * @param slot
+	 *            the slot. Input parameter.
+	 * @return the whole key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static KeyClass keyAt(BTSortedPage page, int slot) throws IOException {
+		return new StringKey(prefix(page)
+				+ Convert.getStrValue(page.getSlotOffset(slot), page
+						.getpage(), page.getSlotLength(slot)));
+	}
+
+	/**
+	 * All entries of a page, with whole keys.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input parameter.
+	 * @return the entries in slot order
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static List<KeyDataEntry> entries(BTSortedPage page)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		String prefix = prefix(page);
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		for (int i = 0; i < page.getSlotCnt(); i++) {
+			KeyDataEntry entry = BT.getEntryFromBytes(page.getpage(), page
+					.getSlotOffset(i), page.getSlotLength(i),
+					AttrType.attrString, NodeType.LEAF);
+			entry.key = new StringKey(prefix + ((StringKey) entry.key).getKey());
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Binary search for the first slot whose key is not less than `key'.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot, or the number of slots if all keys are less
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int lowerBound(BTSortedPage page, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		return search(page, key, false);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than `key'.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot, or the number of slots if no key is greater
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int upperBound(BTSortedPage page, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		return search(page, key, true);
+	}
+
+	private static int search(BTSortedPage page, KeyClass key, boolean after)
+			throws KeyNotMatchException, IOException {
+		String prefix = prefix(page);
+		String wanted = stringOf(key);
+		if (wanted.startsWith(prefix)) {
+			KeyClass rest = new StringKey(wanted.substring(prefix.length()));
+			return after ? BTPageOps.upperBound(page, rest) : BTPageOps
+					.lowerBound(page, rest);
+		}
+		// a key without the prefix sorts before or after all keys of the page
+		return wanted.compareTo(prefix) < 0 ? 0 : page.getSlotCnt();
+	}
+
+	/**
+	 * Find the slot of the entry <key, rid>.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @return the slot of the entry, or -1 if the page does not hold it
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int findEntry(BTLeafPage page, KeyClass key, RID rid)
+			throws KeyNotMatchException, IOException {
+		String prefix = prefix(page);
+		String wanted = stringOf(key);
+		if (!wanted.startsWith(prefix))
+			return -1;
+		return BTPageOps.findEntry(page, new StringKey(wanted
+				.substring(prefix.length())), rid);
+	}
+
+	/**
+	 * Insert <key, rid> behind the entries with an equal key. If the key does
+	 * not start with the prefix of the page, the page is rewritten with a
+	 * shorter prefix.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input and output parameter.
+	 * @param key
+	 *            the key of the entry. Input parameter.
+	 * @param rid
+	 *            the rid of the entry. Input parameter.
+	 * @return false if the page has no room for the entry
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static boolean insert(BTLeafPage page, KeyClass key, RID rid)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		String prefix = prefix(page);
+		String wanted = stringOf(key);
+		if (wanted.startsWith(prefix)) {
+			KeyClass rest = new StringKey(wanted.substring(prefix.length()));
+			byte[] record = BT.getBytesFromEntry(new KeyDataEntry(rest, rid));
+			if (page.available_space() < record.length)
+				return false;
+			BTPageOps.insertRecordAt(page, BTPageOps.upperBound(page, rest),
+					record);
+			return true;
+		}
+
+		List<KeyDataEntry> entries = entries(page);
+		entries.add(upperBound(page, key), new KeyDataEntry(key, rid));
+		if (!fits(entries))
+			return false;
+		write(page, entries);
+		return true;
+	}
+
+	/**
+	 * Does a page hold all the entries, stored with the prefix of the first
+	 * and the last key?
+	 *
+	 * @param entries
+	 *            sorted leaf entries with whole keys. Input parameter.
+	 * @return true if they fit in one page
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static boolean fits(List<KeyDataEntry> entries)
+			throws KeyNotMatchException, IOException {
+		return size(entries) <= MAX_SPACE - HFPage.DPFIXED;
+	}
+
+	/**
+	 * Rewrite a page with the given entries, stored with the prefix of the
+	 * first and the last key, which is the prefix all of them share.
+	 *
+	 * @param page
+	 *            the prefix compressed leaf. Input and output parameter.
+	 * @param entries
+	 *            sorted leaf entries with whole keys, that fit. Input
+	 *            parameter.
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static void write(BTLeafPage page, List<KeyDataEntry> entries)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		String prefix = commonPrefix(entries, 0, entries.size());
+		byte[] data = page.getpage();
+		setPrefix(data, prefix);
+		int usedPtr = top(page);
+		for (int i = 0; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			byte[] record = BT.getBytesFromEntry(new KeyDataEntry(new StringKey(
+					stringOf(entry.key).substring(prefix.length())),
+					((LeafData) entry.data).getData()));
+			usedPtr -= record.length;
+			System.arraycopy(record, 0, data, usedPtr, record.length);
+			page.setSlot(i, record.length, usedPtr);
+		}
+		BTPageOps.setRecordArea(data, entries.size(), usedPtr);
+	}
+
+	/**
+	 * Choose how many of the entries go to the left of two pages so that
+	 * both fit and hold about the same number of bytes.
+	 *
+	 * @param entries
+	 *            sorted leaf entries with whole keys. Input parameter.
+	 * @return the number of entries for the left page, or -1 if there is no
+	 *         such split
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int balancedSplit(List<KeyDataEntry> entries)
+			throws KeyNotMatchException, IOException {
+		int best = -1;
+		int bestDifference = Integer.MAX_VALUE;
+		for (int count = 1; count < entries.size(); count++) {
+			int left = size(entries, 0, count);
+			int right = size(entries, count, entries.size());
+			if (left > MAX_SPACE - HFPage.DPFIXED
+					|| right > MAX_SPACE - HFPage.DPFIXED)
+				continue;
+			if (Math.abs(left - right) < bestDifference) {
+				best = count;
+				bestDifference = Math.abs(left - right);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Bytes a page needs for the entries, with the slots and the prefix.
+	 *
+	 * @param entries
+	 *            sorted leaf entries with whole keys. Input parameter.
+	 * @return the bytes the entries take in a page
+	 * @exception KeyNotMatchException
+	 *                key is not a string key
+	 */
+	static int size(List<KeyDataEntry> entries) throws KeyNotMatchException {
+		return size(entries, 0, entries.size());
+	}
+
+	/*
+	 * Bytes a page needs for entries [from, to): the prefix area, and per
+	 * entry the rest of its key, its rid and its slot.
+	 */
+	private static int size(List<KeyDataEntry> entries, int from, int to)
+			throws KeyNotMatchException {
+		int prefixLength = utfLength(commonPrefix(entries, from, to));
+		int size = 4 + prefixLength;
+		for (int i = from; i < to; i++)
+			size += 2 + utfLength(stringOf(entries.get(i).key)) - prefixLength
+					+ ENTRY_OVERHEAD;
+		return size;
+	}
+
+	private static String commonPrefix(List<KeyDataEntry> entries, int from,
+			int to) throws KeyNotMatchException {
+		if (from == to)
+			return "";
+		String first = stringOf(entries.get(from).key);
+		String last = stringOf(entries.get(to - 1).key);
+		int length = 0;
+		while (length < first.length() && length < last.length()
+				&& first.charAt(length) == last.charAt(length))
+			length++;
+		return first.substring(0, length);
+	}
+
+	/*
+	 * Store the prefix at the end of the page. The records must be rewritten
+	 * afterwards, as the prefix area may now overlap them.
+	 */
+	private static void setPrefix(byte[] data, String prefix)
+			throws IOException {
+		int length = 2 + utfLength(prefix);
+		Convert.setStrValue(prefix, MAX_SPACE - 2 - length, data);
+		Convert.setShortValue((short) length, MAX_SPACE - 2, data);
+	}
+
+	/*
+	 * Bytes of the modified UTF-8 form of a string, as DataOutput.writeUTF
+	 * writes it (without its length).
+	 */
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				length++;
+			else if (c <= 0x07FF)
+				length += 2;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	private static String stringOf(KeyClass key) throws KeyNotMatchException {
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "prefix leaves need string keys");
+		return ((StringKey) key).getKey();
+	}
+}
@@ -0,0 +1,65 @@
+package btree;
+
+/**
+ * BTPrefixScan is the scan of an index with prefix compressed leaves (see
+ * LeafFormat.PREFIX). The leaf entries hold only the part of their keys
+ * behind the prefix of their page, so the entries are returned with their
+ * whole keys, and the end of the range is checked against whole keys.
+ */
+public class BTPrefixScan extends BTReadAheadScan {
+
+	// the key where the scan stops; endkey of BTFileScan stays null, as it
+	// would be compared with stored keys
+	KeyClass hiKey;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry, with its whole key
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry = super.get_next();
+		if (entry == null)
+			return null;
+
+		try {
+			entry.key = BTPrefixLeaf.wholeKey(leafPage, entry.key);
+			if (hiKey != null && BT.keyCompare(entry.key, hiKey) > 0) {
+				// went past right end of scan
+				bfile.releasePage(leafPage);
+				leafPage = null;
+				return null;
+			}
+			return entry;
+		} catch (Exception e) {
+			throw new ScanIteratorException(e, "prefix scan failed");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (deletedcurrent || !didfirst)
+			return;
+
+		try {
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			entry.key = BTPrefixLeaf.wholeKey(leafPage, entry.key);
+			bfile.releasePage(leafPage);
+			leafPage = null;
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			leafPage = bfile.findRunStart(entry.key, curRid);
+			deletedcurrent = true;
+		} catch (Exception e) {
+			throw new ScanDeleteException(e, "delete current failed");
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReadAheadScan is the BTFileScan that BTreeFile.new_scan returns. It
+ * watches the scan cross from leaf to leaf and lets a LeafReadAhead read
+ * the leaves in front of it.
+ *
+ * The current leaf stays latched shared (see BTLatches) while the scan is
+ * open, so the scan moves right with latch coupling and gives up its leaf
+ * before it deletes an entry.
+ */
+public class BTReadAheadScan extends BTFileScan {
+
+	private final LeafReadAhead readAhead = new LeafReadAhead();
+	private int lastLeaf = INVALID_PAGE;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (leafPage == null)
+			return null;
+
+		try {
+			KeyDataEntry entry;
+			if (deletedcurrent == didfirst) {
+				didfirst = true;
+				deletedcurrent = false;
+				entry = leafPage.getCurrent(curRid);
+			} else
+				entry = leafPage.getNext(curRid);
+
+			while (entry == null) {
+				// end of page or empty page: have to go right
+				leafPage = bfile.nextLeaf(leafPage, false);
+				if (leafPage == null)
+					return null;
+				entry = leafPage.getFirst(curRid);
+			}
+
+			if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+				// went past right end of scan
+				bfile.releasePage(leafPage);
+				leafPage = null;
+				return null;
+			}
+
+			int leaf = leafPage.getCurPage().pid;
+			if (leaf != lastLeaf) {
+				lastLeaf = leaf;
+				readAhead.crossed(leafPage.getNextPage().pid);
+			}
+			return entry;
+		} catch (Exception e) {
+			throw new ScanIteratorException(e, "scan failed");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (deletedcurrent || !didfirst)
+			return;
+
+		try {
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			bfile.releasePage(leafPage);
+			leafPage = null;
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			leafPage = bfile.findRunStart(entry.key, curRid);
+			deletedcurrent = true;
+		} catch (Exception e) {
+			throw new ScanDeleteException(e, "delete current failed");
+		}
+	}
+
+	/**
+	 * destructor. unpin the current leaf and give up its latch.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			PageId pageno = new PageId(leafPage.getCurPage().pid);
+			BTBuffers.unpinPage(pageno, false);
+			BTLatches.release(pageno.pid);
+		}
+		leafPage = null;
+	}
+}
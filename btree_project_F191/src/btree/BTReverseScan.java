@@ -0,0 +1,233 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTReverseScan scans an index in descending key order. It is created by
+ * BTreeFile.new_reverse_scan, starts at the right-most entry not greater
+ * than the high key and walks the leaves backwards through their prevPage
+ * links until it passes the low key.
+ *
+ * The current leaf stays latched shared (see BTLatches). Leaves are latched
+ * from left to right, so the scan gives up its leaf before it latches the
+ * one to the left; if its leaf changed meanwhile, the scan finds its place
+ * again from the last key it returned, and passes over the entries with
+ * that key whose rids it returned already. Entries inserted meanwhile with
+ * that key may still be returned, but none is returned twice.
+ *
+ * With posting leaves (see LeafFormat.POSTING) the scan returns the rids of
+ * a record from the last to the first, before it moves to the record on the
+ * left.
+ */
+public class BTReverseScan extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	BTLeafPage leafPage;
+	RID curRid;
+	boolean didfirst;
+	boolean deletedcurrent;
+	// the key where the scan stops, null to go all the way left
+	KeyClass lowKey;
+	boolean prefixLeaves;
+	boolean postingLeaves;
+	int keyType;
+	int maxKeysize;
+	// the last key returned, and the rids returned with it
+	private KeyClass lastKey;
+	private final List<RID> returned = new ArrayList<RID>();
+	// the rids of returned entries with lastKey still to pass over after
+	// the scan found its place again, null if it did not search again
+	private List<RID> skip;
+	// the rids of the current posting record and the position of the
+	// current one, -1 if they are not read yet
+	private final BTPostingLeaf.Rids rids = new BTPostingLeaf.Rids();
+	private int ridIndex = -1;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (leafPage == null)
+			return null;
+
+		try {
+			if (didfirst && !deletedcurrent)
+				back();
+			didfirst = true;
+			deletedcurrent = false;
+
+			while (true) {
+				while (curRid.slotNo < 0) {
+					// start of page or empty page: have to go left
+					PageId prevpageno = new PageId(leafPage.getPrevPage().pid);
+					if (prevpageno.pid == INVALID_PAGE) {
+						bfile.releasePage(leafPage);
+						leafPage = null;
+						return null;
+					}
+					BTLeafPage leaf = leafPage;
+					leafPage = null; // given up, even if going left fails
+					leafPage = bfile.latchPrevLeaf(leaf);
+					if (leafPage == null) {
+						// the leaves changed: search again
+						leafPage = bfile.findRunEnd(lastKey, curRid);
+						if (leafPage == null)
+							return null;
+						skip = new ArrayList<RID>(returned);
+					} else {
+						curRid.pageNo = prevpageno;
+						curRid.slotNo = leafPage.getSlotCnt() - 1;
+					}
+				}
+
+				KeyDataEntry entry = current();
+				if (lowKey != null && BT.keyCompare(entry.key, lowKey) < 0) {
+					// went past left end of scan
+					bfile.releasePage(leafPage);
+					leafPage = null;
+					return null;
+				}
+				RID rid = ((LeafData) entry.data).getData();
+				boolean same = lastKey != null
+						&& BT.keyCompare(entry.key, lastKey) == 0;
+				if (same && skip != null && remove(skip, rid)) {
+					// returned before the scan searched again
+					back();
+					continue;
+				}
+				if (!same) {
+					lastKey = entry.key;
+					returned.clear();
+					skip = null;
+				}
+				returned.add(rid);
+				return entry;
+			}
+		} catch (Exception e) {
+			throw new ScanIteratorException(e, "reverse scan failed");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry. The scan
+	 * goes on at the right-most entry not greater than its key.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (deletedcurrent || !didfirst)
+			return;
+
+		try {
+			KeyDataEntry entry = current();
+			bfile.releasePage(leafPage);
+			leafPage = null;
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			leafPage = bfile.findRunEnd(entry.key, curRid);
+			ridIndex = -1;
+			// the entries with its key that were returned before it may
+			// still be on the right
+			returned.remove(returned.size() - 1);
+			skip = new ArrayList<RID>(returned);
+			deletedcurrent = true;
+		} catch (Exception e) {
+			throw new ScanDeleteException(e, "delete current failed");
+		}
+	}
+
+	/*
+	 * The entry at curRid, with its whole key and, on posting leaves, the
+	 * current rid of the record.
+	 */
+	private KeyDataEntry current() throws IteratorException,
+			PinPageException, UnpinPageException, IOException {
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		if (prefixLeaves)
+			entry.key = BTPrefixLeaf.wholeKey(leafPage, entry.key);
+		else if (postingLeaves) {
+			if (ridIndex < 0) {
+				rids.clear();
+				BTPostingLeaf.read(leafPage.getpage(), curRid.slotNo, keyType,
+						rids);
+				ridIndex = rids.size() - 1;
+			}
+			RID rid = new RID();
+			rids.get(ridIndex, rid);
+			entry = new KeyDataEntry(entry.key, rid);
+		}
+		return entry;
+	}
+
+	/*
+	 * Take one occurrence of a rid out of a list. Returns false if the list
+	 * does not hold it.
+	 */
+	private static boolean remove(List<RID> rids, RID rid) {
+		for (int i = 0; i < rids.size(); i++)
+			if (rids.get(i).equals(rid)) {
+				rids.remove(i);
+				return true;
+			}
+		return false;
+	}
+
+	/*
+	 * Step back to the entry on the left: the rid before the current one in
+	 * a posting record, or the slot before.
+	 */
+	private void back() {
+		if (ridIndex > 0)
+			ridIndex--;
+		else {
+			curRid.slotNo--;
+			ridIndex = -1;
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			PageId pageno = new PageId(leafPage.getCurPage().pid);
+			BTBuffers.unpinPage(pageno, false);
+			BTLatches.release(pageno.pid);
+		}
+		leafPage = null;
+	}
+}
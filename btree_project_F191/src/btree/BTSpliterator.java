@@ -0,0 +1,185 @@
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTSpliterator is a Spliterator over the entries of a key range, for
+ * parallel streams of BTreeFile.stream. It splits its range at a separator
+ * key of the index: the separators of the root that fall into the range
+ * first, and those of deeper index pages once the range lies below one
+ * child. Each part then scans its own range from findRunStart on.
+ *
+ * A part copies the entries of one leaf at a time and hands them out
+ * without holding a latch (see BTLatches), as the threads of a parallel
+ * stream take turns on a part. For the next leaf it searches again from
+ * the last key it copied, and passes over the entries with that key it
+ * has copied already.
+ */
+class BTSpliterator implements Spliterator<KeyDataEntry>, GlobalConst {
+
+	private final BTreeFile bfile;
+	// the start of the range, which moves up when the front is split off
+	private KeyClass loKey;
+	// the end of the range, null for no bound; the split off parts end
+	// before their bound, the others at it
+	private final KeyClass hiKey;
+	private final boolean hiInclusive;
+
+	// the last key copied, null before the first leaf is read, and how
+	// many entries with it were copied
+	private KeyClass lastKey;
+	private int seen;
+	private boolean done;
+	private final ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+	private int next;
+
+	BTSpliterator(BTreeFile bfile, KeyClass loKey, KeyClass hiKey,
+			boolean hiInclusive) {
+		this.bfile = bfile;
+		this.loKey = loKey;
+		this.hiKey = hiKey;
+		this.hiInclusive = hiInclusive;
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		while (next == entries.size()) {
+			if (done)
+				return false;
+			entries.clear();
+			next = 0;
+			try {
+				readLeaf();
+			} catch (Exception e) {
+				throw new IllegalStateException("index scan failed", e);
+			}
+		}
+		action.accept(entries.get(next++));
+		return true;
+	}
+
+	/*
+	 * Copy the entries of the range from the next leaf that has any.
+	 */
+	private void readLeaf() throws Exception {
+		RID rid = new RID();
+		BTLeafPage leaf = bfile.findRunStart(lastKey != null ? lastKey : loKey,
+				rid);
+		int slot = rid.slotNo;
+		int skip = seen;
+		while (leaf != null && !done && entries.isEmpty()) {
+			for (; slot < leaf.getSlotCnt() && !done; slot++) {
+				for (KeyDataEntry entry : bfile.leafEntriesAt(leaf, slot)) {
+					if (pastEnd(entry.key)) {
+						done = true;
+						break;
+					}
+					if (skip > 0 && BT.keyCompare(entry.key, lastKey) == 0) {
+						skip--;
+						continue;
+					}
+					skip = 0;
+					entries.add(entry);
+				}
+			}
+			if (!done && entries.isEmpty()) {
+				leaf = bfile.nextLeaf(leaf, false);
+				slot = 0;
+			}
+		}
+		if (leaf == null)
+			done = true;
+		else
+			bfile.releasePage(leaf);
+
+		for (KeyDataEntry entry : entries) {
+			if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)
+				seen++;
+			else {
+				lastKey = entry.key;
+				seen = 1;
+			}
+		}
+	}
+
+	private boolean pastEnd(KeyClass key) throws KeyNotMatchException {
+		if (hiKey == null)
+			return false;
+		int result = BT.keyCompare(key, hiKey);
+		return hiInclusive ? result > 0 : result >= 0;
+	}
+
+	/**
+	 * Split off the front of the range, up to a separator key in the middle
+	 * of the separators in the range. Only a part that has not started yet
+	 * is split.
+	 *
+	 * @return the part for the front of the range, or null
+	 */
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (lastKey != null || done)
+			return null;
+		KeyClass splitKey;
+		try {
+			splitKey = splitKey();
+		} catch (Exception e) {
+			throw new IllegalStateException("index split failed", e);
+		}
+		if (splitKey == null)
+			return null;
+		BTSpliterator front = new BTSpliterator(bfile, loKey, splitKey, false);
+		loKey = splitKey;
+		return front;
+	}
+
+	/*
+	 * A separator key strictly inside the range, found on the highest index
+	 * level that has one, or null.
+	 */
+	private KeyClass splitKey() throws Exception {
+		int keyType = bfile.getHeaderPage().get_keyType();
+		Page page = new Page();
+		PageId pageno = bfile.latchRoot(page, false);
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+
+		while (true) {
+			BTSortedPage sortedPage = new BTSortedPage(page, keyType);
+			if (sortedPage.getType() != NodeType.INDEX) {
+				bfile.releasePage(sortedPage);
+				return null;
+			}
+
+			BTIndexPage indexPage = new BTIndexPage(page, keyType);
+			ArrayList<KeyClass> inside = new ArrayList<KeyClass>();
+			RID rid = new RID();
+			for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+					.getNext(rid)) {
+				if ((loKey == null || BT.keyCompare(entry.key, loKey) > 0)
+						&& !pastEnd(entry.key))
+					inside.add(entry.key);
+			}
+			if (!inside.isEmpty()) {
+				bfile.releasePage(indexPage);
+				return inside.get(inside.size() / 2);
+			}
+
+			// the whole range lies below one child
+			PageId childId = BTPageOps.childAt(indexPage, loKey == null ? -1
+					: BTPageOps.upperBound(indexPage, loKey) - 1);
+			page = bfile.descend(pageno, childId, false);
+			pageno = childId;
+		}
+	}
+
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+}
@@ -8,6 +8,8 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
+import java.util.stream.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -22,8 +24,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
+	// the leaf format is kept as the length of a header slot; its offset
+	// tells files that have it from files created before it existed
+	private final static int LEAF_FORMAT_SLOT = 4;
+	private final static int LEAF_FORMAT_TAG = MAGIC0;
+	// whether index entries count their subtrees, kept the same way
+	private final static int COUNTED_SLOT = 5;
+	// the first page of the message buffer of a buffered index, in two
+	// halves kept the same way
+	private final static int BUFFER_SLOT = 6;
+	private final static int BUFFER_HIGH_SLOT = 7;
+
 	private final static String lineSep = System.getProperty("line.separator");
 
+	// optimistic searches that run into writers this often couple latches
+	private final static int OPTIMISTIC_TRIES = 4;
+
 	private static FileOutputStream fos;
 	private static DataOutputStream trace;
 
@@ -37,7 +53,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception IOException
 	 *                error from the lower layer
 	 */
-	public static void traceFilename(String filename) throws IOException {
+	public static synchronized void traceFilename(String filename)
+			throws IOException {
 
 		fos = new FileOutputStream(filename);
 		trace = new DataOutputStream(fos);
@@ -49,7 +66,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception IOException
 	 *                error from the lower layer
 	 */
-	public static void destroyTrace() throws IOException {
+	public static synchronized void destroyTrace() throws IOException {
 		if (trace != null)
 			trace.close();
 		if (fos != null)
@@ -58,9 +75,51 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		trace = null;
 	}
 
-	private BTreeHeaderPage headerPage;
+	/*
+	 * Write a line to the trace, if there is one. Threads write whole lines.
+	 */
+	private static synchronized void writeTrace(String line)
+			throws IOException {
+		if (trace != null) {
+			trace.writeBytes(line + lineSep);
+			trace.flush();
+		}
+	}
+
+	private volatile BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
+	private volatile SplitPolicy splitPolicy = new HalfSplitPolicy();
+
+	/*
+	 * The right-most leaf and the smallest key that belongs to it (null if
+	 * the leaf is the root), so appends need not descend the tree. It is
+	 * replaced as a whole, by a thread that holds the leaf exclusive; an
+	 * append checks that it is still the same once it holds the leaf.
+	 */
+	private static class RightmostLeaf {
+		final PageId leafId;
+		final KeyClass lowKey;
+
+		RightmostLeaf(PageId leafId, KeyClass lowKey) {
+			this.leafId = leafId;
+			this.lowKey = lowKey;
+		}
+	}
+
+	// null while the leaf is not known
+	private volatile RightmostLeaf rightmost;
+
+	// the page the integer key paths pin, which read it as bytes; one per
+	// thread
+	private final ThreadLocal<Page> intPage = ThreadLocal.withInitial(Page::new);
+	private final ThreadLocal<PageId> intPageId = ThreadLocal
+			.withInitial(PageId::new);
+	// the copy of an index page an optimistic search reads, one per thread
+	private final ThreadLocal<byte[]> pageCopy = ThreadLocal
+			.withInitial(() -> new byte[MINIBASE_PAGESIZE]);
+	// the index pages as optimistic searches decoded them
+	private final BTNodeCache nodeCache = new BTNodeCache();
 
 	/**
 	 * Access method to data member.
@@ -72,19 +131,138 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return headerPage;
 	}
 
+	/*
+	 * The name of the file, by which its changes are logged (see BTLog).
+	 */
+	String fileName() {
+		return dbname;
+	}
+
+	/**
+	 * Access method to the leaf format recorded in the header page.
+	 *
+	 * @return LeafFormat.PLAIN, LeafFormat.PREFIX or LeafFormat.POSTING
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int getLeafFormat() throws IOException {
+		if (headerPage.getSlotOffset(LEAF_FORMAT_SLOT) != LEAF_FORMAT_TAG)
+			return LeafFormat.PLAIN;
+		return headerPage.getSlotLength(LEAF_FORMAT_SLOT);
+	}
+
+	private boolean prefixLeaves() throws IOException {
+		return getLeafFormat() == LeafFormat.PREFIX;
+	}
+
+	boolean postingLeaves() throws IOException {
+		return getLeafFormat() == LeafFormat.POSTING;
+	}
+
+	/**
+	 * Does every index entry of this file count the leaf entries below its
+	 * child? Only such a file supports rank, select and countRange.
+	 *
+	 * @return true if the file was created as a counted index
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean isCounted() throws IOException {
+		return headerPage.getSlotOffset(COUNTED_SLOT) == LEAF_FORMAT_TAG
+				&& headerPage.getSlotLength(COUNTED_SLOT) != 0;
+	}
+
+	/**
+	 * Is this file a buffered index? Its inserts and deletes are kept as
+	 * messages in a buffer of the file, in the order they are made, and
+	 * reach the leaves when the buffer is full: all at once, in key order,
+	 * so a leaf is read and written once for all messages of the batch
+	 * that belong to it. Lookups and scans merge the messages into what
+	 * they find on the leaves (see BTBufferedScan); the other searches
+	 * flush the buffer first. A delete looks the entry up like a lookup
+	 * does, and is only buffered if the entry is there.
+	 *
+	 * @return true if the file was created as a buffered index
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean isBuffered() throws IOException {
+		return headerPage.getSlotOffset(BUFFER_SLOT) == LEAF_FORMAT_TAG;
+	}
+
+	/*
+	 * The message buffer of a buffered index, null for other files.
+	 */
+	private BTMessageBuffer messageBuffer() throws PinPageException,
+			UnpinPageException, ConvertException, IOException {
+		if (!isBuffered())
+			return null;
+		return BTMessageBuffer.get(headerPageId.pid, bufferPage(), headerPage
+				.get_keyType());
+	}
+
+	/*
+	 * messageBuffer for the searches, which throw fewer exceptions.
+	 */
+	private BTMessageBuffer searchBuffer() throws PinPageException,
+			UnpinPageException, IOException {
+		try {
+			return messageBuffer();
+		} catch (ConvertException e) {
+			throw new IOException("reading the buffer failed", e);
+		}
+	}
+
+	private int bufferPage() throws IOException {
+		return (headerPage.getSlotLength(BUFFER_SLOT) & 0xffff)
+				| headerPage.getSlotLength(BUFFER_HIGH_SLOT) << 16;
+	}
+
+	/**
+	 * Set the policy that chooses where full pages are split by insert. The
+	 * policy is not stored in the file; an opened index uses a
+	 * HalfSplitPolicy until another one is set.
+	 *
+	 * @param policy
+	 *            the split policy. Input parameter.
+	 */
+	public void setSplitPolicy(SplitPolicy policy) {
+		if (policy == null)
+			throw new IllegalArgumentException("split policy is null");
+		splitPolicy = policy;
+	}
+
+	/**
+	 * Access method to data member.
+	 *
+	 * @return the policy used to split full pages.
+	 */
+	public SplitPolicy getSplitPolicy() {
+		return splitPolicy;
+	}
+
 	private PageId get_file_entry(String filename) throws GetFileEntryException {
 		try {
-			return SystemDefs.JavabaseDB.get_file_entry(filename);
+			synchronized (BTBuffers.diskLock()) {
+				return SystemDefs.JavabaseDB.get_file_entry(filename);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new GetFileEntryException(e, "");
 		}
 	}
 
+	/*
+	 * Calls to the buffer manager go through BTBuffers, which knows whether
+	 * it may be called from several threads at once.
+	 */
 	private Page pinPage(PageId pageno) throws PinPageException {
+		return pinPage(pageno, new Page());
+	}
+
+	private Page pinPage(PageId pageno, Page page) throws PinPageException {
 		try {
-			Page page = new Page();
-			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			BTBuffers.pinPage(pageno, page);
 			return page;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -92,28 +270,57 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void add_file_entry(String fileName, PageId pageno)
-			throws AddFileEntryException {
+	/*
+	 * Pin a page into intPage and return its bytes. Only one page is pinned
+	 * this way at a time by a thread.
+	 */
+	private byte[] pinIntPage(int pageno) throws PinPageException {
+		PageId pageId = intPageId.get();
+		pageId.pid = pageno;
+		return pinPage(pageId, intPage.get()).getpage();
+	}
+
+	private void unpinIntPage(boolean dirty) throws UnpinPageException {
+		unpinPage(intPageId.get(), dirty);
+	}
+
+	/*
+	 * Copy a page for an optimistic search, without latching it. It is
+	 * pinned through intPage only while it is copied (see
+	 * BTBuffers.copyPage).
+	 */
+	private byte[] copyPage(int pageno) throws PinPageException {
+		byte[] copy = pageCopy.get();
+		PageId pageId = intPageId.get();
+		pageId.pid = pageno;
 		try {
-			SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+			BTBuffers.copyPage(pageId, intPage.get(), copy);
 		} catch (Exception e) {
 			e.printStackTrace();
-			throw new AddFileEntryException(e, "");
+			throw new PinPageException(e, "");
 		}
+		return copy;
 	}
 
-	private void unpinPage(PageId pageno) throws UnpinPageException {
+	private void add_file_entry(String fileName, PageId pageno)
+			throws AddFileEntryException {
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			synchronized (BTBuffers.diskLock()) {
+				SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
-			throw new UnpinPageException(e, "");
+			throw new AddFileEntryException(e, "");
 		}
 	}
 
+	private void unpinPage(PageId pageno) throws UnpinPageException {
+		unpinPage(pageno, false /* = not DIRTY */);
+	}
+
 	private void freePage(PageId pageno) throws FreePageException {
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			BTBuffers.freePage(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new FreePageException(e, "");
@@ -121,10 +328,23 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/*
+	 * Free an index page the thread holds exclusive, or a page of a file
+	 * that is destroyed, and mark it for the threads that still have its id
+	 * (see BTLatches).
+	 */
+	private void freeLatchedPage(PageId pageno) throws FreePageException {
+		BTLatches.setFreed(pageno.pid, true);
+		nodeCache.remove(pageno.pid);
+		freePage(pageno);
+	}
+
 	private void delete_file_entry(String filename)
 			throws DeleteFileEntryException {
 		try {
-			SystemDefs.JavabaseDB.delete_file_entry(filename);
+			synchronized (BTBuffers.diskLock()) {
+				SystemDefs.JavabaseDB.delete_file_entry(filename);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new DeleteFileEntryException(e, "");
@@ -134,7 +354,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			BTBuffers.unpinPage(pageno, dirty);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
@@ -159,7 +379,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		headerPageId = get_file_entry(filename);
 
-		headerPage = new BTreeHeaderPage(headerPageId);
+		synchronized (BTBuffers.diskLock()) {
+			headerPage = new BTreeHeaderPage(headerPageId);
+		}
 		dbname = new String(filename);
 		/*
 		 * 
@@ -193,11 +415,145 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, LeafFormat.PLAIN);
+	}
+
+	/**
+	 * if index file exists, open it; else create it with the given leaf
+	 * format.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param leaf_format
+	 *            the encoding of the leaf pages. Input parameter. It is
+	 *            LeafFormat.PLAIN, LeafFormat.PREFIX, which needs string
+	 *            keys, or LeafFormat.POSTING. An existing file keeps its
+	 *            format.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int leaf_format) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, leaf_format, false);
+	}
+
+	/**
+	 * if index file exists, open it; else create it with the given leaf
+	 * format, and with index entries that count the leaf entries below
+	 * them if `counted' is set.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param leaf_format
+	 *            the encoding of the leaf pages. Input parameter. It is
+	 *            LeafFormat.PLAIN, LeafFormat.PREFIX, which needs string
+	 *            keys, or LeafFormat.POSTING. An existing file keeps its
+	 *            format.
+	 * @param counted
+	 *            keep subtree counts for rank, select and countRange. Input
+	 *            parameter. Posting leaves cannot be counted. An existing
+	 *            file keeps its setting.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int leaf_format, boolean counted)
+			throws GetFileEntryException, ConstructPageException,
+			IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, leaf_format, counted,
+				false);
+	}
+
+	/**
+	 * if index file exists, open it; else create it with the given leaf
+	 * format, with counted index entries if `counted' is set, and as a
+	 * buffered index (see isBuffered) if `buffered' is set.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param leaf_format
+	 *            the encoding of the leaf pages. Input parameter. It is
+	 *            LeafFormat.PLAIN, LeafFormat.PREFIX, which needs string
+	 *            keys, or LeafFormat.POSTING. An existing file keeps its
+	 *            format.
+	 * @param counted
+	 *            keep subtree counts for rank, select and countRange. Input
+	 *            parameter. Posting leaves cannot be counted. An existing
+	 *            file keeps its setting.
+	 * @param buffered
+	 *            buffer inserts and deletes. Input parameter. A counted
+	 *            index cannot be buffered. An existing file keeps its
+	 *            setting.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int leaf_format, boolean counted,
+			boolean buffered) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
+
+		if (counted && buffered)
+			throw new IllegalArgumentException(
+					"a counted index cannot be buffered");
+		if (leaf_format == LeafFormat.PREFIX
+				&& keytype != AttrType.attrString)
+			throw new IllegalArgumentException(
+					"prefix compressed leaves need string keys");
+		if (leaf_format != LeafFormat.PLAIN
+				&& leaf_format != LeafFormat.PREFIX
+				&& leaf_format != LeafFormat.POSTING)
+			throw new IllegalArgumentException("unknown leaf format "
+					+ leaf_format);
+		if (counted && leaf_format == LeafFormat.POSTING)
+			throw new IllegalArgumentException(
+					"a counted index cannot have posting leaves");
 
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
-			headerPage = new BTreeHeaderPage();
+			synchronized (BTBuffers.diskLock()) {
+				headerPage = new BTreeHeaderPage();
+			}
 			headerPageId = headerPage.getPageId();
 			add_file_entry(filename, headerPageId);
 			headerPage.set_magic0(MAGIC0);
@@ -205,9 +561,45 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_keyType((short) keytype);
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
+			headerPage.setSlot(LEAF_FORMAT_SLOT, leaf_format, LEAF_FORMAT_TAG);
+			headerPage.setSlot(COUNTED_SLOT, counted ? 1 : 0, LEAF_FORMAT_TAG);
+			// the header may be a page freed by another file, so the buffer
+			// slots are written without the tag for a file that is not
+			// buffered
+			int bufferTag = 0;
+			int firstPage = 0;
+			if (buffered) {
+				BTSortedPage first;
+				synchronized (BTBuffers.diskLock()) {
+					first = new BTSortedPage(keytype);
+				}
+				firstPage = first.getCurPage().pid;
+				BTLatches.setFreed(firstPage, false);
+				first.setNextPage(new PageId(INVALID_PAGE));
+				try {
+					BTBuffers.unpinPage(first.getCurPage(), true);
+				} catch (Exception e) {
+					throw new ConstructPageException(e, "");
+				}
+				bufferTag = LEAF_FORMAT_TAG;
+			}
+			headerPage.setSlot(BUFFER_SLOT, firstPage & 0xffff, bufferTag);
+			headerPage.setSlot(BUFFER_HIGH_SLOT, firstPage >>> 16, bufferTag);
 			headerPage.setType(NodeType.BTHEAD);
+			// the header stays pinned until close, so it is marked dirty
+			// here for a checkpoint to find it
+			try {
+				BTBuffers.pinPage(headerPageId, new Page());
+				BTBuffers.unpinPage(headerPageId, true);
+			} catch (Exception e) {
+				throw new ConstructPageException(e, "");
+			}
+			// creating a file is not logged
+			BTLog.checkpoint();
 		} else {
-			headerPage = new BTreeHeaderPage(headerPageId);
+			synchronized (BTBuffers.diskLock()) {
+				headerPage = new BTreeHeaderPage(headerPageId);
+			}
 		}
 
 		dbname = new String(filename);
@@ -230,7 +622,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			InvalidFrameNumberException, HashEntryNotFoundException,
 			ReplacerException {
 		if (headerPage != null) {
-			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			BTBuffers.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
 	}
@@ -257,13 +649,25 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
 		if (headerPage != null) {
-			PageId pgId = headerPage.get_rootId();
-			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
-			unpinPage(headerPageId);
-			freePage(headerPageId);
-			delete_file_entry(dbname);
-			headerPage = null;
+			BTLatches.exclusive(headerPageId.pid);
+			try {
+				PageId pgId = headerPage.get_rootId();
+				if (pgId.pid != INVALID_PAGE)
+					_destroyFile(pgId);
+				if (isBuffered()) {
+					BTMessageBuffer.freePages(bufferPage());
+					BTMessageBuffer.remove(headerPageId.pid);
+				}
+				unpinPage(headerPageId);
+				freeLatchedPage(headerPageId);
+				delete_file_entry(dbname);
+				headerPage = null;
+				rightmost = null;
+			} finally {
+				BTLatches.release(headerPageId.pid);
+			}
+			// destroying a file is not logged
+			BTLog.checkpoint();
 		}
 	}
 
@@ -278,19 +682,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		if (sortedPage.getType() == NodeType.INDEX) {
 			BTIndexPage indexPage = new BTIndexPage(page,
 					headerPage.get_keyType());
-			RID rid = new RID();
-			PageId childId;
-			KeyDataEntry entry;
-			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
-					.getNext(rid)) {
-				childId = ((IndexData) (entry.data)).getData();
-				_destroyFile(childId);
-			}
+			// the left link, then the children of the entries
+			for (int slot = -1; slot < indexPage.getSlotCnt(); slot++)
+				_destroyFile(BTPageOps.childAt(indexPage, slot));
 		} else { // BTLeafPage
 
-			unpinPage(pageno);
-			freePage(pageno);
+			if (postingLeaves())
+				BTPostingLeaf.freeOverflow(page.getpage(), headerPage
+						.get_keyType());
 		}
+		unpinPage(pageno);
+		freeLatchedPage(pageno);
 
 	}
 
@@ -352,6 +754,30 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error when insert in index page
 	 */
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		BTMessageBuffer buffer;
+		boolean full = false;
+		boolean logged = BTLog.begin(dbname, true, key, rid);
+		try {
+			buffer = messageBuffer();
+			if (buffer != null)
+				full = bufferInsert(buffer, key, rid);
+			else
+				insertEntry(key, rid);
+		} finally {
+			if (logged)
+				BTLog.end();
+		}
+		if (full)
+			flushForInsert(buffer);
+	}
+
+	private void insertEntry(KeyClass key, RID rid) throws KeyTooLongException,
 			KeyNotMatchException, LeafInsertRecException,
 			IndexInsertRecException, ConstructPageException,
 			UnpinPageException, PinPageException, NodeNotMatchException,
@@ -360,47 +786,57 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IOException
 
 	{
+    boolean counted = isCounted();
+    // Appends go straight to the right-most leaf while it has room, and
+    // most other inserts only change their leaf; a counted index has to
+    // count them on the way down
+    if(!counted && (appendToRightmost(key, rid) || insertInLeaf(key, rid)))
+	return;
+    // A page has to be split or there is no root yet. The pages that may
+    // change are latched exclusive from the header on; _insert gives up the
+    // ones above a page that has room for one more entry.
+    BTLatchPath path = new BTLatchPath();
+    path.exclusive(headerPageId.pid);
+    try {
     // Checking if headerPage is existing or not
     if(headerPage.get_rootId().pid==-1)
 	{
 	BTLeafPage newRootPage;   
-	PageId newRootPageId, emptyID = null;
+	PageId newRootPageId;
 	//Creating newRootPage
-	newRootPage = new BTLeafPage(headerPage.get_keyType());
+	newRootPage = newLeafPage();
 	//Getting the newRootPageId for root
 	newRootPageId = newRootPage.getCurPage();   
-	//pinning the page
-	pinPage(newRootPageId);
 	//Setting previous/next pointer to null
 	newRootPage.setNextPage(new PageId(INVALID_PAGE));
 	newRootPage.setPrevPage(new PageId(INVALID_PAGE));  
 	//Inserting the page into the index
-	newRootPage.insertRecord(key, rid);      
-	System.out.println(key);
+	insertLeafEntry(newRootPage, key, rid);
 	//Pointing the header page to the new root
 	updateHeader(newRootPageId);
 	//unpinning the page
 	unpinPage(newRootPageId, true);
+	//The root is the right-most leaf, too
+	setRightmostLeaf(newRootPageId, null);
 }   
 else{
-	/*If it is present.*/
-	KeyDataEntry newRootEntry = null;
-	try {
-		newRootEntry = _insert(key,rid, headerPage.get_rootId());
-	} catch (InvalidSlotNumberException e){
-		e.printStackTrace();
-	} 
+	/*If it is present. The root is the right-most page of its level.*/
+	KeyDataEntry newRootEntry = _insert(key, rid, headerPage.get_rootId(), true, null, path);
 	/*Split occurs*/
 	if(newRootEntry!=null){
-		/* Leaf nodes have been split.
-		This has to be updated in Index.
-		Passed as <key,pageid>
-		Forming the Index Page 
+		/* The root has been split.
+		The new root holds the old root as its left link
+		and <key,pageid> of the new page as its only entry.
 		*/
-		BTIndexPage newIndexPage = new BTIndexPage(NodeType.INDEX); 
+		BTIndexPage newIndexPage = newIndexPage(); 
 		/* Insert Record in Index Page */
 		IndexData indata = (IndexData) newRootEntry.data;
-		newIndexPage.insertKey(newRootEntry.key, indata.getData());
+		if (counted) {
+			BTPageOps.setChildCount(newIndexPage, -1, subtreeCount(headerPage.get_rootId()));
+			newIndexPage.insertRecord(indexRecord(newRootEntry.key, indata.getData(),
+					subtreeCount(indata.getData())));
+		} else
+			newIndexPage.insertKey(newRootEntry.key, indata.getData());
 		/* Root node split & left side adjustment to the new root*/
 		newIndexPage.setPrevPage(headerPage.get_rootId());
 		/*unPinpage the new root using its page id*/
@@ -409,186 +845,903 @@ else{
 		updateHeader(newIndexPage.getCurPage());		
 	}
 }
+    } finally {
+	path.releaseAll();
+    }
 	}
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
-			throws PinPageException, IOException, ConstructPageException,
-			LeafDeleteException, ConstructPageException, DeleteRecException,
-			IndexSearchException, UnpinPageException, LeafInsertRecException,
-			ConvertException, IteratorException, IndexInsertRecException,
-			KeyNotMatchException, NodeNotMatchException, InsertException, InvalidSlotNumberException
-	{
-		//Using Sorted page - base class for Leaf & Index Page
-		BTSortedPage currentPage =  new BTSortedPage(currentPageId, headerPage.get_keyType()); 
-		// If NodeType.INDEX == true.
-		if(currentPage.getType() == NodeType.INDEX)
-		{
-			BTIndexPage currentIndexPage = new BTIndexPage(currentPageId, headerPage.get_keyType());
-			PageId nextId = currentIndexPage.getPageNoByKey(key);
-			unpinPage(currentIndexPage.getCurPage());
-			KeyDataEntry datamoveUp = null;
-			//Get the key to be moved-up into index of higher order
-			datamoveUp = _insert(key, rid, nextId);
-			if(datamoveUp == null)
-			{
-				return null;
-			}
-			else
-			{
-				//Insert record in Index. If space is available.
-				if(currentIndexPage.available_space()>BT.getKeyDataLength(datamoveUp.key, NodeType.INDEX))
-				{
-					IndexData indata = (IndexData) datamoveUp.data;
-					currentIndexPage.insertKey(datamoveUp.key, indata.getData());
-					unpinPage(currentIndexPage.getCurPage(), true);
-				}
-				else
-				{
-					//If space is not available in the given index, it needs to be split.
-					BTIndexPage newSplitIndex = new BTIndexPage(headerPage.get_keyType());
-					KeyDataEntry tempd = null;
-					KeyDataEntry tempLast = null;
-					RID delRid = new RID();			
-					//Moving all the data entry in old index to the second index
-					for(tempd = currentIndexPage.getFirst(delRid); tempd!=null; tempd = currentIndexPage.getFirst(delRid))
-					{
-						//inserting into the second index page
-						System.out.println(tempd.key);
-						IndexData inData = (IndexData)tempd.data;
-						newSplitIndex.insertKey(tempd.key, inData.getData());
-						currentIndexPage.deleteSortedRecord(delRid);
-					}
-					// Removing one by one & comparing the avail space until newSplitIndex has less space than index.
-					for(tempd = newSplitIndex.getFirst(delRid); newSplitIndex.available_space()< currentIndexPage.available_space();tempd = newSplitIndex.getFirst(delRid))
-					{
-						//inserting half records into first leaf back
-						IndexData inData = (IndexData)(tempd.data);	
-						currentIndexPage.insertKey(tempd.key, inData.getData());
-						//removing from second index
-						newSplitIndex.deleteSortedRecord(delRid);
-						tempLast = tempd;
-					}	
-					tempd = newSplitIndex.getFirst(delRid);	
-					// for which index, datamoveUp key has to be inserted - determining
-					if(BT.keyCompare(datamoveUp.key, tempd.key) > 0)
-					{
-						IndexData inData = (IndexData)(datamoveUp.data);	
-						newSplitIndex.insertKey(datamoveUp.key, inData.getData());
-					}
-					else
-					{
-						IndexData inData = (IndexData)(datamoveUp.data);	
-						currentIndexPage.insertKey(datamoveUp.key, inData.getData());
-					}			
-					unpinPage(currentIndexPage.getCurPage(), true);			
-					datamoveUp = newSplitIndex.getFirst(delRid);					
-					//Set previous pointer of new index to the node pointed by first entry
-					newSplitIndex.setPrevPage(((IndexData)datamoveUp.data).getData());
-					//Deleting datamoveUp record
-					newSplitIndex.deleteSortedRecord(delRid);
-					unpinPage(newSplitIndex.getCurPage(), true);
-					//Setting the ptr info of datamoveUp to the newSplitIndex.
-					((IndexData)datamoveUp.data).setData(newSplitIndex.getCurPage());
-					//Returning the moveUp entry to be passed in upper hierarchy  
-					return datamoveUp;
-				}
-			}
-		}
-		// If NodeType.LEAF == true.
-		else 
-		if(currentPage.getType() == NodeType.LEAF)
-		{
-		BTLeafPage currentLeafPage = new BTLeafPage(currentPageId, headerPage.get_keyType());	
-		//checking space in the current leaf page
-			if(currentLeafPage.available_space() >= BT.getKeyDataLength(key, currentLeafPage.getType()))
-			{
-				// inserting record into the leaf page.
-				currentLeafPage.insertRecord(key,rid);
-				unpinPage(currentLeafPage.getCurPage(), true);
-				//Unpinning the Page after insert
-				//move up value or index data - nothing to send
-				return null;
-			}
-			else
-			{
-				//The current leaf node is full. 
-				//Splitting the page into two new leaf nodes, 
-				// moving first entry of new leaf into index.
-				BTLeafPage newSplitLeaf = new BTLeafPage(headerPage.get_keyType());
-				PageId newSplitLeafId = newSplitLeaf.getCurPage();
-				//here setNextpage points to the next page of old leaf
-				newSplitLeaf.setNextPage(currentLeafPage.getNextPage());
-                //old leaf next page points to new leaf				
-				currentLeafPage.setNextPage(newSplitLeafId);
-				 //new leaf previous page points to old leaf
-				newSplitLeaf.setPrevPage(currentLeafPage.getCurPage()); 
-				KeyDataEntry tempd = null;
-				KeyDataEntry tempLast = null;
-				RID delRid = new RID();
-				System.out.println(currentLeafPage.getFirst(delRid).data);
-                int ctrr=0; //counter
-				//Count  records in leaf page
-				for(tempd = currentLeafPage.getFirst(delRid); tempd!=null; tempd = currentLeafPage.getNext(delRid))
-				{
-					//counter incr
-					ctrr++;
-				}
-				System.out.println("Number of records existing in old leaf = " + ctrr);
-				//old leaf first entry
-				tempd = currentLeafPage.getFirst(delRid);
-				//copying the second half of records into second-leaf page
-				for(int i=1;i<=ctrr;i++){
-				if(i>ctrr/2){
-				LeafData dataleaf = (LeafData)tempd.data;
-				System.out.println(dataleaf);
-				//Inserting it into the split page.
-				newSplitLeaf.insertRecord(tempd.key, dataleaf.getData());
-				//Copied page from old-leaf page is deleted
-				currentLeafPage.deleteSortedRecord(delRid);
-                //Gets the next record to be moved						
-				tempd = currentLeafPage.getCurrent(delRid);
-			    }
-				else{
-						tempLast = tempd;
-						tempd = currentLeafPage.getNext(delRid);
-					}					
-				}
-				//Positive comparison sends the key to be inserted to new Split Leaf 
-				//else it goes to existing leaf
-				if(BT.keyCompare(key, tempLast.key)>0){
-					newSplitLeaf.insertRecord(key,rid);
-				}
-				else{
-					currentLeafPage.insertRecord(key, rid);
-				}
-				//unpin the current page
-				unpinPage(currentLeafPage.getCurPage(), true);
-				KeyDataEntry dataCopyUp;   
-				tempd = newSplitLeaf.getFirst(delRid);   
-				//The first entry of the new split leaf needs to be copied into index
-				dataCopyUp = new KeyDataEntry(tempd.key, newSplitLeafId);
-				unpinPage(newSplitLeafId, true);
-				return dataCopyUp;
-			}
-		}
-		else{
-			throw new InsertException(null,"");
+
+	/*
+	 * Insert <key, rid> into the right-most leaf if the key belongs there
+	 * and the leaf has room. Returns false otherwise.
+	 */
+	private boolean appendToRightmost(KeyClass key, RID rid)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		RightmostLeaf last = rightmost;
+		if (last == null
+				|| (last.lowKey != null && BT.keyCompare(key, last.lowKey) < 0))
+			return false;
+		BTLatches.exclusive(last.leafId.pid);
+		try {
+			// the leaf may have been split or merged in the meantime
+			if (rightmost != last)
+				return false;
+			BTLeafPage leaf = new BTLeafPage(pinPage(last.leafId),
+					headerPage.get_keyType());
+			boolean inserted = insertLeafEntry(leaf, key, rid);
+			unpinPage(last.leafId, inserted);
+			return inserted;
+		} finally {
+			BTLatches.release(last.leafId.pid);
 		}
-		return null;
 	}
 
-	
+	/*
+	 * Insert <key, rid> if its leaf has room for it. The index pages are
+	 * latched shared on the way down, and only the leaf exclusive. Returns
+	 * false if the leaf is full or the root is a leaf.
+	 */
+	private boolean insertInLeaf(KeyClass key, RID rid)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		Page page = new Page();
+		PageId pageno = latchRoot(page, false);
+		if (pageno.pid == INVALID_PAGE)
+			return false;
+		if (BTIntPage.type(page.getpage()) != NodeType.INDEX) {
+			unpinPage(pageno);
+			BTLatches.release(pageno.pid);
+			return false;
+		}
 
+		// the bound of the right-most leaf, found as _insert finds it
+		boolean rightmost = true;
+		KeyClass lowKey = null;
+		while (BTIntPage.type(page.getpage()) == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(page,
+					headerPage.get_keyType());
+			int childSlot = childSlotFor(indexPage, key);
+			boolean lastChild = childSlot == indexPage.getSlotCnt() - 1;
+			if (rightmost && lastChild && childSlot >= 0)
+				lowKey = entryAt(indexPage, childSlot).key;
+			rightmost = rightmost && lastChild;
+			PageId childId = BTPageOps.childAt(indexPage, childSlot);
+			page = descend(pageno, childId, true);
+			pageno = childId;
+		}
 
+		boolean inserted;
+		try {
+			inserted = insertLeafEntry(new BTLeafPage(page,
+					headerPage.get_keyType()), key, rid);
+			unpinPage(pageno, inserted);
+			if (inserted && rightmost)
+				setRightmostLeaf(pageno, lowKey);
+		} finally {
+			BTLatches.release(pageno.pid);
+		}
+		return inserted;
+	}
 
-	/**
-	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
-	 * it is not the id of the data entry)
-	 *
-	 * @param key
+	/*
+	 * Latch the root for a search down the tree and pin it into `page'. The
+	 * header latch keeps the root id until the root is latched. The root is
+	 * latched shared, or exclusive if it is a leaf and `exclusiveLeaf' is
+	 * set. Returns its id, which is INVALID_PAGE if the tree is empty.
+	 */
+	PageId latchRoot(Page page, boolean exclusiveLeaf)
+			throws PinPageException, UnpinPageException {
+		BTLatches.shared(headerPageId.pid);
+		try {
+			PageId rootId = new PageId(headerPage.get_rootId().pid);
+			if (rootId.pid != INVALID_PAGE)
+				latchPage(rootId, page, exclusiveLeaf);
+			return rootId;
+		} catch (IOException e) {
+			throw new PinPageException(e, "read root id failed");
+		} finally {
+			BTLatches.release(headerPageId.pid);
+		}
+	}
+
+	/*
+	 * Latch the child `childId' of the latched and pinned page `pageno', pin
+	 * it and give up the parent: the latch coupling of every search down
+	 * the tree. The child is latched shared, or exclusive if it is a leaf and
+	 * `exclusiveLeaf' is set. Returns the pinned child.
+	 */
+	Page descend(PageId pageno, PageId childId, boolean exclusiveLeaf)
+			throws PinPageException, UnpinPageException, IOException {
+		Page page = latchPage(childId, new Page(), exclusiveLeaf);
+		unpinPage(pageno);
+		BTLatches.release(pageno.pid);
+		return page;
+	}
+
+	/*
+	 * Latch a page shared and pin it. A leaf is latched again exclusive if
+	 * `exclusiveLeaf' is set; its parent, which the caller holds, keeps it
+	 * from being split or merged in between.
+	 */
+	private Page latchPage(PageId pageno, Page page, boolean exclusiveLeaf)
+			throws PinPageException, UnpinPageException {
+		BTLatches.shared(pageno.pid);
+		pinPage(pageno, page);
+		if (exclusiveLeaf && BTIntPage.type(page.getpage()) == NodeType.LEAF) {
+			BTLatches.release(pageno.pid);
+			BTLatches.exclusive(pageno.pid);
+		}
+		return page;
+	}
+
+	/**
+	 * insert record with the given integer key and rid. The tree is searched
+	 * on the bytes of its pages, without key or entry objects; only an
+	 * insert that splits a page, or creates the root, takes the path of
+	 * insert(KeyClass, RID).
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void insert(int key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		BTMessageBuffer buffer;
+		boolean full = false;
+		boolean logged = BTLog.begin(dbname, key, rid);
+		try {
+			buffer = messageBuffer();
+			if (buffer != null) {
+				checkIntKeys();
+				full = bufferInsert(buffer, new IntegerKey(key), rid);
+			} else
+				insertEntry(key, rid);
+		} finally {
+			if (logged)
+				BTLog.end();
+		}
+		if (full)
+			flushForInsert(buffer);
+	}
+
+	/*
+	 * flushMessages of full messages for an insert, which throws fewer
+	 * exceptions.
+	 */
+	void flushForInsert(BTMessages messages) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		try {
+			flushMessages(messages, true);
+		} catch (DeleteFashionException | LeafRedistributeException
+				| RedistributeException | InsertRecException
+				| FreePageException | RecordNotFoundException
+				| IndexFullDeleteException e) {
+			// from the deletes of a flush
+			throw new InsertException(e, "flushing the buffer failed");
+		}
+	}
+
+	private void insertEntry(int key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		checkIntKeys();
+		if (isCounted() || postingLeaves()) {
+			// the counts are kept on the way down of the general path, and
+			// a posting leaf adds the rid to the record of its key
+			insertEntry(new IntegerKey(key), rid);
+			return;
+		}
+
+		// appends go straight to the right-most leaf while it has room
+		RightmostLeaf last = rightmost;
+		if (last != null
+				&& (last.lowKey == null || BTIntPage.compare(key,
+						((IntegerKey) last.lowKey).getKey().intValue()) >= 0)) {
+			int leafId = last.leafId.pid;
+			BTLatches.exclusive(leafId);
+			boolean inserted = false;
+			try {
+				// the leaf may have been split or merged in the meantime
+				if (rightmost == last) {
+					inserted = BTIntPage.insert(pinIntPage(leafId), key, rid);
+					unpinIntPage(inserted);
+				}
+			} finally {
+				BTLatches.release(leafId);
+			}
+			if (inserted)
+				return;
+		}
+
+		// the index pages are latched shared on the way down, as in
+		// insertInLeaf, and only the leaf exclusive
+		int pageno = INVALID_PAGE;
+		BTLatches.shared(headerPageId.pid);
+		try {
+			pageno = headerPage.get_rootId().pid;
+			if (pageno != INVALID_PAGE)
+				BTLatches.shared(pageno);
+		} finally {
+			BTLatches.release(headerPageId.pid);
+		}
+		if (pageno != INVALID_PAGE) {
+			byte[] data = pinIntPage(pageno);
+			boolean inserted = false;
+			if (BTIntPage.type(data) == NodeType.INDEX) {
+				do {
+					// the right-most child whose separator is not greater
+					// than key
+					int child = BTIntPage.childAt(data, BTIntPage.upperBound(
+							data, key) - 1);
+					unpinIntPage(false);
+					BTLatches.shared(child);
+					data = pinIntPage(child);
+					if (BTIntPage.type(data) == NodeType.LEAF) {
+						// the parent keeps the leaf in place meanwhile
+						BTLatches.release(child);
+						BTLatches.exclusive(child);
+					}
+					BTLatches.release(pageno);
+					pageno = child;
+				} while (BTIntPage.type(data) == NodeType.INDEX);
+				inserted = BTIntPage.insert(data, key, rid);
+			}
+			unpinIntPage(inserted);
+			BTLatches.release(pageno);
+			if (inserted)
+				return;
+		}
+
+		// the leaf is full, the root is a leaf or there is no root yet
+		insertEntry(new IntegerKey(key), rid);
+	}
+
+	private void checkIntKeys() throws KeyNotMatchException, IOException {
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null,
+					"the index does not have integer keys");
+	}
+
+	/*
+	 * Insert <key, rid> into the subtree below `currentPageId', which is the
+	 * right-most page of its level if `rightmost' is set; `lowKey' then is
+	 * the smallest key the subtree may hold (null if there is no bound).
+	 * Returns the entry for the parent if the page had to be split, null
+	 * otherwise. The page is latched exclusive into `path'.
+	 */
+	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId,
+			boolean rightmost, KeyClass lowKey, BTLatchPath path) throws PinPageException, IOException,
+			ConstructPageException, DeleteRecException, UnpinPageException,
+			ConvertException, IteratorException, KeyNotMatchException,
+			NodeNotMatchException, LeafInsertRecException, InsertException
+	{
+		path.exclusive(currentPageId.pid);
+		//Using Sorted page - base class for Leaf & Index Page
+		Page page = pinPage(currentPageId);
+		BTSortedPage currentPage =  new BTSortedPage(page, headerPage.get_keyType()); 
+		// If NodeType.INDEX == true.
+		if(currentPage.getType() == NodeType.INDEX)
+		{
+			BTIndexPage currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
+			boolean counted = isCounted();
+			// A page that takes the entry of a split child is not split
+			// itself, so the pages above it do not change; the counts of a
+			// counted index always do.
+			if (!counted && currentIndexPage.available_space() >= maxRecordLength())
+				path.releaseAbove(currentPageId.pid);
+			int childSlot = childSlotFor(currentIndexPage, key);
+			boolean lastChild = childSlot == currentIndexPage.getSlotCnt() - 1;
+			KeyClass childLowKey = lowKey;
+			if (rightmost && lastChild && childSlot >= 0)
+				childLowKey = entryAt(currentIndexPage, childSlot).key;
+			PageId childId = BTPageOps.childAt(currentIndexPage, childSlot);
+			// a safe page below may give this one up, and another writer
+			// may free it then: it must not be pinned after that
+			unpinPage(currentPageId);
+			//Get the key to be moved-up into index of higher order
+			KeyDataEntry datamoveUp = _insert(key, rid, childId,
+					rightmost && lastChild, childLowKey, path);
+			if (!path.holds(currentPageId.pid))
+				return datamoveUp; // given up, so nothing moves up to it
+			page = pinPage(currentPageId);
+			currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
+			if(datamoveUp == null)
+			{
+				if (counted)
+					BTPageOps.setChildCount(currentIndexPage, childSlot,
+							BTPageOps.childCount(currentIndexPage, childSlot) + 1);
+				unpinPage(currentPageId, counted);
+				return null;
+			}
+			//The new child goes right behind the one that was split; a sorted
+			//insert would put it behind all separators with an equal key.
+			byte[] record;
+			if (counted) {
+				// the split child and its new sibling are counted anew
+				BTPageOps.setChildCount(currentIndexPage, childSlot,
+						subtreeCount(BTPageOps.childAt(currentIndexPage, childSlot)));
+				PageId newChildId = ((IndexData) datamoveUp.data).getData();
+				record = indexRecord(datamoveUp.key, newChildId,
+						subtreeCount(newChildId));
+			} else
+				record = BT.getBytesFromEntry(datamoveUp);
+			if(currentIndexPage.available_space() >= record.length)
+			{
+				BTPageOps.insertRecordAt(currentIndexPage, childSlot + 1, record);
+				unpinPage(currentPageId, true);
+				return null;
+			}
+			//If space is not available in the given index, it needs to be split.
+			return splitIndexPage(currentIndexPage, childSlot + 1, record, rightmost);
+		}
+		// If NodeType.LEAF == true.
+		if(currentPage.getType() == NodeType.LEAF)
+		{
+			BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());	
+			// inserting record into the leaf page if there is space
+			if(insertLeafEntry(currentLeafPage, key, rid))
+			{
+				//Unpinning the Page after insert
+				unpinPage(currentPageId, true);
+				if (rightmost)
+					setRightmostLeaf(currentPageId, lowKey);
+				//move up value or index data - nothing to send
+				return null;
+			}
+			//The current leaf node is full. 
+			KeyDataEntry dataCopyUp = splitLeafPage(currentLeafPage, key, rid);
+			//The new leaf is right-most now; its first key is its bound
+			if (rightmost)
+				setRightmostLeaf(((IndexData) dataCopyUp.data).getData(),
+						dataCopyUp.key);
+			return dataCopyUp;
+		}
+		unpinPage(currentPageId);
+		throw new InsertException(null, "node not match index page nor leaf page");
+	}
+
+	/*
+	 * Remember the right-most leaf, which the caller holds exclusive.
+	 */
+	private void setRightmostLeaf(PageId leafId, KeyClass lowKey) {
+		rightmost = new RightmostLeaf(new PageId(leafId.pid), lowKey);
+	}
+
+	/*
+	 * The longest record a page may get: a key of the maximum size, with
+	 * room for the length of a string key, and a rid, or a page id and the
+	 * count of a counted index.
+	 */
+	private int maxRecordLength() throws IOException {
+		return headerPage.get_maxKeySize() + 2 + 8;
+	}
+
+	/*
+	 * Split the full, pinned leaf for the insert of <key, rid>. The entries
+	 * behind the split point move to a new leaf linked in right behind it.
+	 * Both leaves get unpinned; the first key of the new leaf is copied up.
+	 */
+	private KeyDataEntry splitLeafPage(BTLeafPage leaf, KeyClass key, RID rid)
+			throws ConstructPageException, PinPageException,
+			UnpinPageException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, InsertException,
+			IOException {
+
+		// copies: the page objects hand out their own PageId fields
+		PageId leafId = new PageId(leaf.getCurPage().pid);
+		PageId nextId = new PageId(leaf.getNextPage().pid);
+		boolean rightmost = nextId.pid == INVALID_PAGE;
+
+		// the new leaf is latched until it is filled, as a scan going left
+		// from the next leaf may reach it; leaves are latched left to right
+		BTLeafPage newSplitLeaf = newLeafPage();
+		PageId newSplitLeafId = new PageId(newSplitLeaf.getCurPage().pid);
+		BTLatches.exclusive(newSplitLeafId.pid);
+		newSplitLeaf.setNextPage(nextId);
+		newSplitLeaf.setPrevPage(leafId);
+		leaf.setNextPage(newSplitLeafId);
+		if (nextId.pid != INVALID_PAGE) {
+			BTLatches.exclusive(nextId.pid);
+			BTLeafPage nextLeaf = new BTLeafPage(pinPage(nextId),
+					headerPage.get_keyType());
+			nextLeaf.setPrevPage(newSplitLeafId);
+			unpinPage(nextId, true);
+			BTLatches.release(nextId.pid);
+		}
+
+		if (prefixLeaves()) {
+			splitPrefixLeaf(leaf, newSplitLeaf, key, rid, rightmost);
+		} else if (postingLeaves()) {
+			splitPostingLeaf(leaf, newSplitLeaf, key, rid, rightmost);
+		} else {
+			// a sorted insert puts the new entry behind all equal keys
+			int insertPosition = BTPageOps.upperBound(leaf, key);
+			int splitPoint = splitPoint(leaf.getSlotCnt(), insertPosition,
+					rightmost);
+			BTPageOps.splitTo(leaf, splitPoint, newSplitLeaf);
+			byte[] record = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+			if (insertPosition >= splitPoint)
+				insertSplitRecord(newSplitLeaf, insertPosition - splitPoint,
+						record);
+			else
+				insertSplitRecord(leaf, insertPosition, record);
+		}
+
+		// the shortest key between the two leaves is enough as separator
+		KeyDataEntry dataCopyUp = new KeyDataEntry(shortestSeparator(leafKeyAt(
+				leaf, leaf.getSlotCnt() - 1), leafKeyAt(newSplitLeaf, 0)),
+				newSplitLeafId);
+		unpinPage(leafId, true);
+		unpinPage(newSplitLeafId, true);
+		BTLatches.release(newSplitLeafId.pid);
+		return dataCopyUp;
+	}
+
+	/*
+	 * Split a full prefix compressed leaf. The entries are rewritten into the
+	 * two leaves, each with the prefix its keys share. A key without the
+	 * prefix of the page sorts before or after all of its entries; it goes
+	 * to a page of its own, as the old entries may not fit with a shorter
+	 * prefix.
+	 */
+	private void splitPrefixLeaf(BTLeafPage leaf, BTLeafPage newSplitLeaf,
+			KeyClass key, RID rid, boolean rightmost) throws InsertException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			IOException {
+		List<KeyDataEntry> entries = BTPrefixLeaf.entries(leaf);
+		int entryCount = entries.size();
+		int insertPosition = BTPrefixLeaf.upperBound(leaf, key);
+		int leftCount;
+		if (!((StringKey) key).getKey().startsWith(BTPrefixLeaf.prefix(leaf)))
+			leftCount = insertPosition == 0 ? 1 : entryCount;
+		else {
+			int splitPoint = splitPoint(entryCount, insertPosition, rightmost);
+			leftCount = insertPosition >= splitPoint ? splitPoint
+					: splitPoint + 1;
+		}
+		entries.add(insertPosition, new KeyDataEntry(key, rid));
+
+		List<KeyDataEntry> left = entries.subList(0, leftCount);
+		List<KeyDataEntry> right = entries.subList(leftCount, entries.size());
+		if (!BTPrefixLeaf.fits(left) || !BTPrefixLeaf.fits(right))
+			throw new InsertException(null,
+					"split policy left no room for the new entry");
+		BTPrefixLeaf.write(leaf, left);
+		BTPrefixLeaf.write(newSplitLeaf, right);
+	}
+
+	/*
+	 * Split a full posting leaf. The records are split like plain ones, and
+	 * the entry then goes to the record of its key, or to a new one, on the
+	 * leaf it belongs to; the records of a key are never split.
+	 */
+	private void splitPostingLeaf(BTLeafPage leaf, BTLeafPage newSplitLeaf,
+			KeyClass key, RID rid, boolean rightmost) throws InsertException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			IOException {
+		int insertPosition = BTPageOps.lowerBound(leaf, key);
+		int splitPoint = splitPoint(leaf.getSlotCnt(), insertPosition,
+				rightmost);
+		BTPageOps.splitTo(leaf, splitPoint, newSplitLeaf);
+		if (!BTPostingLeaf.insert(insertPosition >= splitPoint ? newSplitLeaf
+				: leaf, key, rid, headerPage.get_keyType()))
+			throw new InsertException(null,
+					"split policy left no room for the new entry");
+	}
+
+	/*
+	 * Split the full, pinned index page for the insert of `record' into slot
+	 * `insertPosition'. The entries behind the split point move to a new
+	 * page; the first of them moves up and its child becomes the left link
+	 * of the new page. Both pages get unpinned.
+	 */
+	private KeyDataEntry splitIndexPage(BTIndexPage indexPage,
+			int insertPosition, byte[] record, boolean rightmost)
+			throws ConstructPageException, UnpinPageException,
+			DeleteRecException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException, InsertException, IOException {
+
+		int splitPoint = splitPoint(indexPage.getSlotCnt(), insertPosition,
+				rightmost);
+		BTIndexPage newSplitIndex = newIndexPage();
+		PageId newSplitIndexId = new PageId(newSplitIndex.getCurPage().pid);
+
+		BTPageOps.splitTo(indexPage, splitPoint, newSplitIndex);
+		if (insertPosition >= splitPoint)
+			insertSplitRecord(newSplitIndex, insertPosition - splitPoint, record);
+		else
+			insertSplitRecord(indexPage, insertPosition, record);
+
+		KeyDataEntry datamoveUp = entryAt(newSplitIndex, 0);
+		newSplitIndex.setPrevPage(((IndexData) datamoveUp.data).getData());
+		if (isCounted())
+			BTPageOps.setChildCount(newSplitIndex, -1, BTPageOps.childCount(
+					newSplitIndex, 0));
+		newSplitIndex.deleteSortedRecord(new RID(newSplitIndexId, 0));
+		((IndexData) datamoveUp.data).setData(newSplitIndexId);
+
+		unpinPage(indexPage.getCurPage(), true);
+		unpinPage(newSplitIndexId, true);
+		return datamoveUp;
+	}
+
+	/*
+	 * The shortest key that separates the last key `left' of a leaf from the
+	 * first key `right' of the next leaf: the shortest prefix of `right' that
+	 * is still greater than `left'. Only string keys get shorter; equal keys
+	 * need the whole key.
+	 */
+	private static KeyClass shortestSeparator(KeyClass left, KeyClass right) {
+		if (!(left instanceof StringKey) || !(right instanceof StringKey))
+			return right;
+		String leftKey = ((StringKey) left).getKey();
+		String rightKey = ((StringKey) right).getKey();
+		if (leftKey.compareTo(rightKey) >= 0)
+			return right;
+		// right is longer than the prefix both keys share
+		int common = 0;
+		while (common < leftKey.length()
+				&& leftKey.charAt(common) == rightKey.charAt(common))
+			common++;
+		if (common + 1 >= rightKey.length())
+			return right;
+		return new StringKey(rightKey.substring(0, common + 1));
+	}
+
+	/*
+	 * Ask the split policy for a split point and bring it into the range a
+	 * full page can actually be split at.
+	 */
+	private int splitPoint(int entryCount, int insertPosition, boolean rightmost) {
+		int splitPoint = splitPolicy.splitPoint(entryCount, insertPosition,
+				rightmost);
+		splitPoint = Math.max(1, Math.min(splitPoint, entryCount));
+		// the left page cannot keep all entries and take the new one, too
+		if (splitPoint == entryCount && insertPosition < entryCount)
+			splitPoint = Math.max(1, entryCount / 2);
+		return splitPoint;
+	}
+
+	private static void insertSplitRecord(BTSortedPage page, int slot,
+			byte[] record) throws InsertException, IOException {
+		if (page.available_space() < record.length)
+			throw new InsertException(null,
+					"split policy left no room for the new entry");
+		BTPageOps.insertRecordAt(page, slot, record);
+	}
+
+	/**
+	 * Build the index bottom-up from entries that are already sorted by key.
+	 * Leaves are filled from left to right up to the given fill factor and are
+	 * linked as they are completed; the index levels are built at the same
+	 * time, keeping one open page per level, so every page is written exactly
+	 * once. The index must be empty.
+	 *
+	 * @param entries
+	 *            the leaf entries (<key, rid> pairs) in non-decreasing key
+	 *            order. Input parameter.
+	 * @param fillFactor
+	 *            the fraction of each page to fill, in (0, 1]. Input
+	 *            parameter.
+	 * @exception InsertException
+	 *                the index is not empty, the fill factor is out of range
+	 *                or the entries are not sorted leaf entries
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries, float fillFactor)
+			throws InsertException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, UnpinPageException,
+			PinPageException, IOException {
+
+		if (!(fillFactor > 0.0f && fillFactor <= 1.0f))
+			throw new InsertException(null, "fill factor out of range");
+		flushFirst();
+		BTLatches.exclusive(headerPageId.pid);
+		try {
+			if (headerPage.get_rootId().pid != INVALID_PAGE)
+				throw new InsertException(null, "bulk load needs an empty index");
+			_bulkLoad(entries, fillFactor);
+		} finally {
+			BTLatches.release(headerPageId.pid);
+		}
+		// a bulk load is not logged
+		BTLog.checkpoint();
+	}
+
+	/*
+	 * The bulk load of an empty index, with its header latched exclusive.
+	 * The new pages are not reachable before the header gets the root; if
+	 * the load fails, they are unpinned and freed again.
+	 */
+	private void _bulkLoad(Iterator<KeyDataEntry> entries, float fillFactor)
+			throws InsertException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, UnpinPageException,
+			PinPageException, IOException {
+
+		// bytes each page keeps free once it counts as full
+		int reserve = (int) ((1.0f - fillFactor) * (MAX_SPACE - HFPage.DPFIXED));
+
+		// open (still pinned) index page of every level, leaf parents first
+		ArrayList<BTIndexPage> levels = new ArrayList<BTIndexPage>();
+		// every page allocated so far
+		List<PageId> pages = new ArrayList<PageId>();
+		BTLeafPage leaf = null;
+		KeyDataEntry last = null;
+		KeyClass lastLeafKey = null;
+		// entries of the open leaf, which is written when it is full, if
+		// the leaves are prefix compressed
+		List<KeyDataEntry> pending = prefixLeaves() ? new ArrayList<KeyDataEntry>()
+				: null;
+		// posting leaves get one record per key; the entry read behind the
+		// entries of a key starts the next one
+		boolean posting = postingLeaves();
+		KeyDataEntry held = null;
+		boolean loaded = false;
+
+		try {
+			while (held != null || entries.hasNext()) {
+				KeyDataEntry entry = held != null ? held : bulkEntry(entries
+						.next(), last);
+				held = null;
+
+				byte[] record;
+				if (posting) {
+					BTPostingLeaf.Rids rids = new BTPostingLeaf.Rids();
+					rids.add(((LeafData) entry.data).getData());
+					while (entries.hasNext()) {
+						KeyDataEntry next = bulkEntry(entries.next(), entry);
+						if (BT.keyCompare(next.key, entry.key) != 0) {
+							held = next;
+							break;
+						}
+						rids.add(((LeafData) next.data).getData());
+					}
+					record = BTPostingLeaf.record(entry.key, rids, headerPage
+							.get_keyType());
+				} else
+					record = BT.getBytesFromEntry(entry);
+				boolean full;
+				if (leaf == null)
+					full = true;
+				else if (pending != null) {
+					pending.add(entry);
+					full = !hasRoom(pending, reserve);
+					pending.remove(pending.size() - 1);
+				} else
+					full = !hasRoom(leaf, record.length, reserve);
+				if (full) {
+					BTLeafPage newLeaf = newLeafPage();
+					pages.add(newLeaf.getCurPage());
+					BTLeafPage prevLeaf = leaf;
+					leaf = newLeaf;
+					if (prevLeaf != null) {
+						if (pending != null) {
+							BTPrefixLeaf.write(prevLeaf, pending);
+							pending.clear();
+						}
+						PageId prevLeafId = prevLeaf.getCurPage();
+						prevLeaf.setNextPage(newLeaf.getCurPage());
+						newLeaf.setPrevPage(prevLeafId);
+						unpinPage(prevLeafId, true);
+						bulkLoadIndex(levels, 0, entry.key, newLeaf.getCurPage(),
+								prevLeafId, reserve, pages);
+					}
+					lastLeafKey = entry.key;
+				}
+				// input is sorted, so the record simply goes into the next slot
+				if (pending != null)
+					pending.add(entry);
+				else
+					leaf.insertRecord(record);
+				last = entry;
+			}
+
+			if (leaf == null)
+				return; // nothing to load
+			if (pending != null)
+				BTPrefixLeaf.write(leaf, pending);
+
+			PageId rootId = leaf.getCurPage();
+			PageId lastLeafId = rootId;
+			boolean oneLevel = levels.isEmpty();
+			leaf = null;
+			unpinPage(rootId, true);
+			while (!levels.isEmpty()) {
+				rootId = levels.remove(0).getCurPage();
+				unpinPage(rootId, true);
+			}
+			updateHeader(rootId);
+			loaded = true;
+			// the last leaf starts with the key it was opened for
+			setRightmostLeaf(lastLeafId, oneLevel ? null : lastLeafKey);
+			if (isCounted())
+				recount(rootId);
+		} finally {
+			if (!loaded)
+				abandonBulkLoad(leaf, levels, pages);
+		}
+	}
+
+	/*
+	 * Give up the pages of a failed bulk load: unpin the open ones and free
+	 * all of them, with the overflow pages of posting leaves. A failure here
+	 * must not hide the one that stopped the load, so it is only printed.
+	 */
+	private void abandonBulkLoad(BTLeafPage leaf, List<BTIndexPage> levels,
+			List<PageId> pages) {
+		try {
+			if (leaf != null)
+				unpinPage(leaf.getCurPage());
+			for (BTIndexPage indexPage : levels)
+				unpinPage(indexPage.getCurPage());
+			for (PageId pageno : pages) {
+				if (postingLeaves()) {
+					Page page = pinPage(pageno);
+					if (new BTSortedPage(page, headerPage.get_keyType())
+							.getType() == NodeType.LEAF)
+						BTPostingLeaf.freeOverflow(page.getpage(), headerPage
+								.get_keyType());
+					unpinPage(pageno);
+				}
+				freeLatchedPage(pageno);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * An entry of the bulk load input, checked against the one before it.
+	 */
+	private static KeyDataEntry bulkEntry(KeyDataEntry entry, KeyDataEntry last)
+			throws InsertException, KeyNotMatchException {
+		if (!(entry.data instanceof LeafData))
+			throw new InsertException(null, "bulk load needs leaf entries");
+		if (last != null && BT.keyCompare(entry.key, last.key) < 0)
+			throw new InsertException(null, "bulk load input is not sorted");
+		return entry;
+	}
+
+	/*
+	 * Add the separator <key, childId> to the open index page of the given
+	 * level. The first page of a level is created with leftChildId as its
+	 * left link. When the page is full, childId becomes the left link of a
+	 * fresh page and the key moves up one level instead. The pages created
+	 * are added to `pages'.
+	 */
+	private void bulkLoadIndex(ArrayList<BTIndexPage> levels, int level,
+			KeyClass key, PageId childId, PageId leftChildId, int reserve,
+			List<PageId> pages) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException, IOException {
+
+		if (levels.size() == level) {
+			BTIndexPage first = newIndexPage();
+			pages.add(first.getCurPage());
+			levels.add(first);
+			first.setPrevPage(leftChildId);
+		}
+
+		BTIndexPage indexPage = levels.get(level);
+		// a counted index is counted once all pages are written
+		byte[] record = indexRecord(key, childId, 0);
+		if (hasRoom(indexPage, record.length, reserve)) {
+			indexPage.insertRecord(record);
+			return;
+		}
+
+		BTIndexPage newIndexPage = newIndexPage();
+		pages.add(newIndexPage.getCurPage());
+		levels.set(level, newIndexPage);
+		newIndexPage.setPrevPage(childId);
+		PageId fullId = indexPage.getCurPage();
+		unpinPage(fullId, true);
+		bulkLoadIndex(levels, level + 1, key, newIndexPage.getCurPage(),
+				fullId, reserve, pages);
+	}
+
+	/*
+	 * The prefix compressed form of hasRoom: the entries may go into one
+	 * leaf if they fit and leave at least `reserve' bytes free. A single
+	 * entry always fits.
+	 */
+	private static boolean hasRoom(List<KeyDataEntry> entries, int reserve)
+			throws KeyNotMatchException, IOException {
+		if (entries.size() == 1)
+			return true;
+		return BTPrefixLeaf.size(entries) <= MAX_SPACE - HFPage.DPFIXED
+				- reserve;
+	}
+
+	/*
+	 * A record of the given length may go into the page if it fits and the
+	 * page keeps at least `reserve' bytes free afterwards. An empty page
+	 * always takes the record.
+	 */
+	private static boolean hasRoom(BTSortedPage page, int length, int reserve)
+			throws IOException {
+		int avail = page.available_space();
+		if (avail < length)
+			return false;
+		return page.getSlotCnt() == 0 || avail - length >= reserve;
+	}
+
+	
+
+
+
+	/**
+	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
+	 * it is not the id of the data entry)
+	 *
+	 * @param key
 	 *            the key in pair <key, rid>. Input Parameter.
 	 * @param rid
 	 *            the rid in pair <key, rid>. Input Parameter.
-	 * @return true if deleted. false if no such record.
+	 * @return true if deleted. false if no such record. A buffered index
+	 *         (see isBuffered) searches the leaves and the buffer for the
+	 *         entry, and keeps the delete in the buffer if it is found.
 	 * @exception DeleteFashionException
 	 *                neither full delete nor naive delete
 	 * @exception LeafRedistributeException
@@ -633,17 +1786,383 @@ else{
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
-			throw new DeleteFashionException(null, "");
+		BTMessageBuffer buffer;
+		try {
+			buffer = messageBuffer();
+		} catch (ConvertException e) {
+			throw new DeleteRecException(e, "reading the buffer failed");
+		}
+		if (buffer != null)
+			return bufferDelete(buffer, key, rid);
+		boolean logged = BTLog.begin(dbname, false, key, rid);
+		try {
+			return deleteEntry(key, rid);
+		} finally {
+			if (logged)
+				BTLog.end();
+		}
 	}
 
 	/*
-	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
-	 * *pstartrid)
-	 * 
-	 * find left-most occurrence of `lo_key', going all the way left if lo_key
+	 * Delete an entry of a buffered index: the delete goes into the buffer
+	 * if the entry is there, on the leaves or in the buffer. The flush lock
+	 * is held shared and the messages are locked from the search until the
+	 * delete is added, so no flush or other change comes in between.
+	 */
+	private boolean bufferDelete(BTMessageBuffer buffer, KeyClass key,
+			RID rid) throws DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, KeyNotMatchException,
+			UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		checkKeyType(key);
+		boolean full;
+		buffer.beginRead();
+		try {
+			boolean logged = BTLog.begin(dbname, false, key, rid);
+			try {
+				buffer.lock();
+				try {
+					List<RID> rids = new ArrayList<RID>();
+					lookup(key, rids);
+					if (!holds(rids, rid))
+						return false;
+					buffer.add(false, key, rid);
+					full = buffer.full();
+				} finally {
+					buffer.unlock();
+				}
+			} finally {
+				if (logged)
+					BTLog.end();
+			}
+		} catch (ConvertException | NodeNotMatchException e) {
+			// from writing the buffer
+			throw new DeleteRecException(e, "buffering the delete failed");
+		} finally {
+			buffer.endRead();
+		}
+		if (full && buffer.canFlush())
+			flushForDelete(buffer);
+		return true;
+	}
+
+	/*
+	 * flushMessages of full messages for a delete, which throws fewer
+	 * exceptions.
+	 */
+	void flushForDelete(BTMessages messages) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		try {
+			flushMessages(messages, true);
+		} catch (ConvertException | NodeNotMatchException
+				| LeafInsertRecException | InsertException
+				| KeyTooLongException e) {
+			// from reading the buffer or the inserts of a flush
+			throw new DeleteRecException(e, "flushing the buffer failed");
+		}
+	}
+
+	private boolean deleteEntry(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, KeyNotMatchException,
+			UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
+			return NaiveDelete(key, rid);
+		else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE)
+			return FullDelete(key, rid);
+		else
+			throw new DeleteFashionException(null, "");
+	}
+
+	/*
+	 * Add an insert to the buffer of a buffered index. The
+	 * buffer is not flushed here, as the change holds the log gate (see
+	 * BTLog) and a flush waits for the searches that merge the buffer; the
+	 * caller flushes it once the change is done if true is returned. A
+	 * thread that reads the index itself, e.g. by an open scan, cannot wait
+	 * for them, so the buffer grows instead.
+	 */
+	private boolean bufferInsert(BTMessageBuffer buffer, KeyClass key,
+			RID rid) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			PinPageException, UnpinPageException, IOException {
+		checkKeyType(key);
+		buffer.lock();
+		try {
+			buffer.add(true, key, rid);
+			return buffer.full() && buffer.canFlush();
+		} finally {
+			buffer.unlock();
+		}
+	}
+
+	private static boolean holds(List<RID> rids, RID rid) {
+		for (RID entry : rids)
+			if (entry.equals(rid))
+				return true;
+		return false;
+	}
+
+	private void checkKeyType(KeyClass key) throws KeyNotMatchException,
+			IOException {
+		if ((key instanceof IntegerKey) != (headerPage.get_keyType() == AttrType.attrInteger))
+			throw new KeyNotMatchException(null,
+					"the key does not match the index");
+	}
+
+	/*
+	 * Apply the messages of a buffer or a memtable to the tree and take them
+	 * out, if they are full or, with whenFull unset, if there are any. The
+	 * flush lock is taken first, then the log gate, then the lock of the
+	 * messages (see BTMessages), which are not locked while they are
+	 * applied.
+	 */
+	void flushMessages(BTMessages messages, boolean whenFull)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, FreePageException, RecordNotFoundException,
+			IndexFullDeleteException, IOException {
+		messages.beginFlush();
+		try {
+			boolean logged = BTLog.beginFlush(dbname);
+			try {
+				List<BTMessages.Message> batch;
+				messages.lock();
+				try {
+					// unless another thread flushed meanwhile
+					if (whenFull ? !messages.full() : messages.isEmpty())
+						return;
+					batch = messages.all();
+				} finally {
+					messages.unlock();
+				}
+				applyMessages(batch);
+				messages.lock();
+				try {
+					messages.remove(batch);
+				} finally {
+					messages.unlock();
+				}
+			} finally {
+				if (logged)
+					BTLog.end();
+			}
+		} finally {
+			messages.endFlush();
+		}
+	}
+
+	/*
+	 * Apply a batch of messages (see BTMessages) to the tree, in key order,
+	 * and in the order they were made for one key. A run of inserts goes
+	 * down the tree once per leaf it reaches rather than once per insert
+	 * (see insertSorted); a delete, and an insert into a counted index,
+	 * take the path of Delete or insert.
+	 */
+	void applyMessages(List<BTMessages.Message> batch)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, FreePageException, RecordNotFoundException,
+			IndexFullDeleteException, IOException {
+		boolean counted = isCounted();
+		int next = 0;
+		while (next < batch.size()) {
+			BTMessages.Message message = batch.get(next);
+			if (!message.insert) {
+				deleteEntry(message.key, message.rid);
+				next++;
+			} else if (counted) {
+				insertEntry(message.key, message.rid);
+				next++;
+			} else
+				next = insertSorted(batch, next);
+		}
+	}
+
+	/*
+	 * Insert the inserts of the batch from `from' on into the leaf the
+	 * first one belongs to, found as insertInLeaf finds it: up to the first
+	 * delete, the first key from the next separator on, or the first insert
+	 * the leaf has no room for. If the leaf takes none, the first insert
+	 * takes the path of insert, which splits the leaf. Returns where the
+	 * inserts left start.
+	 */
+	private int insertSorted(List<BTMessages.Message> batch, int from)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		BTMessages.Message first = batch.get(from);
+		int next = from;
+		Page page = new Page();
+		PageId pageno = latchRoot(page, false);
+		if (pageno.pid != INVALID_PAGE
+				&& BTIntPage.type(page.getpage()) != NodeType.INDEX) {
+			unpinPage(pageno);
+			BTLatches.release(pageno.pid);
+		} else if (pageno.pid != INVALID_PAGE) {
+			// the bound of the right-most leaf, and the separator of the
+			// next leaf: the one of the lowest level that has one
+			boolean rightmost = true;
+			KeyClass lowKey = null;
+			KeyClass highKey = null;
+			while (BTIntPage.type(page.getpage()) == NodeType.INDEX) {
+				BTIndexPage indexPage = new BTIndexPage(page,
+						headerPage.get_keyType());
+				int childSlot = childSlotFor(indexPage, first.key);
+				boolean lastChild = childSlot == indexPage.getSlotCnt() - 1;
+				if (rightmost && lastChild && childSlot >= 0)
+					lowKey = entryAt(indexPage, childSlot).key;
+				if (!lastChild)
+					highKey = entryAt(indexPage, childSlot + 1).key;
+				rightmost = rightmost && lastChild;
+				PageId childId = BTPageOps.childAt(indexPage, childSlot);
+				page = descend(pageno, childId, true);
+				pageno = childId;
+			}
+
+			// posting leaves add the rid to the record of its key
+			boolean intLeaves = headerPage.get_keyType() == AttrType.attrInteger
+					&& !postingLeaves();
+			try {
+				BTLeafPage leaf = new BTLeafPage(page, headerPage.get_keyType());
+				for (; next < batch.size(); next++) {
+					BTMessages.Message message = batch.get(next);
+					if (!message.insert
+							|| (highKey != null && BT.keyCompare(message.key,
+									highKey) >= 0))
+						break;
+					boolean inserted = intLeaves ? BTIntPage.insert(page
+							.getpage(), ((IntegerKey) message.key).getKey()
+							.intValue(), message.rid) : insertLeafEntry(leaf,
+							message.key, message.rid);
+					if (!inserted)
+						break;
+				}
+				unpinPage(pageno, next > from);
+				if (next > from && rightmost)
+					setRightmostLeaf(pageno, lowKey);
+			} finally {
+				BTLatches.release(pageno.pid);
+			}
+		}
+		if (next == from) {
+			// the leaf is full, the root is a leaf or there is no root yet
+			insertEntry(first.key, first.rid);
+			next++;
+		}
+		return next;
+	}
+
+	/**
+	 * Apply the inserts and deletes kept in the buffer of a buffered index
+	 * (see isBuffered) to the leaves. It waits for the lookups and scans
+	 * that merge the buffer, so the calling thread must not have a scan of
+	 * the index open. Nothing is done for other indexes.
+	 *
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 * @exception DeleteFashionException
+	 *                neither full delete nor naive delete
+	 * @exception LeafRedistributeException
+	 *                redistribution error in leaf pages
+	 * @exception RedistributeException
+	 *                redistribution error in index pages
+	 * @exception InsertRecException
+	 *                error when insert in index page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception RecordNotFoundException
+	 *                error delete a record in a BT page
+	 * @exception IndexFullDeleteException
+	 *                fill delete error
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void flushBuffer() throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			DeleteFashionException, LeafRedistributeException,
+			RedistributeException, InsertRecException, FreePageException,
+			RecordNotFoundException, IndexFullDeleteException, IOException {
+		BTMessageBuffer buffer = messageBuffer();
+		if (buffer != null && !buffer.isEmpty())
+			flushMessages(buffer, false);
+	}
+
+	/*
+	 * flushBuffer for the searches that do not merge the buffer and for a
+	 * bulk load, which throw fewer exceptions.
+	 */
+	private void flushFirst() throws IOException {
+		try {
+			flushBuffer();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("flushing the buffer failed", e);
+		}
+	}
+
+	/*
+	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
+	 * *pstartrid)
+	 * 
+	 * find left-most occurrence of `lo_key', going all the way left if lo_key
 	 * is null.
 	 * 
 	 * Starting record returned in *pstartrid, on page *pppage, which is pinned.
@@ -663,108 +2182,281 @@ else{
 	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
+		return findRunStart(lo_key, startrid, false);
+	}
+
+	/*
+	 * findRunStart for a scan, with the leaf latched shared, or for a delete,
+	 * with the leaf latched exclusive if `exclusive' is set. The index pages
+	 * are not latched (see optimisticLeaf) unless the search keeps running
+	 * into writers.
+	 */
+	private BTLeafPage findRunStart(KeyClass lo_key, RID startrid,
+			boolean exclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
 		BTLeafPage pageLeaf;
 		BTIndexPage pageIndex;
-		Page page;
+		Page page = new Page();
 		BTSortedPage sortPage;
-		PageId pageno;
-		PageId curpageno = null; // iterator
+		PageId pageno = null;
 		PageId prevpageno;
-		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
-
-		pageno = headerPage.get_rootId();
-
-		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
-			return pageLeaf;
-		}
 
-		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		// the index pages are read without latches unless the visits are
+		// traced
+		if (trace == null)
+			pageno = optimisticLeaf(lo_key, false, 0, page, exclusive);
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
-		}
+		if (pageno == null) {
+			pageno = latchRoot(page, exclusive);
+			if (pageno.pid == INVALID_PAGE)
+				return null;
 
-		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+			writeTrace("VISIT node " + pageno);
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
-			}
+			// ASSERTION
+			// - pageno and sortPage is the root of the btree
+			// - pageno and sortPage valid, pinned and latched
 
-			unpinPage(pageno);
+			while (sortPage.getType() == NodeType.INDEX) {
+				pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+				// the child behind the last entry with a key less than lo_key
+				prevpageno = pageIndex.getPrevPage();
+				if (lo_key != null)
+					prevpageno = BTPageOps.childAt(pageIndex, BTPageOps
+							.lowerBound(pageIndex, lo_key) - 1);
 
-			pageno = prevpageno;
-			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+				page = descend(pageno, prevpageno, exclusive);
+				pageno = prevpageno;
+				sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
+				writeTrace("VISIT node " + pageno);
 			}
-
+		} else if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
+			pageLeaf = null; // should be handled by
+			// startrid =INVALID_PAGEID ; // the caller
+			return pageLeaf;
 		}
 
 		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
-			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
+		int slot = lo_key == null ? 0 : leafLowerBound(pageLeaf, lo_key);
+		while (slot == pageLeaf.getSlotCnt()) {
+			// empty page or all keys less than lo_key: have to go right
+			pageLeaf = nextLeaf(pageLeaf, exclusive);
+			if (pageLeaf == null) {
 				// oops, no more records, so set this scan to indicate this.
 				return null;
 			}
 
-			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
+			pageno = new PageId(pageLeaf.getCurPage().pid);
+			slot = lo_key == null ? 0 : leafLowerBound(pageLeaf, lo_key);
 		}
 
 		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
+		// - startrid: the first record with a key not less than lo_key
+		// - pageLeaf, pageno valid, pinned and latched; scan will unpin it
+		// when done
 
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+		startrid.pageNo = new PageId(pageno.pid);
+		startrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * Search down to the leaf for a key without latching the index pages,
+	 * so that readers do not contend on the upper levels. Every index page
+	 * is copied between a stamp of its version and the validation of that
+	 * stamp (see BTLatches.optimistic), and kept decoded in nodeCache; a
+	 * page that is found there is neither pinned nor copied. The parent's stamp is validated again
+	 * once the child's stamp is taken: a split or merge of the child changes
+	 * the parent too, and the search starts over from the header. Only the
+	 * leaf is latched, shared, or exclusive if `exclusiveLeaf' is set, and
+	 * pinned into `page'.
+	 *
+	 * The search goes to the child behind the last entry with a key less
+	 * than `key', as findRunStart does, or all the way left for a null key.
+	 * If `intSearch' is set, the index has integer keys and is searched for
+	 * `intKey' on the bytes of the copies instead. Returns
+	 * the id of the leaf, INVALID_PAGE for an empty tree, or null if the
+	 * search kept running into writers, which the caller then waits for by
+	 * coupling latches.
+	 */
+	private PageId optimisticLeaf(KeyClass key, boolean intSearch,
+			int intKey, Page page, boolean exclusiveLeaf)
+			throws PinPageException, IOException, KeyNotMatchException,
+			ConstructPageException {
+		int keyType = headerPage.get_keyType();
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++) {
+			int parent = headerPageId.pid;
+			long parentStamp = BTLatches.optimistic(parent);
+			int pageno = headerPage.get_rootId().pid;
+			if (!BTLatches.validate(parent, parentStamp))
+				continue;
+			if (pageno == INVALID_PAGE)
+				return new PageId(INVALID_PAGE);
+
+			while (true) {
+				long stamp = BTLatches.optimistic(pageno);
+				// the parent still links to the page
+				if (!BTLatches.validate(parent, parentStamp))
+					break;
+				BTNodeCache.Node node = nodeCache.get(pageno);
+				if (node != null) {
+					// the stamp of the page is validated with the child's
+					parent = pageno;
+					parentStamp = stamp;
+					pageno = intSearch ? node.child(intKey) : node.child(key);
+					continue;
+				}
+				long changes = BTLatches.changes(pageno);
+				byte[] data = copyPage(pageno);
+				if (!BTLatches.validate(pageno, stamp))
+					break;
+
+				if (BTIntPage.type(data) != NodeType.INDEX) {
+					if (exclusiveLeaf)
+						BTLatches.exclusive(pageno);
+					else
+						BTLatches.shared(pageno);
+					// the leaf has not moved in the meantime: it holds the
+					// key range the parent gave it
+					if (BTLatches.validate(parent, parentStamp)) {
+						PageId leafId = new PageId(pageno);
+						pinPage(leafId, page);
+						return leafId;
+					}
+					BTLatches.release(pageno);
+					break;
+				}
+
+				node = nodeCache.put(pageno, data, changes, keyType);
+				parent = pageno;
+				parentStamp = stamp;
+				pageno = intSearch ? node.child(intKey) : node.child(key);
+			}
 		}
+		return null;
+	}
+
+	/*
+	 * findRunEnd: the mirror image of findRunStart. Find the right-most
+	 * entry whose key is not greater than `hi_key', going all the way right
+	 * if hi_key is null. Its rid is returned in `endrid', on the leaf that
+	 * is returned pinned and latched shared; null if there is no such entry.
+	 * Leaves left empty by deletes are skipped through their prevPage links;
+	 * the search starts again if a leaf changed while it went left (see
+	 * latchPrevLeaf).
+	 */
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		while (true) {
+			Page page = new Page();
+			PageId pageno = latchRoot(page, false);
+			if (pageno.pid == INVALID_PAGE)
+				return null;
+
+			BTSortedPage sortPage = new BTSortedPage(page,
+					headerPage.get_keyType());
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
+			writeTrace("VISIT node " + pageno);
 
-				if (nextpageno.pid == INVALID_PAGE) {
+			while (sortPage.getType() == NodeType.INDEX) {
+				BTIndexPage pageIndex = new BTIndexPage(page,
+						headerPage.get_keyType());
+				// the child behind the last entry with a key not greater than
+				// hi_key
+				int childSlot = hi_key == null ? pageIndex.getSlotCnt() - 1
+						: childSlotFor(pageIndex, hi_key);
+				PageId childpageno = BTPageOps.childAt(pageIndex, childSlot);
+
+				page = descend(pageno, childpageno, false);
+				pageno = childpageno;
+				sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+				writeTrace("VISIT node " + pageno);
+			}
+
+			BTLeafPage pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+			int slot = (hi_key == null ? pageLeaf.getSlotCnt() : leafUpperBound(
+					pageLeaf, hi_key)) - 1;
+			while (slot < 0) {
+				// empty page or all keys greater than hi_key: have to go left
+				PageId prevpageno = new PageId(pageLeaf.getPrevPage().pid);
+				if (prevpageno.pid == INVALID_PAGE) {
+					releasePage(pageLeaf);
 					return null;
 				}
 
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
+				pageLeaf = latchPrevLeaf(pageLeaf);
+				if (pageLeaf == null)
+					break;
+				pageno = prevpageno;
+				slot = (hi_key == null ? pageLeaf.getSlotCnt() : leafUpperBound(
+						pageLeaf, hi_key)) - 1;
+			}
 
-				curEntry = pageLeaf.getFirst(startrid);
+			if (pageLeaf != null) {
+				endrid.pageNo = new PageId(pageno.pid);
+				endrid.slotNo = slot;
+				return pageLeaf;
 			}
 		}
+	}
+
+	/*
+	 * Move from a pinned and latched leaf to the next one, which is latched
+	 * shared, or exclusive if `exclusive' is set, before the leaf is given
+	 * up. Returns the next leaf, pinned, or null at the end of the leaves.
+	 */
+	BTLeafPage nextLeaf(BTLeafPage leaf, boolean exclusive)
+			throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		PageId nextpageno = new PageId(leaf.getNextPage().pid);
+		BTLeafPage next = null;
+		if (nextpageno.pid != INVALID_PAGE) {
+			if (exclusive)
+				BTLatches.exclusive(nextpageno.pid);
+			else
+				BTLatches.shared(nextpageno.pid);
+			next = new BTLeafPage(pinPage(nextpageno), headerPage.get_keyType());
+		}
+		releasePage(leaf);
+		return next;
+	}
 
-		return pageLeaf;
+	/*
+	 * Give up a pinned leaf, latched shared, which has a previous leaf, and
+	 * latch that one shared and pin it. Leaves are latched from left to
+	 * right, so a thread going left gives up its leaf first; null is returned
+	 * if the leaf was changed in between, e.g. by a split of the previous
+	 * leaf or by entries moved between the two, and the caller has to search
+	 * anew.
+	 */
+	BTLeafPage latchPrevLeaf(BTLeafPage leaf) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException {
+		int leafId = leaf.getCurPage().pid;
+		PageId prevId = new PageId(leaf.getPrevPage().pid);
+		// the leaf is latched, so its version is not changing now
+		long stamp = BTLatches.optimistic(leafId);
+		releasePage(leaf);
+		BTLatches.shared(prevId.pid);
+		if (BTLatches.validate(leafId, stamp))
+			return new BTLeafPage(pinPage(prevId), headerPage.get_keyType());
+		BTLatches.release(prevId.pid);
+		return null;
+	}
+
+	/*
+	 * Unpin a page, e.g. a leaf a search returned, and give up its latch.
+	 */
+	void releasePage(HFPage page) throws IOException, UnpinPageException {
+		PageId pageno = new PageId(page.getCurPage().pid);
+		unpinPage(pageno);
+		BTLatches.release(pageno.pid);
 	}
 
 	/*
@@ -778,115 +2470,823 @@ else{
 	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
 	 * find the one containing <key,rid>, which we then delete via
 	 * BTLeafPage::delUserRid.
+	 *
+	 * Only the leaves are latched exclusive. The counts of a counted index
+	 * are kept by one writer at a time, which holds the header page.
 	 */
 
 	private boolean NaiveDelete(KeyClass key, RID rid)
 			throws LeafDeleteException, KeyNotMatchException, PinPageException,
 			ConstructPageException, IOException, UnpinPageException,
 			PinPageException, IndexSearchException, IteratorException
-			
-			{
-				//Create a leafPage
-		        BTLeafPage leafPage;
-				//Creating a iterator of type RID=> ridItr
-				RID ridItr = new RID();
-				//Creating a kDataentry
-				KeyDataEntry kDataEntry;
-				// find the first page and rid of the given key
-				leafPage = findRunStart(key, ridItr);
-				//If leafPage is NULL return false
-				if (leafPage == null)
+	{
+		boolean counted = isCounted();
+		BTLatchPath path = new BTLatchPath();
+		if (counted)
+			path.exclusive(headerPageId.pid);
+		try {
+			RID startrid = new RID();
+			// find the first page and rid of the given key
+			BTLeafPage leafPage = findRunStart(key, startrid, true);
+			while (leafPage != null) {
+				PageId pageno = new PageId(leafPage.getCurPage().pid);
+				if (deleteLeafEntry(leafPage, key, rid)) {
+					unpinPage(pageno, true);
+					BTLatches.release(pageno.pid);
+					if (counted)
+						uncount(headerPage.get_rootId(), key, pageno.pid, path);
+					return true;
+				}
+				// the duplicates of key may go on in the next page; pages
+				// left empty by earlier deletes are skipped
+				if (leafUpperBound(leafPage, key) != leafPage.getSlotCnt()) {
+					releasePage(leafPage);
 					return false;
-				//Set entry to leafPage.getCurrent(curRid)
-				kDataEntry = leafPage.getCurrent(ridItr);
-				//leaf pages 1st -> rid
-				RID fRID = new RID();
-				//Indicator if any deletions done in leaf node
-				int dlt=0;
-				while (true)
-					{
-					//Check if null.
-					//If true, go to next node.
-					while (kDataEntry == null)     
-					{   // creating nextPage
-						PageId nextPage = leafPage.getNextPage();
-						// unpinning previous page
-						unpinPage(leafPage.getCurPage());
-						if (nextPage.pid == INVALID_PAGE)
-							return false;
-						//Initialize the leafPage to nextPage
-						//Page nextPage = pinPage(nextPage);
-						leafPage = new BTLeafPage(nextPage, headerPage.get_keyType());
-						//Initializing entry by getting first RID of the leafPage
-						kDataEntry = leafPage.getFirst(fRID);
-					}
-					//Using KeyCompare checking the key and kDataEntry
-					if (BT.keyCompare(key, kDataEntry.key) > 0) 
-						//if positive value break
-						break;
-					while(leafPage.delEntry(new KeyDataEntry(key, rid)) == true)
-					{
-						// As it is true, the key is successfully is deleted;
-						//Go right
-						kDataEntry = leafPage.getCurrent(ridItr);
-						dlt = 1; //Deletion -> indicated.
-					}
-					//If the next entry is null.
-					//The page is full
-                    // Move to next leaf page continue
-					if(kDataEntry == null)
-						continue;
-					//If not then stop and EXIT by breaking
-					else                    
-						break;
 				}
-				//Unpin the leafPage using getCurPage()
-				unpinPage(leafPage.getCurPage());
-				if(dlt==1)
-					//If deleted
-					return true; 
-				else
-					//otherwise return false.
-					return false; 
+				leafPage = nextLeaf(leafPage, true);
 			}
-	/**
-	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
-	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
-	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
-	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
-	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
-	 * scan from lo_key to hi_key
+			return false;
+		} finally {
+			path.releaseAll();
+		}
+	}
+
+	/*
+	 * Status BTreeFile::FullDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index, keeping every
+	 * page but the root at least half full.
+	 * 
+	 * _FullDelete finds and deletes the entry on the way down; on the way back
+	 * up every parent repairs a child that fell below half full, by merging it
+	 * with a sibling when both fit in one page and by borrowing entries from
+	 * the sibling otherwise. At the end an index root without entries is
+	 * replaced by its only child, and an empty leaf root empties the tree.
 	 *
-	 * @param lo_key
-	 *            the key where we begin scanning. Input parameter.
-	 * @param hi_key
-	 *            the key where we stop scanning. Input parameter.
-	 * @exception IOException
-	 *                error from the lower layer
-	 * @exception KeyNotMatchException
-	 *                key is not integer key nor string key
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception ConstructPageException
-	 *                error in BT page constructor
-	 * @exception PinPageException
-	 *                error when pin a page
-	 * @exception UnpinPageException
-	 *                error when unpin a page
+	 * The pages are latched exclusive on the way down, from the header on.
+	 * Once a page is safe, i.e. it stays at least half full whatever happens
+	 * below it, and the entry can only be below it, the pages above it are
+	 * given up. The pages of a counted index are never safe, as their counts
+	 * change.
 	 */
-	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
-			throws IOException, KeyNotMatchException, IteratorException,
+
+	private boolean FullDelete(KeyClass key, RID rid)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, LeafDeleteException, PinPageException,
+			UnpinPageException, FreePageException, IteratorException,
+			ConstructPageException, IOException {
+
+		BTLatchPath path = new BTLatchPath();
+		path.exclusive(headerPageId.pid);
+		try {
+			// merges and redistribution move the right-most leaf and its bound
+			rightmost = null;
+
+			PageId rootId = headerPage.get_rootId();
+			if (rootId.pid == INVALID_PAGE)
+				return false;
+			if (!_FullDelete(key, rid, rootId, true, true, path))
+				return false;
+
+			// the root may only be empty if it was not safe, so the header
+			// is still latched then
+			while (path.holds(headerPageId.pid) && rootId.pid != INVALID_PAGE) {
+				path.exclusive(rootId.pid);
+				BTSortedPage root = new BTSortedPage(pinPage(rootId),
+						headerPage.get_keyType());
+				if (root.getSlotCnt() != 0) {
+					unpinPage(rootId);
+					break;
+				}
+				PageId newRootId = root.getType() == NodeType.INDEX ? root
+						.getPrevPage() : new PageId(INVALID_PAGE);
+				unpinPage(rootId);
+				freeLatchedPage(rootId);
+				updateHeader(newRootId);
+				rootId = newRootId;
+			}
+			return true;
+		} finally {
+			path.releaseAll();
+		}
+	}
+
+	/*
+	 * Delete <key, rid> from the subtree below `currentPageId', which is the
+	 * root if `root' is set. The page is latched exclusive into `path'; if
+	 * `confined' is set, the entry cannot be below its siblings, and the
+	 * pages above it are given up once it is safe. Returns true if the entry
+	 * was found.
+	 */
+	private boolean _FullDelete(KeyClass key, RID rid, PageId currentPageId,
+			boolean root, boolean confined, BTLatchPath path)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, LeafDeleteException, PinPageException,
+			UnpinPageException, IteratorException, ConstructPageException,
+			FreePageException, IOException {
+
+		path.exclusive(currentPageId.pid);
+		Page page = pinPage(currentPageId);
+		BTSortedPage sortedPage = new BTSortedPage(page,
+				headerPage.get_keyType());
+		if (confined && !isCounted() && safeForDelete(sortedPage, root))
+			path.releaseAbove(currentPageId.pid);
+
+		if (sortedPage.getType() == NodeType.LEAF) {
+			BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+			boolean found = deleteLeafEntry(leafPage, key, rid);
+			unpinPage(currentPageId, found);
+			if (!found)
+				path.release(currentPageId.pid);
+			return found;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+
+		// Duplicates of `key' may be spread over several children: start at
+		// the left-most child that can hold it, as findRunStart does, and go
+		// right while the separators are still equal to `key'.
+		int childSlot = BTPageOps.lowerBound(indexPage, key) - 1;
+		while (true) {
+			boolean lastCandidate = childSlot + 1 == indexPage.getSlotCnt()
+					|| BTPageOps.compareKey(indexPage, childSlot + 1, key) > 0;
+			PageId childId = BTPageOps.childAt(indexPage, childSlot);
+			// a safe page below may give this one up, and another writer
+			// may free it then: it must not be pinned after that
+			unpinPage(currentPageId);
+			// the pages above may still try their next children otherwise
+			boolean found = _FullDelete(key, rid, childId, false, confined
+					&& lastCandidate, path);
+			if (!path.holds(currentPageId.pid))
+				return found; // given up, unchanged
+			indexPage = new BTIndexPage(pinPage(currentPageId),
+					headerPage.get_keyType());
+			if (found) {
+				boolean dirty = fixUnderflow(indexPage, childSlot, path);
+				if (isCounted()) {
+					if (dirty)
+						recountAround(indexPage, childSlot);
+					else
+						BTPageOps.setChildCount(indexPage, childSlot, BTPageOps
+								.childCount(indexPage, childSlot) - 1);
+					dirty = true;
+				}
+				unpinPage(currentPageId, dirty);
+				return true;
+			}
+			childSlot++;
+			if (lastCandidate)
+				break;
+		}
+
+		unpinPage(currentPageId);
+		path.release(currentPageId.pid);
+		return false;
+	}
+
+	/*
+	 * Delete <key, rid> from a leaf latched exclusive. Returns false if the
+	 * leaf does not hold it.
+	 */
+	private boolean deleteLeafEntry(BTLeafPage leaf, KeyClass key, RID rid)
+			throws LeafDeleteException, KeyNotMatchException, IOException {
+		try {
+			if (postingLeaves())
+				return BTPostingLeaf.delete(leaf, key, rid, headerPage
+						.get_keyType());
+			int slot = leafFindEntry(leaf, key, rid);
+			if (slot < 0)
+				return false;
+			leaf.deleteSortedRecord(new RID(leaf.getCurPage(), slot));
+			return true;
+		} catch (DeleteRecException | PinPageException | UnpinPageException
+				| FreePageException e) {
+			throw new LeafDeleteException(e, "delete record failed");
+		}
+	}
+
+	/*
+	 * Does a page stay at least half full if it loses a record, or if one of
+	 * its records is replaced by a shorter one? The root only has to keep an
+	 * entry.
+	 */
+	private boolean safeForDelete(BTSortedPage page, boolean root)
+			throws IOException {
+		if (root)
+			return page.getSlotCnt() > 1;
+		return usedSpace(page) - maxRecordLength() - HFPage.SIZE_OF_SLOT >= halfPage();
+	}
+
+	/*
+	 * The child of `parent' behind `childSlot' (-1 for the left link) has just
+	 * lost an entry. If it is now less than half full, merge it with or
+	 * borrow from its right sibling, or its left one if it is the right-most
+	 * child. Returns true if the parent page was changed. The child is
+	 * latched in `path', and so is the sibling then.
+	 */
+	private boolean fixUnderflow(BTIndexPage parent, int childSlot,
+			BTLatchPath path)
+			throws LeafRedistributeException, RedistributeException,
+			PinPageException, UnpinPageException, IOException {
+
+		int siblingSlot;
+		if (childSlot + 1 < parent.getSlotCnt())
+			siblingSlot = childSlot + 1;
+		else if (childSlot >= 0)
+			siblingSlot = childSlot - 1;
+		else
+			return false; // the parent has no other child
+
+		PageId childId;
+		PageId siblingId;
+		try {
+			childId = BTPageOps.childAt(parent, childSlot);
+			siblingId = BTPageOps.childAt(parent, siblingSlot);
+		} catch (Exception e) {
+			throw new RedistributeException(e, "get sibling failed");
+		}
+
+		Page childPage = pinPage(childId);
+		BTSortedPage child = new BTSortedPage(childPage,
+				headerPage.get_keyType());
+		if (!isUnderflow(child)) {
+			unpinPage(childId);
+			return false;
+		}
+		if (siblingSlot < childSlot) {
+			// neighbours are latched from left to right
+			path.release(childId.pid);
+			path.exclusive(siblingId.pid);
+			path.exclusive(childId.pid);
+		} else
+			path.exclusive(siblingId.pid);
+		Page siblingPage = pinPage(siblingId);
+
+		Page leftPage = siblingSlot < childSlot ? siblingPage : childPage;
+		Page rightPage = siblingSlot < childSlot ? childPage : siblingPage;
+		int sepSlot = Math.max(childSlot, siblingSlot);
+
+		try {
+			if (child.getType() == NodeType.LEAF)
+				return fixLeafUnderflow(parent, sepSlot, new BTLeafPage(
+						leftPage, headerPage.get_keyType()), new BTLeafPage(
+						rightPage, headerPage.get_keyType()), path);
+			return fixIndexUnderflow(parent, sepSlot, new BTIndexPage(leftPage,
+					headerPage.get_keyType()), new BTIndexPage(rightPage,
+					headerPage.get_keyType()));
+		} catch (ConstructPageException e) {
+			throw new RedistributeException(e, "construct page failed");
+		}
+	}
+
+	/*
+	 * Merge or rebalance two neighbouring leaves, whose separator in `parent'
+	 * is the entry at `sepSlot'. Both leaves are pinned and get unpinned here.
+	 */
+	private boolean fixLeafUnderflow(BTIndexPage parent, int sepSlot,
+			BTLeafPage left, BTLeafPage right, BTLatchPath path)
+			throws LeafRedistributeException {
+		try {
+			// the right-most leaf or its bound may change
+			rightmost = null;
+			PageId leftId = left.getCurPage();
+			PageId rightId = right.getCurPage();
+
+			// prefix compressed leaves are merged and rebalanced by
+			// rewriting them, as their prefixes change
+			List<KeyDataEntry> all = null;
+			boolean merge;
+			if (prefixLeaves()) {
+				all = BTPrefixLeaf.entries(left);
+				all.addAll(BTPrefixLeaf.entries(right));
+				merge = BTPrefixLeaf.fits(all);
+			} else
+				merge = usedSpace(left) + usedSpace(right) <= MAX_SPACE
+						- HFPage.DPFIXED;
+
+			if (merge) {
+				if (all != null)
+					BTPrefixLeaf.write(left, all);
+				else {
+					// right keys all follow left keys, so records are appended
+					for (int i = 0; i < right.getSlotCnt(); i++)
+						left.insertRecord(recordAt(right, i));
+				}
+
+				PageId nextId = right.getNextPage();
+				left.setNextPage(nextId);
+				if (nextId.pid != INVALID_PAGE) {
+					path.exclusive(nextId.pid);
+					BTLeafPage next = new BTLeafPage(pinPage(nextId),
+							headerPage.get_keyType());
+					next.setPrevPage(leftId);
+					unpinPage(nextId, true);
+				}
+				parent.deleteSortedRecord(new RID(parent.getCurPage(), sepSlot));
+
+				unpinPage(leftId, true);
+				unpinPage(rightId);
+				freeLatchedPage(rightId);
+				return true;
+			}
+
+			boolean moved = false;
+			if (all != null) {
+				// split the entries where the two pages are most even
+				int leftCount = BTPrefixLeaf.balancedSplit(all);
+				if (leftCount > 0 && leftCount != left.getSlotCnt()) {
+					KeyClass newSep = shortestSeparator(all.get(leftCount - 1).key,
+							all.get(leftCount).key);
+					if (separatorFits(parent, sepSlot, newSep)) {
+						BTPrefixLeaf.write(left, all.subList(0, leftCount));
+						BTPrefixLeaf.write(right, all.subList(leftCount, all
+								.size()));
+						replaceSeparator(parent, sepSlot, newSep, rightId);
+						moved = true;
+					}
+				}
+			} else if (isUnderflow(left)) {
+				// move the first entries of right to the end of left
+				while (isUnderflow(left) && right.getSlotCnt() > 1) {
+					byte[] record = recordAt(right, 0);
+					KeyClass newSep = shortestSeparator(entryAt(right, 0).key,
+							entryAt(right, 1).key);
+					if (usedSpace(right) - record.length - HFPage.SIZE_OF_SLOT < halfPage()
+							|| !separatorFits(parent, sepSlot, newSep))
+						break;
+					left.insertRecord(record);
+					right.deleteSortedRecord(new RID(rightId, 0));
+					replaceSeparator(parent, sepSlot, newSep, rightId);
+					moved = true;
+				}
+			} else {
+				// move the last entries of left to the front of right
+				while (isUnderflow(right) && left.getSlotCnt() > 1) {
+					int last = left.getSlotCnt() - 1;
+					KeyClass newSep = shortestSeparator(entryAt(left, last - 1).key,
+							entryAt(left, last).key);
+					if (usedSpace(left) - left.getSlotLength(last) - HFPage.SIZE_OF_SLOT < halfPage()
+							|| !separatorFits(parent, sepSlot, newSep))
+						break;
+					BTPageOps.insertRecordAt(right, 0, recordAt(left, last));
+					left.deleteSortedRecord(new RID(leftId, last));
+					replaceSeparator(parent, sepSlot, newSep, rightId);
+					moved = true;
+				}
+			}
+
+			unpinPage(leftId, moved);
+			unpinPage(rightId, moved);
+			return moved;
+		} catch (Exception e) {
+			throw new LeafRedistributeException(e, "redistribute failed");
+		}
+	}
+
+	/*
+	 * Merge or rebalance two neighbouring index pages, whose separator in
+	 * `parent' is the entry at `sepSlot'. Entries rotate through the parent:
+	 * the separator comes down into the receiving page and the donor's
+	 * boundary key goes up. Both pages get unpinned here.
+	 */
+	private boolean fixIndexUnderflow(BTIndexPage parent, int sepSlot,
+			BTIndexPage left, BTIndexPage right) throws RedistributeException {
+		try {
+			PageId leftId = left.getCurPage();
+			PageId rightId = right.getCurPage();
+			KeyClass sepKey = entryAt(parent, sepSlot).key;
+			byte[] down = indexRecord(sepKey, right.getPrevPage(),
+					leftLinkCount(right));
+
+			if (usedSpace(left) + usedSpace(right) + down.length
+					+ HFPage.SIZE_OF_SLOT <= MAX_SPACE - HFPage.DPFIXED) {
+				left.insertRecord(down);
+				for (int i = 0; i < right.getSlotCnt(); i++)
+					left.insertRecord(recordAt(right, i));
+				parent.deleteSortedRecord(new RID(parent.getCurPage(), sepSlot));
+
+				unpinPage(leftId, true);
+				unpinPage(rightId);
+				freeLatchedPage(rightId);
+				return true;
+			}
+
+			boolean moved = false;
+			if (isUnderflow(left)) {
+				while (isUnderflow(left) && right.getSlotCnt() > 0) {
+					KeyDataEntry first = entryAt(right, 0);
+					down = indexRecord(sepKey, right.getPrevPage(),
+							leftLinkCount(right));
+					if (left.available_space() < down.length
+							|| usedSpace(right) - right.getSlotLength(0)
+									- HFPage.SIZE_OF_SLOT < halfPage()
+							|| !separatorFits(parent, sepSlot, first.key))
+						break;
+					left.insertRecord(down);
+					right.setPrevPage(((IndexData) first.data).getData());
+					if (isCounted())
+						BTPageOps.setChildCount(right, -1, BTPageOps
+								.childCount(right, 0));
+					right.deleteSortedRecord(new RID(rightId, 0));
+					replaceSeparator(parent, sepSlot, first.key, rightId);
+					sepKey = first.key;
+					moved = true;
+				}
+			} else {
+				while (isUnderflow(right) && left.getSlotCnt() > 0) {
+					int last = left.getSlotCnt() - 1;
+					KeyDataEntry entry = entryAt(left, last);
+					down = indexRecord(sepKey, right.getPrevPage(),
+							leftLinkCount(right));
+					if (right.available_space() < down.length
+							|| usedSpace(left) - left.getSlotLength(last)
+									- HFPage.SIZE_OF_SLOT < halfPage()
+							|| !separatorFits(parent, sepSlot, entry.key))
+						break;
+					BTPageOps.insertRecordAt(right, 0, down);
+					right.setPrevPage(((IndexData) entry.data).getData());
+					if (isCounted())
+						BTPageOps.setChildCount(right, -1, BTPageOps
+								.childCount(left, last));
+					left.deleteSortedRecord(new RID(leftId, last));
+					replaceSeparator(parent, sepSlot, entry.key, rightId);
+					sepKey = entry.key;
+					moved = true;
+				}
+			}
+
+			unpinPage(leftId, moved);
+			unpinPage(rightId, moved);
+			return moved;
+		} catch (Exception e) {
+			throw new RedistributeException(e, "redistribute failed");
+		}
+	}
+
+	/*
+	 * Can the separator at `sepSlot' be replaced by one holding `key'?
+	 */
+	private boolean separatorFits(BTIndexPage parent, int sepSlot, KeyClass key)
+			throws KeyNotMatchException, NodeNotMatchException, IOException {
+		return indexRecordLength(key) <= parent.available_space()
+				+ parent.getSlotLength(sepSlot);
+	}
+
+	/*
+	 * Give the separator at `sepSlot' a new key. The entry stays in its slot:
+	 * a sorted insert would put it behind separators with an equal key and so
+	 * mix up the order of the children.
+	 */
+	private void replaceSeparator(BTIndexPage parent, int sepSlot,
+			KeyClass key, PageId childId) throws DeleteRecException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			IOException {
+		int count = isCounted() ? BTPageOps.childCount(parent, sepSlot) : 0;
+		parent.deleteSortedRecord(new RID(parent.getCurPage(), sepSlot));
+		BTPageOps.insertRecordAt(parent, sepSlot, indexRecord(key, childId,
+				count));
+	}
+
+	/*
+	 * The record of the index entry <key, childId>. In a counted index the
+	 * record holds `count', the number of leaf entries below the child, in
+	 * front of the page id.
+	 */
+	private byte[] indexRecord(KeyClass key, PageId childId, int count)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		byte[] record = BT.getBytesFromEntry(new KeyDataEntry(key, childId));
+		if (!isCounted())
+			return record;
+		byte[] countedRecord = new byte[record.length + 4];
+		System.arraycopy(record, 0, countedRecord, 0, record.length - 4);
+		Convert.setIntValue(count, record.length - 4, countedRecord);
+		Convert.setIntValue(childId.pid, record.length, countedRecord);
+		return countedRecord;
+	}
+
+	private int indexRecordLength(KeyClass key) throws KeyNotMatchException,
+			NodeNotMatchException, IOException {
+		return BT.getKeyDataLength(key, NodeType.INDEX) + (isCounted() ? 4 : 0);
+	}
+
+	private int leftLinkCount(BTIndexPage page) throws IOException {
+		return isCounted() ? BTPageOps.childCount(page, -1) : 0;
+	}
+
+	/*
+	 * The number of leaf entries below a page of a counted index.
+	 */
+	private int subtreeCount(PageId pageno) throws PinPageException,
+			UnpinPageException, ConstructPageException, IOException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortedPage = new BTSortedPage(page,
+				headerPage.get_keyType());
+		int count = sortedPage.getSlotCnt();
+		if (sortedPage.getType() == NodeType.INDEX)
+			count = BTPageOps.entryCount(new BTIndexPage(page, headerPage
+					.get_keyType()));
+		unpinPage(pageno);
+		return count;
+	}
+
+	/*
+	 * Count the whole subtree below a page of a counted index again, and
+	 * store the count of every child. Returns the number of leaf entries.
+	 */
+	private int recount(PageId pageno) throws PinPageException,
+			UnpinPageException, ConstructPageException, IOException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortedPage = new BTSortedPage(page,
+				headerPage.get_keyType());
+		if (sortedPage.getType() != NodeType.INDEX) {
+			unpinPage(pageno);
+			return sortedPage.getSlotCnt();
+		}
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		int count = 0;
+		for (int slot = -1; slot < indexPage.getSlotCnt(); slot++) {
+			int childCount = recount(BTPageOps.childAt(indexPage, slot));
+			BTPageOps.setChildCount(indexPage, slot, childCount);
+			count += childCount;
+		}
+		unpinPage(pageno, true);
+		return count;
+	}
+
+	/*
+	 * After a merge or a redistribution below `childSlot', count the
+	 * children of `parent' the two pages may now be at.
+	 */
+	private void recountAround(BTIndexPage parent, int childSlot)
+			throws PinPageException, UnpinPageException,
+			ConstructPageException, IOException {
+		int last = Math.min(childSlot + 1, parent.getSlotCnt() - 1);
+		for (int slot = Math.max(childSlot - 1, -1); slot <= last; slot++)
+			BTPageOps.setChildCount(parent, slot, subtreeCount(BTPageOps
+					.childAt(parent, slot)));
+	}
+
+	/*
+	 * Take the entry a naive delete removed from the leaf `leafId' off the
+	 * counts on the path from `pageno' down to it. The leaf holds entries
+	 * with `key', so only the children that may hold `key' are searched.
+	 * Returns false if the leaf is not below `pageno'. The index pages are
+	 * latched exclusive in `path', below the header.
+	 */
+	private boolean uncount(PageId pageno, KeyClass key, int leafId,
+			BTLatchPath path) throws PinPageException, UnpinPageException,
+			ConstructPageException, KeyNotMatchException, IOException {
+		if (pageno.pid == leafId)
+			return true;
+		path.exclusive(pageno.pid);
+		Page page = pinPage(pageno);
+		if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX) {
+			unpinPage(pageno);
+			return false;
+		}
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		int slot = BTPageOps.lowerBound(indexPage, key) - 1;
+		while (true) {
+			if (uncount(BTPageOps.childAt(indexPage, slot), key, leafId, path)) {
+				BTPageOps.setChildCount(indexPage, slot, BTPageOps.childCount(
+						indexPage, slot) - 1);
+				unpinPage(pageno, true);
+				return true;
+			}
+			slot++;
+			if (slot == indexPage.getSlotCnt()
+					|| BTPageOps.compareKey(indexPage, slot, key) > 0)
+				break;
+		}
+		unpinPage(pageno);
+		return false;
+	}
+
+	/*
+	 * Slot of the right-most entry whose key is not greater than `key', or
+	 * -1 for the left link: the child an insert of `key' goes to.
+	 */
+	private static int childSlotFor(BTIndexPage indexPage, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		return BTPageOps.upperBound(indexPage, key) - 1;
+	}
+
+	/*
+	 * Insert <key, rid> into a leaf behind the entries with an equal key.
+	 * Returns false if the leaf has no room for it.
+	 */
+	private boolean insertLeafEntry(BTLeafPage leaf, KeyClass key, RID rid)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, ConstructPageException, PinPageException,
+			UnpinPageException, IOException {
+		if (prefixLeaves())
+			return BTPrefixLeaf.insert(leaf, key, rid);
+		if (postingLeaves())
+			return BTPostingLeaf.insert(leaf, key, rid, headerPage
+					.get_keyType());
+		if (leaf.available_space() < BT.getKeyDataLength(key, NodeType.LEAF))
+			return false;
+		BTPageOps.insertRecordAt(leaf, BTPageOps.upperBound(leaf, key), BT
+				.getBytesFromEntry(new KeyDataEntry(key, rid)));
+		return true;
+	}
+
+	/*
+	 * A new, empty leaf in the leaf format of the index. It is pinned.
+	 */
+	private BTLeafPage newLeafPage() throws ConstructPageException,
+			IOException {
+		BTLeafPage leaf;
+		synchronized (BTBuffers.diskLock()) {
+			leaf = new BTLeafPage(headerPage.get_keyType());
+		}
+		BTLatches.setFreed(leaf.getCurPage().pid, false);
+		if (prefixLeaves())
+			BTPrefixLeaf.init(leaf);
+		return leaf;
+	}
+
+	/*
+	 * A new, empty index page. It is pinned.
+	 */
+	private BTIndexPage newIndexPage() throws ConstructPageException,
+			IOException {
+		BTIndexPage indexPage;
+		synchronized (BTBuffers.diskLock()) {
+			indexPage = new BTIndexPage(headerPage.get_keyType());
+		}
+		BTLatches.setFreed(indexPage.getCurPage().pid, false);
+		return indexPage;
+	}
+
+	private int leafLowerBound(BTLeafPage leaf, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		if (prefixLeaves())
+			return BTPrefixLeaf.lowerBound(leaf, key);
+		return BTPageOps.lowerBound(leaf, key);
+	}
+
+	private int leafUpperBound(BTLeafPage leaf, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		if (prefixLeaves())
+			return BTPrefixLeaf.upperBound(leaf, key);
+		return BTPageOps.upperBound(leaf, key);
+	}
+
+	private int leafFindEntry(BTLeafPage leaf, KeyClass key, RID rid)
+			throws KeyNotMatchException, IOException {
+		if (prefixLeaves())
+			return BTPrefixLeaf.findEntry(leaf, key, rid);
+		return BTPageOps.findEntry(leaf, key, rid);
+	}
+
+	/*
+	 * The whole key in a slot of a leaf.
+	 */
+	private KeyClass leafKeyAt(BTLeafPage leaf, int slot)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		if (prefixLeaves())
+			return BTPrefixLeaf.keyAt(leaf, slot);
+		return entryAt(leaf, slot).key;
+	}
+
+	/*
+	 * The entry in a slot of a leaf, with its whole key.
+	 */
+	KeyDataEntry leafEntryAt(BTLeafPage leaf, int slot)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		KeyDataEntry entry = entryAt(leaf, slot);
+		if (prefixLeaves())
+			entry.key = BTPrefixLeaf.keyAt(leaf, slot);
+		return entry;
+	}
+
+	/*
+	 * The entries in a slot of a leaf, with their whole key: the one entry
+	 * of the slot, or all of them for a posting leaf.
+	 */
+	List<KeyDataEntry> leafEntriesAt(BTLeafPage leaf, int slot)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, PinPageException, UnpinPageException,
+			IOException {
+		if (!postingLeaves())
+			return Collections.singletonList(leafEntryAt(leaf, slot));
+		List<RID> rids = new ArrayList<RID>();
+		BTPostingLeaf.read(leaf.getpage(), slot, headerPage.get_keyType(),
+				rids);
+		KeyClass key = entryAt(leaf, slot).key;
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>(rids.size());
+		for (RID rid : rids)
+			entries.add(new KeyDataEntry(key, rid));
+		return entries;
+	}
+
+	private KeyDataEntry entryAt(BTSortedPage page, int slot)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		return BT.getEntryFromBytes(page.getpage(), page.getSlotOffset(slot),
+				page.getSlotLength(slot), headerPage.get_keyType(),
+				page.getType());
+	}
+
+	private static byte[] recordAt(BTSortedPage page, int slot)
+			throws IOException {
+		int offset = page.getSlotOffset(slot);
+		return Arrays.copyOfRange(page.getpage(), offset,
+				offset + page.getSlotLength(slot));
+	}
+
+	/*
+	 * Bytes taken by records and their slots.
+	 */
+	private static int usedSpace(BTSortedPage page) throws IOException {
+		return MAX_SPACE - HFPage.DPFIXED - page.available_space()
+				- HFPage.SIZE_OF_SLOT;
+	}
+
+	private static int halfPage() {
+		return (MAX_SPACE - HFPage.DPFIXED) / 2;
+	}
+
+	private static boolean isUnderflow(BTSortedPage page) throws IOException {
+		return usedSpace(page) < halfPage();
+	}
+
+	/**
+	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
+	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
+	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
+	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
+	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
+	 * scan from lo_key to hi_key
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
+		BTMessageBuffer buffer = searchBuffer();
+		if (buffer == null)
+			return leafScan(lo_key, hi_key);
+		// the scan holds the flush lock until it is done
+		buffer.beginRead();
+		try {
+			return new BTBufferedScan(this, buffer, null, leafScan(lo_key,
+					hi_key), lo_key, hi_key);
+		} catch (IOException | KeyNotMatchException | IteratorException
+				| ConstructPageException | PinPageException
+				| UnpinPageException | RuntimeException e) {
+			buffer.endRead();
+			throw e;
+		}
+	}
+
+	/*
+	 * new_scan over the leaves only.
+	 */
+	private BTFileScan leafScan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTFileScan scan;
+		if (prefixLeaves()) {
+			// the leaves hold the keys without their prefix
+			BTPrefixScan prefixScan = new BTPrefixScan();
+			prefixScan.hiKey = hi_key;
+			scan = prefixScan;
+		} else if (postingLeaves()) {
+			// the leaf records hold the rids of all entries of their key
+			scan = new BTPostingScan();
+			scan.endkey = hi_key;
+		} else {
+			scan = new BTReadAheadScan();
+			scan.endkey = hi_key;
+		}
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
 			return scan;
 		}
 
 		scan.treeFilename = dbname;
-		scan.endkey = hi_key;
 		scan.didfirst = false;
 		scan.deletedcurrent = false;
 		scan.curRid = new RID();
@@ -899,40 +3299,725 @@ else{
 		return scan;
 	}
 
-	void trace_children(PageId id) throws IOException, IteratorException,
+	/**
+	 * create a scan that returns the entries from hi_key down to lo_key, in
+	 * descending order. It starts at the right-most entry not greater than
+	 * hi_key and follows the prevPage links of the leaves, so it reads only
+	 * the leaves it returns entries from.
+	 *
+	 * @param lo_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @return the scan
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTReverseScan new_reverse_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
+		flushFirst();
+		BTReverseScan scan = new BTReverseScan();
+		scan.bfile = this;
+		scan.lowKey = lo_key;
+		scan.prefixLeaves = prefixLeaves();
+		scan.postingLeaves = postingLeaves();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.didfirst = false;
+		scan.deletedcurrent = false;
+		scan.curRid = new RID();
 
-		if (trace != null) {
+		// this sets up scan at the starting position, ready for iteration
+		scan.leafPage = findRunEnd(hi_key, scan.curRid);
+		return scan;
+	}
 
-			BTSortedPage sortedPage;
-			RID metaRid = new RID();
-			PageId childPageId;
-			KeyClass key;
-			KeyDataEntry entry;
-			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+	/**
+	 * A spliterator over the entries from lo_key to hi_key, both included,
+	 * in key order. It splits its range at separator keys of the index, so
+	 * the parts scan disjoint ranges.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for no bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for no bound. Input
+	 *            parameter.
+	 * @return the spliterator
+	 */
+	public Spliterator<KeyDataEntry> spliterator(KeyClass lo_key,
+			KeyClass hi_key) {
+		try {
+			flushFirst();
+		} catch (IOException e) {
+			throw new IllegalStateException("index scan failed", e);
+		}
+		return new BTSpliterator(this, lo_key, hi_key, true);
+	}
 
-			// Now print all the child nodes of the page.
-			if (sortedPage.getType() == NodeType.INDEX) {
-				BTIndexPage indexPage = new BTIndexPage(sortedPage,
-						headerPage.get_keyType());
-				trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				trace.writeBytes(" " + indexPage.getPrevPage());
-				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + ((IndexData) entry.data).getData());
+	/**
+	 * A stream over the entries from lo_key to hi_key, both included, in key
+	 * order. A parallel stream scans the parts its spliterator splits into
+	 * on several threads.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for no bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for no bound. Input
+	 *            parameter.
+	 * @param parallel
+	 *            whether the stream is parallel. Input parameter.
+	 * @return the stream
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key,
+			boolean parallel) {
+		return StreamSupport.stream(spliterator(lo_key, hi_key), parallel);
+	}
+
+	/**
+	 * create a cursor over the range of new_scan(lo_key, hi_key). The cursor
+	 * reuses its state for every entry instead of returning a KeyDataEntry.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the cursor, positioned in front of its first entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTCursor new_cursor(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		flushFirst();
+		BTCursor cursor = new BTCursor(headerPage.get_keyType(),
+				prefixLeaves(), postingLeaves(), hi_key);
+		RID startrid = new RID();
+		BTLeafPage leaf = findRunStart(lo_key, startrid);
+		if (leaf != null)
+			cursor.open(leaf, startrid.slotNo);
+		return cursor;
+	}
+
+	/**
+	 * create a cursor over the integer keys from lo_key to hi_key, both
+	 * included. Unlike new_cursor(), it finds its first leaf reading the
+	 * index pages as bytes (see BTIntPage).
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the cursor, positioned in front of its first entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTCursor new_scan(int lo_key, int hi_key) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException {
+		checkIntKeys();
+		flushFirst();
+		BTCursor cursor = new BTCursor(AttrType.attrInteger, false,
+				postingLeaves(), new IntegerKey(hi_key));
+		int slot = findIntRunStart(lo_key);
+		if (slot >= 0) {
+			// the cursor pins the leaf for itself, and takes over its latch
+			int leafId = intPageId.get().pid;
+			unpinIntPage(false);
+			try {
+				cursor.open(leafId, slot);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new PinPageException(e, "");
+			}
+		}
+		return cursor;
+	}
+
+	/**
+	 * Find the rid of the first entry with the given integer key.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @param rid
+	 *            the rid of the entry, if there is one. Output parameter.
+	 * @return true if the index holds the key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public boolean lookup(int key, RID rid) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException {
+		checkIntKeys();
+		flushFirst();
+		int slot = findIntRunStart(key);
+		if (slot < 0)
+			return false;
+		byte[] data = intPage.get().getpage();
+		boolean found = BTIntPage.compare(BTIntPage.keyAt(data, slot), key) == 0;
+		if (found && postingLeaves()) {
+			// the first rid of the record
+			BTPostingLeaf.Rids rids = new BTPostingLeaf.Rids();
+			BTPostingLeaf.read(data, slot, AttrType.attrInteger, rids);
+			rids.get(0, rid);
+		} else if (found)
+			BTIntPage.ridAt(data, slot, rid);
+		unpinIntPage(false);
+		BTLatches.release(intPageId.get().pid);
+		return found;
+	}
+
+	/**
+	 * Find the rids of all entries with a key, without opening a scan.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @param rids
+	 *            the rids of the entries are added to it, in index order.
+	 *            Output parameter.
+	 * @return the number of entries with the key
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int lookup(KeyClass key, List<RID> rids) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		int before = rids.size();
+		BTMessageBuffer buffer = searchBuffer();
+		if (buffer != null)
+			buffer.beginRead();
+		try {
+			RID start = new RID();
+			BTLeafPage leaf = findRunStart(key, start);
+			if (leaf != null) {
+				leaf = collectRun(leaf, start.slotNo, key, rids);
+				if (leaf != null)
+					releasePage(leaf);
+			}
+			if (buffer != null)
+				buffer.apply(key, rids, before);
+		} finally {
+			if (buffer != null)
+				buffer.endRead();
+		}
+		return rids.size() - before;
+	}
+
+	/**
+	 * Find the rids of all entries with a key, without opening a scan.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids of the entries, in index order
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public List<RID> lookup(KeyClass key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		lookup(key, rids);
+		return rids;
+	}
+
+	/**
+	 * Look up a batch of keys in ascending order. The search goes down the
+	 * tree once and then forward over the leaves; it only starts again from
+	 * the root for a key that is neither on the leaf the last key was found
+	 * on nor on the next one, and the index pages it passes then are mostly
+	 * decoded already (see BTNodeCache).
+	 *
+	 * The rids of all keys are added to one list: those of keys[i] end at
+	 * ends[i], counted from the size the list had before, and start where
+	 * the ones of keys[i - 1] end. The list and the array can be used again
+	 * for the next batch.
+	 *
+	 * @param keys
+	 *            the keys, sorted in ascending order; a key may repeat.
+	 *            Input parameter.
+	 * @param rids
+	 *            the rids of the entries are added to it, in key order.
+	 *            Output parameter.
+	 * @param ends
+	 *            where the rids of each key end, at least as long as keys.
+	 *            Output parameter.
+	 * @return the number of rids added
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int multiGet(KeyClass[] keys, List<RID> rids, int[] ends)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (ends.length < keys.length)
+			throw new IllegalArgumentException("ends is shorter than keys");
+		int before = rids.size();
+		RID start = new RID();
+		BTLeafPage leaf = null;
+		// false once no entry is left with a key as great as the next one
+		boolean more = true;
+		BTMessageBuffer buffer = searchBuffer();
+		if (buffer != null)
+			buffer.beginRead();
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				KeyClass key = keys[i];
+				int runStart = i == 0 ? 0 : ends[i - 1];
+				if (i > 0) {
+					int order = BT.keyCompare(key, keys[i - 1]);
+					if (order < 0)
+						throw new IllegalArgumentException(
+								"keys are not in ascending order");
+					if (order == 0) {
+						// the same run again
+						int from = i == 1 ? 0 : ends[i - 2];
+						for (int j = from; j < runStart; j++)
+							rids.add(rids.get(before + j));
+						ends[i] = rids.size() - before;
+						continue;
+					}
 				}
-			} else if (sortedPage.getType() == NodeType.LEAF) {
-				BTLeafPage leafPage = new BTLeafPage(sortedPage,
-						headerPage.get_keyType());
-				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
-				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+				if (more) {
+					// all entries left of the leaf have smaller keys, so the
+					// run starts on it if any of its keys is as great
+					int slot = -1;
+					if (leaf != null) {
+						slot = leafLowerBound(leaf, key);
+						if (slot == leaf.getSlotCnt()) {
+							leaf = nextLeaf(leaf, false);
+							if (leaf == null)
+								more = false;
+							else {
+								slot = leafLowerBound(leaf, key);
+								if (slot == leaf.getSlotCnt()) {
+									releasePage(leaf);
+									leaf = null;
+								}
+							}
+						}
+					}
+					if (more && leaf == null) {
+						leaf = findRunStart(key, start);
+						if (leaf == null)
+							more = false;
+						slot = start.slotNo;
+					}
+					if (more) {
+						leaf = collectRun(leaf, slot, key, rids);
+						if (leaf == null)
+							more = false;
+					}
 				}
+				if (buffer != null)
+					buffer.apply(key, rids, before + runStart);
+				ends[i] = rids.size() - before;
+			}
+		} finally {
+			if (leaf != null)
+				releasePage(leaf);
+			if (buffer != null)
+				buffer.endRead();
+		}
+		return rids.size() - before;
+	}
+
+	/*
+	 * Add the rids of the entries with `key' from `slot' of a leaf on, which
+	 * is pinned and latched shared and holds no smaller key from there. The
+	 * run may go on over the next leaves. Returns the leaf the run ends on,
+	 * still pinned and latched, or null at the end of the leaves.
+	 */
+	private BTLeafPage collectRun(BTLeafPage leaf, int slot, KeyClass key,
+			List<RID> rids) throws KeyNotMatchException, IOException,
+			PinPageException, UnpinPageException, ConstructPageException {
+		boolean posting = postingLeaves();
+		while (true) {
+			int end = leafUpperBound(leaf, key);
+			byte[] data = leaf.getpage();
+			for (; slot < end; slot++) {
+				if (posting) {
+					BTPostingLeaf.read(data, slot, headerPage.get_keyType(),
+							rids);
+					continue;
+				}
+				RID rid = new RID();
+				BTIntPage.ridAt(data, slot, rid);
+				rids.add(rid);
+			}
+			if (end < leaf.getSlotCnt())
+				return leaf;
+			// the run may go on
+			leaf = nextLeaf(leaf, false);
+			if (leaf == null)
+				return null;
+			slot = 0;
+		}
+	}
+
+	/*
+	 * The integer key form of findRunStart: the slot of the first entry
+	 * whose key is not less than `key', with its leaf pinned in intPage and
+	 * latched shared, or -1 if there is no such entry. The index pages are
+	 * read optimistically as well.
+	 */
+	private int findIntRunStart(int key) throws IOException,
+			PinPageException, UnpinPageException {
+		int pageno;
+		byte[] data;
+		PageId leafId;
+		try {
+			leafId = optimisticLeaf(null, true, key, intPage.get(), false);
+		} catch (KeyNotMatchException e) {
+			throw new PinPageException(e, "optimistic search failed");
+		} catch (ConstructPageException e) {
+			throw new PinPageException(e, "optimistic search failed");
+		}
+
+		if (leafId != null) {
+			pageno = leafId.pid;
+			if (pageno == INVALID_PAGE)
+				return -1;
+			intPageId.get().pid = pageno;
+			data = intPage.get().getpage();
+		} else {
+			BTLatches.shared(headerPageId.pid);
+			try {
+				pageno = headerPage.get_rootId().pid;
+				if (pageno != INVALID_PAGE)
+					BTLatches.shared(pageno);
+			} finally {
+				BTLatches.release(headerPageId.pid);
+			}
+			if (pageno == INVALID_PAGE)
+				return -1;
+
+			data = pinIntPage(pageno);
+			while (BTIntPage.type(data) == NodeType.INDEX) {
+				// the child behind the last entry with a key less than key
+				int child = BTIntPage.childAt(data, BTIntPage.lowerBound(data,
+						key) - 1);
+				unpinIntPage(false);
+				BTLatches.shared(child);
+				BTLatches.release(pageno);
+				pageno = child;
+				data = pinIntPage(child);
+			}
+		}
+
+		int slot = BTIntPage.lowerBound(data, key);
+		while (slot == BTIntPage.slotCount(data)) {
+			// empty page or all keys less than key: have to go right
+			int next = BTIntPage.nextPage(data);
+			unpinIntPage(false);
+			if (next != INVALID_PAGE)
+				BTLatches.shared(next);
+			BTLatches.release(pageno);
+			if (next == INVALID_PAGE)
+				return -1;
+			pageno = next;
+			data = pinIntPage(next);
+			slot = BTIntPage.lowerBound(data, key);
+		}
+		return slot;
+	}
+
+	/**
+	 * The number of entries with a key less than `key', read from the counts
+	 * on one path down the tree.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the position the first entry with `key' has, or would have, in
+	 *         key order
+	 * @exception IndexSearchException
+	 *                the index is not counted
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int rank(KeyClass key) throws IndexSearchException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			ConstructPageException, IOException {
+		if (key == null)
+			return 0;
+		return position(key, false);
+	}
+
+	/**
+	 * The number of entries with keys from lo_key to hi_key, both included,
+	 * read from the counts on two paths down the tree.
+	 *
+	 * @param lo_key
+	 *            the lowest key of the range, null for no bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the highest key of the range, null for no bound. Input
+	 *            parameter.
+	 * @return the number of entries in the range
+	 * @exception IndexSearchException
+	 *                the index is not counted
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int countRange(KeyClass lo_key, KeyClass hi_key)
+			throws IndexSearchException, KeyNotMatchException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IOException {
+		int count = position(hi_key, true) - rank(lo_key);
+		return Math.max(count, 0);
+	}
+
+	/**
+	 * The entry at a position in key order, found through the counts on one
+	 * path down the tree.
+	 *
+	 * @param k
+	 *            the position, counted from 0. Input parameter.
+	 * @return the entry, or null if the index has no more than k entries
+	 * @exception IndexSearchException
+	 *                the index is not counted
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public KeyDataEntry select(int k) throws IndexSearchException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IOException {
+		if (!isCounted())
+			throw new IndexSearchException(null, "the index is not counted");
+		// the writers of a counted index hold the header exclusive
+		BTLatches.shared(headerPageId.pid);
+		try {
+			return select(headerPage.get_rootId(), k);
+		} finally {
+			BTLatches.release(headerPageId.pid);
+		}
+	}
+
+	private KeyDataEntry select(PageId pageno, int k)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, PinPageException, UnpinPageException,
+			ConstructPageException, IOException {
+		if (pageno.pid == INVALID_PAGE || k < 0)
+			return null;
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(page,
+					headerPage.get_keyType());
+			// skip the children that hold the entries in front of k
+			int slot = -1;
+			while (slot < pageIndex.getSlotCnt()
+					&& k >= BTPageOps.childCount(pageIndex, slot)) {
+				k -= BTPageOps.childCount(pageIndex, slot);
+				slot++;
+			}
+			PageId childpageno = slot < pageIndex.getSlotCnt() ? BTPageOps
+					.childAt(pageIndex, slot) : null;
+			unpinPage(pageno);
+			if (childpageno == null)
+				return null;
+
+			pageno = childpageno;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		KeyDataEntry entry = null;
+		if (k < leafPage.getSlotCnt()) {
+			entry = entryAt(leafPage, k);
+			entry.key = leafKeyAt(leafPage, k);
+		}
+		unpinPage(pageno);
+		return entry;
+	}
+
+	/*
+	 * The number of entries less than `key', or not greater than it if
+	 * `after' is set. A null key is greater than all keys.
+	 */
+	private int position(KeyClass key, boolean after)
+			throws IndexSearchException, KeyNotMatchException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IOException {
+		if (!isCounted())
+			throw new IndexSearchException(null, "the index is not counted");
+		BTLatches.shared(headerPageId.pid);
+		try {
+			return position(headerPage.get_rootId(), key, after);
+		} finally {
+			BTLatches.release(headerPageId.pid);
+		}
+	}
+
+	private int position(PageId pageno, KeyClass key, boolean after)
+			throws KeyNotMatchException, PinPageException,
+			UnpinPageException, ConstructPageException, IOException {
+		if (pageno.pid == INVALID_PAGE)
+			return 0;
+
+		int position = 0;
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(page,
+					headerPage.get_keyType());
+			// the child an insert of key goes to if `after', else the one
+			// findRunStart goes to; the children in front of it are counted
+			int childSlot;
+			if (key == null)
+				childSlot = pageIndex.getSlotCnt() - 1;
+			else if (after)
+				childSlot = childSlotFor(pageIndex, key);
+			else
+				childSlot = BTPageOps.lowerBound(pageIndex, key) - 1;
+			for (int slot = -1; slot < childSlot; slot++)
+				position += BTPageOps.childCount(pageIndex, slot);
+			PageId childpageno = BTPageOps.childAt(pageIndex, childSlot);
+			unpinPage(pageno);
+
+			pageno = childpageno;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		if (key == null)
+			position += leafPage.getSlotCnt();
+		else
+			position += after ? leafUpperBound(leafPage, key) : leafLowerBound(
+					leafPage, key);
+		unpinPage(pageno);
+		return position;
+	}
+
+	void trace_children(PageId id) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+
+		// the trace file is shared by all threads, see writeTrace
+		synchronized (BTreeFile.class) {
+			if (trace != null) {
+
+				BTSortedPage sortedPage;
+				RID metaRid = new RID();
+				PageId childPageId;
+				KeyClass key;
+				KeyDataEntry entry;
+				sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
+
+				// Now print all the child nodes of the page.
+				if (sortedPage.getType() == NodeType.INDEX) {
+					BTIndexPage indexPage = new BTIndexPage(sortedPage,
+							headerPage.get_keyType());
+					trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
+					trace.writeBytes(" " + indexPage.getPrevPage());
+					for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
+							.getNext(metaRid)) {
+						trace.writeBytes("   " + ((IndexData) entry.data).getData());
+					}
+				} else if (sortedPage.getType() == NodeType.LEAF) {
+					BTLeafPage leafPage = new BTLeafPage(sortedPage,
+							headerPage.get_keyType());
+					trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
+					for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
+							.getNext(metaRid)) {
+						trace.writeBytes("   " + entry.key + " " + entry.data);
+					}
+				}
+				unpinPage(id);
+				trace.writeBytes(lineSep);
+				trace.flush();
 			}
-			unpinPage(id);
-			trace.writeBytes(lineSep);
-			trace.flush();
 		}
 
 	}
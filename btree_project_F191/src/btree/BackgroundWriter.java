@@ -0,0 +1,124 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BackgroundWriter writes changed pages of a ConcurrentBufMgr to disk in a
+ * thread of its own, so that the threads that change indexes rarely have to
+ * write a page to get a frame:
+ *
+ * <pre>
+ * ConcurrentBufMgr.install(numBufs);
+ * BackgroundWriter writer = BackgroundWriter.start(10, 32, 1000);
+ * ...
+ * writer.stop();
+ * </pre>
+ *
+ * Every round it writes a few pages that are changed and not pinned, in the
+ * order of their page ids, and now and then it makes a checkpoint: with a
+ * log installed, a BTLog checkpoint, which is the only way pages reach disk
+ * then; otherwise it writes all changed pages and syncs the database file.
+ */
+public class BackgroundWriter implements Runnable {
+
+	private final ConcurrentBufMgr bm;
+	private final long roundMillis;
+	private final int pagesPerRound;
+	private final long checkpointMillis;
+	private final Thread thread;
+	private boolean stopping;
+
+	private BackgroundWriter(ConcurrentBufMgr bm, long roundMillis,
+			int pagesPerRound, long checkpointMillis) {
+		this.bm = bm;
+		this.roundMillis = roundMillis;
+		this.pagesPerRound = pagesPerRound;
+		this.checkpointMillis = checkpointMillis;
+		thread = new Thread(this, "BackgroundWriter");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Start a writer for the buffer manager of SystemDefs, which has to be
+	 * a ConcurrentBufMgr.
+	 *
+	 * @param roundMillis
+	 *            the time between two rounds. Input parameter.
+	 * @param pagesPerRound
+	 *            the most pages written in a round. Input parameter.
+	 * @param checkpointMillis
+	 *            the time between two checkpoints, 0 for none. Input
+	 *            parameter.
+	 * @return the writer, running
+	 */
+	public static BackgroundWriter start(long roundMillis, int pagesPerRound,
+			long checkpointMillis) {
+		if (!(SystemDefs.JavabaseBM instanceof ConcurrentBufMgr))
+			throw new IllegalStateException(
+					"the writer needs a ConcurrentBufMgr");
+		if (roundMillis <= 0 || pagesPerRound <= 0 || checkpointMillis < 0)
+			throw new IllegalArgumentException("bad writer settings");
+		BackgroundWriter writer = new BackgroundWriter(
+				(ConcurrentBufMgr) SystemDefs.JavabaseBM, roundMillis,
+				pagesPerRound, checkpointMillis);
+		writer.bm.cleaned = true;
+		writer.thread.start();
+		return writer;
+	}
+
+	/**
+	 * Stop the writer and wait for its round to end.
+	 *
+	 * @exception InterruptedException
+	 *                interrupted while waiting
+	 */
+	public void stop() throws InterruptedException {
+		// not interrupted: that would close a file channel it writes to
+		synchronized (this) {
+			stopping = true;
+			notifyAll();
+		}
+		thread.join();
+		bm.cleaned = false;
+	}
+
+	/**
+	 * The rounds of the writer.
+	 */
+	public void run() {
+		long lastCheckpoint = System.currentTimeMillis();
+		while (true) {
+			synchronized (this) {
+				if (!stopping)
+					try {
+						wait(roundMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				if (stopping)
+					return;
+			}
+			try {
+				bm.writeDirtyPages(pagesPerRound);
+				if (checkpointMillis > 0
+						&& System.currentTimeMillis() - lastCheckpoint >= checkpointMillis) {
+					checkpoint();
+					lastCheckpoint = System.currentTimeMillis();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void checkpoint() throws Exception {
+		if (BTLog.installed()) {
+			BTLog.checkpoint();
+			return;
+		}
+		bm.writeDirtyPages(Integer.MAX_VALUE);
+		BTLog.syncDB();
+	}
+}
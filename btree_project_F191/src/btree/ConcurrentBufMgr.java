@@ -0,0 +1,656 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * ConcurrentBufMgr is a buffer manager that several threads may call at
+ * once. It takes the place of the BufMgr of SystemDefs:
+ *
+ * <pre>
+ * new SystemDefs(dbpath, numPages, numBufs, &quot;Clock&quot;);
+ * ConcurrentBufMgr.install(numBufs);
+ * </pre>
+ *
+ * The page table is split into stripes with a lock each, and the pin count
+ * of a frame is changed with compare-and-set, so pinning or unpinning a
+ * page in the pool takes no lock but the one of its stripe. The disk
+ * manager is one file that is not safe for several threads: reading a page
+ * into the pool, writing one back and allocating or freeing pages is done
+ * with the lock of SystemDefs.JavabaseDB held. The clock only runs then,
+ * but it picks frames by their pin counts and reference bits alone, so it
+ * never waits for a thread that works with a page in the pool.
+ *
+ * A page that is freed while it is still pinned is freed when its last pin
+ * is given up.
+ *
+ * While writes are held (see holdWrites), a changed page that is replaced
+ * is kept aside instead of written, and is only written by flushPage or
+ * flushAllPages. Once as many pages are kept aside as the pool holds, the
+ * clock passes changed pages in its first round, and the log is asked for
+ * a checkpoint (see heldFull).
+ *
+ * A BackgroundWriter may clean pages ahead of the clock (see
+ * writeDirtyPages); the clock then passes changed pages in its first round,
+ * so that a thread that needs a frame rarely has to write one.
+ */
+public class ConcurrentBufMgr extends BufMgr {
+
+	/*
+	 * A frame of the pool. Its pin count is -1 while it is taken for
+	 * another page; pid, freed and the place in the page table only change
+	 * then, with the lock of the disk manager held.
+	 */
+	private static class Frame {
+		final byte[] data = new byte[MINIBASE_PAGESIZE];
+		final AtomicInteger pins = new AtomicInteger();
+		volatile int pid = INVALID_PAGE;
+		volatile boolean dirty;
+		volatile boolean referenced;
+		volatile boolean freed;
+
+		/*
+		 * Add a pin, unless the frame is taken for another page.
+		 */
+		boolean pin() {
+			while (true) {
+				int n = pins.get();
+				if (n < 0)
+					return false;
+				if (pins.compareAndSet(n, n + 1))
+					return true;
+			}
+		}
+
+		/*
+		 * Give up a pin; returns the pins left, -1 if there was none.
+		 */
+		int unpin() {
+			while (true) {
+				int n = pins.get();
+				if (n <= 0)
+					return -1;
+				if (pins.compareAndSet(n, n - 1))
+					return n - 1;
+			}
+		}
+	}
+
+	private final static int STRIPES = 64;
+
+	private final Frame[] frames;
+	private final List<HashMap<Integer, Frame>> stripes = new ArrayList<HashMap<Integer, Frame>>(
+			STRIPES);
+	// the hand of the clock, moved with the lock of the disk manager held
+	private int hand;
+	// the changed pages replaced while writes are held, by page id; guarded
+	// by the lock of the disk manager
+	private HashMap<Integer, byte[]> held;
+	// set while as many pages are kept aside as the pool holds
+	private volatile boolean heldFull;
+	// set while a background writer cleans pages
+	volatile boolean cleaned;
+	// where writeDirtyPages goes on
+	private int nextDirty;
+
+	/**
+	 * Create a buffer manager with a pool of numbufs pages.
+	 *
+	 * @param numbufs
+	 *            number of pages in the pool. Input parameter.
+	 */
+	public ConcurrentBufMgr(int numbufs) {
+		// BufMgr has no other constructor; its own pool is left empty
+		super(0, null);
+		frames = new Frame[numbufs];
+		for (int i = 0; i < numbufs; i++)
+			frames[i] = new Frame();
+		for (int i = 0; i < STRIPES; i++)
+			stripes.add(new HashMap<Integer, Frame>());
+	}
+
+	/**
+	 * Replace the buffer manager of SystemDefs by a ConcurrentBufMgr. The
+	 * pages of the old one are written out first; none may be pinned.
+	 *
+	 * @param numbufs
+	 *            number of pages in the pool. Input parameter.
+	 * @exception HashOperationException
+	 *                error from the old buffer manager
+	 * @exception PageUnpinnedException
+	 *                error from the old buffer manager
+	 * @exception PagePinnedException
+	 *                a page of the old buffer manager is pinned
+	 * @exception PageNotFoundException
+	 *                error from the old buffer manager
+	 * @exception BufMgrException
+	 *                error from the old buffer manager
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static void install(int numbufs) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		synchronized (SystemDefs.JavabaseBM) {
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseBM = new ConcurrentBufMgr(numbufs);
+		}
+	}
+
+	private HashMap<Integer, Frame> stripe(int pid) {
+		return stripes.get((pid & 0x7fffffff) % STRIPES);
+	}
+
+	/*
+	 * The frame of a page in the pool, or null.
+	 */
+	private Frame lookup(int pid) {
+		HashMap<Integer, Frame> stripe = stripe(pid);
+		synchronized (stripe) {
+			return stripe.get(pid);
+		}
+	}
+
+	/*
+	 * Pin a page if it is in the pool; returns its frame, or null.
+	 */
+	private Frame pinCached(int pid) {
+		HashMap<Integer, Frame> stripe = stripe(pid);
+		synchronized (stripe) {
+			Frame frame = stripe.get(pid);
+			if (frame == null || !frame.pin())
+				return null;
+			return frame;
+		}
+	}
+
+	/**
+	 * Pin a page. The page is read from disk unless it is in the pool
+	 * already, or emptyPage is set. page is set to the bytes of the frame.
+	 *
+	 * @param pageno
+	 *            page number in the Minibase. Input parameter.
+	 * @param page
+	 *            the pinned page. Output parameter.
+	 * @param emptyPage
+	 *            true if the page need not be read. Input parameter.
+	 * @exception BufferPoolExceededException
+	 *                all pages of the pool are pinned
+	 * @exception PageNotReadException
+	 *                reading the page failed
+	 * @exception BufMgrException
+	 *                writing back the page it replaces failed
+	 */
+	public void pinPage(PageId pageno, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		Frame frame = pinCached(pageno.pid);
+		if (frame == null) {
+			synchronized (SystemDefs.JavabaseDB) {
+				// another thread may have read it meanwhile
+				frame = pinCached(pageno.pid);
+				if (frame == null)
+					frame = load(pageno.pid, emptyPage);
+			}
+		}
+		page.setpage(frame.data);
+	}
+
+	/*
+	 * Read a page into a frame the clock picks, and pin it. The lock of the
+	 * disk manager is held.
+	 */
+	private Frame load(int pid, boolean emptyPage)
+			throws BufferPoolExceededException, PageNotReadException,
+			BufMgrException {
+		Frame frame = victim();
+		byte[] kept = held != null ? held.remove(pid) : null;
+		if (kept != null && !emptyPage) {
+			System.arraycopy(kept, 0, frame.data, 0, kept.length);
+			frame.dirty = true;
+		} else if (!emptyPage) {
+			try {
+				SystemDefs.JavabaseDB.read_page(new PageId(pid), new Page(
+						frame.data));
+			} catch (Exception e) {
+				frame.pins.set(0);
+				throw new PageNotReadException(e,
+						"BUFMGR: DB_READ_PAGE_ERROR.");
+			}
+		}
+		frame.pid = pid;
+		HashMap<Integer, Frame> stripe = stripe(pid);
+		synchronized (stripe) {
+			stripe.put(pid, frame);
+			frame.pins.set(1);
+		}
+		return frame;
+	}
+
+	/*
+	 * Take a frame for another page: go round the frames, skipping pinned
+	 * ones and giving referenced ones a second chance. The frame is
+	 * returned empty, with a pin count of -1. The lock of the disk manager
+	 * is held.
+	 */
+	private Frame victim() throws BufferPoolExceededException,
+			BufMgrException {
+		for (int i = 0; i < 2 * frames.length; i++) {
+			Frame frame = frames[hand];
+			hand = (hand + 1) % frames.length;
+			if (frame.pins.get() != 0)
+				continue;
+			if (frame.referenced) {
+				frame.referenced = false;
+				continue;
+			}
+			if ((cleaned || heldFull) && frame.dirty && i < frames.length)
+				continue;
+			if (frame.pins.compareAndSet(0, -1)) {
+				try {
+					empty(frame);
+				} catch (BufMgrException e) {
+					frame.pins.set(0);
+					throw e;
+				}
+				return frame;
+			}
+		}
+		throw new BufferPoolExceededException(null,
+				"BUFMGR: BUFFER_EXCEEDED.");
+	}
+
+	/*
+	 * Write back the page of a frame that is taken, or free it on disk if
+	 * it was freed, and remove it from the page table. The lock of the disk
+	 * manager is held.
+	 */
+	private void empty(Frame frame) throws BufMgrException {
+		int pid = frame.pid;
+		if (pid == INVALID_PAGE)
+			return;
+		try {
+			if (frame.freed)
+				SystemDefs.JavabaseDB.deallocate_page(new PageId(pid));
+			else if (frame.dirty && held != null) {
+				held.put(pid, frame.data.clone());
+				heldFull = held.size() >= frames.length;
+			}
+			else if (frame.dirty)
+				SystemDefs.JavabaseDB.write_page(new PageId(pid), new Page(
+						frame.data));
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: WRITE_BACK_ERROR.");
+		}
+		HashMap<Integer, Frame> stripe = stripe(pid);
+		synchronized (stripe) {
+			stripe.remove(pid);
+		}
+		frame.pid = INVALID_PAGE;
+		frame.dirty = false;
+		frame.freed = false;
+		frame.referenced = false;
+	}
+
+	/**
+	 * Unpin a page.
+	 *
+	 * @param pageno
+	 *            page number in the Minibase. Input parameter.
+	 * @param dirty
+	 *            true if the page was changed. Input parameter.
+	 * @exception HashEntryNotFoundException
+	 *                the page is not in the pool
+	 * @exception PageUnpinnedException
+	 *                the page is not pinned
+	 * @exception ReplacerException
+	 *                freeing the page failed after its last pin
+	 */
+	public void unpinPage(PageId pageno, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		Frame frame = lookup(pageno.pid);
+		if (frame == null)
+			throw new HashEntryNotFoundException(null,
+					"BUFMGR: HASH_NOT_FOUND.");
+		if (dirty)
+			frame.dirty = true;
+		int left = frame.unpin();
+		if (left < 0)
+			throw new PageUnpinnedException(null, "BUFMGR: PAGE_UNPINNED.");
+		if (left > 0)
+			return;
+		frame.referenced = true;
+		if (frame.freed) {
+			synchronized (SystemDefs.JavabaseDB) {
+				// unless it was pinned again or taken meanwhile
+				if (frame.freed && frame.pins.compareAndSet(0, -1)) {
+					try {
+						empty(frame);
+					} catch (BufMgrException e) {
+						throw new ReplacerException(e, "BUFMGR: FREE_ERROR.");
+					} finally {
+						frame.pins.set(0);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Allocate new pages and pin the first one.
+	 *
+	 * @param firstpage
+	 *            the first page, pinned. Output parameter.
+	 * @param howmany
+	 *            number of pages to allocate. Input parameter.
+	 * @return the id of the first page, null if it could not be pinned
+	 * @exception BufMgrException
+	 *                allocating the pages failed
+	 */
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		PageId pageno = new PageId();
+		synchronized (SystemDefs.JavabaseDB) {
+			try {
+				SystemDefs.JavabaseDB.allocate_page(pageno, howmany);
+			} catch (Exception e) {
+				throw new BufMgrException(e,
+						"BufMgr.java: allocate_page() failed");
+			}
+			try {
+				pinPage(pageno, firstpage, true);
+			} catch (Exception e) {
+				try {
+					SystemDefs.JavabaseDB.deallocate_page(pageno, howmany);
+				} catch (Exception f) {
+					throw new BufMgrException(f,
+							"BufMgr.java: deallocate_page() failed");
+				}
+				return null;
+			}
+		}
+		return pageno;
+	}
+
+	/**
+	 * Free a page. If it is still pinned, it is freed when its last pin is
+	 * given up.
+	 *
+	 * @param globalPageId
+	 *            page number in the Minibase. Input parameter.
+	 * @exception BufMgrException
+	 *                freeing the page failed
+	 */
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		synchronized (SystemDefs.JavabaseDB) {
+			Frame frame = lookup(globalPageId.pid);
+			if (frame == null) {
+				if (held != null)
+					held.remove(globalPageId.pid);
+				try {
+					SystemDefs.JavabaseDB.deallocate_page(new PageId(
+							globalPageId.pid));
+				} catch (Exception e) {
+					throw new BufMgrException(e,
+							"BufMgr.java: deallocate_page() failed");
+				}
+				return;
+			}
+			frame.freed = true;
+			if (frame.pins.compareAndSet(0, -1)) {
+				try {
+					empty(frame);
+				} finally {
+					frame.pins.set(0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a page of the pool to disk if it was changed. It stays in the
+	 * pool.
+	 *
+	 * @param pageid
+	 *            page number in the Minibase. Input parameter.
+	 * @exception PageNotFoundException
+	 *                the page id is invalid
+	 * @exception BufMgrException
+	 *                writing the page failed
+	 */
+	public void flushPage(PageId pageid) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException,
+			PageNotFoundException, BufMgrException, IOException {
+		if (pageid.pid == INVALID_PAGE)
+			throw new PageNotFoundException(null, "BUFMGR: INVALID_PAGE_NO");
+		synchronized (SystemDefs.JavabaseDB) {
+			Frame frame = lookup(pageid.pid);
+			if (frame != null)
+				flush(frame);
+			else if (held != null && held.containsKey(pageid.pid))
+				writeHeld(pageid.pid);
+		}
+	}
+
+	/**
+	 * Write all pages of the pool that were changed to disk.
+	 *
+	 * @exception BufMgrException
+	 *                writing a page failed
+	 */
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException,
+			PageNotFoundException, BufMgrException, IOException {
+		synchronized (SystemDefs.JavabaseDB) {
+			// in the order of the pages on disk
+			TreeMap<Integer, Frame> dirty = new TreeMap<Integer, Frame>();
+			for (Frame frame : frames)
+				if (frame.pid != INVALID_PAGE && frame.dirty)
+					dirty.put(frame.pid, frame);
+			if (held != null)
+				for (Integer pid : held.keySet())
+					dirty.put(pid, null);
+			for (Map.Entry<Integer, Frame> page : dirty.entrySet())
+				if (page.getValue() != null)
+					flush(page.getValue());
+				else
+					writeHeld(page.getKey());
+		}
+	}
+
+	/**
+	 * Write changed pages that are not pinned, in the order of their page
+	 * ids from where the last call stopped, unless writes are held. A page
+	 * that is latched exclusive, or that is changed while it is copied, is
+	 * left for later (see BTLatches).
+	 *
+	 * @param max
+	 *            the most pages to write. Input parameter.
+	 * @return the number of pages written
+	 * @exception BufMgrException
+	 *                writing a page failed
+	 */
+	int writeDirtyPages(int max) throws BufMgrException {
+		int[] pids = new int[frames.length];
+		int count = 0;
+		for (Frame frame : frames) {
+			int pid = frame.pid;
+			if (pid != INVALID_PAGE && frame.dirty && frame.pins.get() == 0)
+				pids[count++] = pid;
+		}
+		Arrays.sort(pids, 0, count);
+		int first = 0;
+		while (first < count && pids[first] < nextDirty)
+			first++;
+		int written = 0;
+		for (int i = 0; i < count && written < max; i++) {
+			int pid = pids[(first + i) % count];
+			nextDirty = pid + 1;
+			Frame frame = pinCached(pid);
+			if (frame == null)
+				continue;
+			try {
+				long stamp = BTLatches.optimistic(pid);
+				if (stamp == 0)
+					continue;
+				synchronized (SystemDefs.JavabaseDB) {
+					if (held != null)
+						return written;
+					if (!frame.dirty || frame.freed)
+						continue;
+					// changes made from now on make it dirty again
+					frame.dirty = false;
+					byte[] copy = frame.data.clone();
+					if (!BTLatches.validate(pid, stamp)) {
+						frame.dirty = true;
+						continue;
+					}
+					try {
+						SystemDefs.JavabaseDB.write_page(new PageId(pid),
+								new Page(copy));
+					} catch (Exception e) {
+						frame.dirty = true;
+						throw new BufMgrException(e,
+								"BufMgr.java: write_page() failed");
+					}
+				}
+				written++;
+			} finally {
+				try {
+					unpinPage(new PageId(pid), false);
+				} catch (Exception e) {
+					throw new BufMgrException(e, "BUFMGR: UNPIN_ERROR.");
+				}
+			}
+		}
+		if (written < max)
+			nextDirty = 0;
+		return written;
+	}
+
+	/*
+	 * Write a page that was kept aside. The lock of the disk manager is
+	 * held.
+	 */
+	private void writeHeld(int pid) throws BufMgrException {
+		try {
+			SystemDefs.JavabaseDB.write_page(new PageId(pid), new Page(held
+					.get(pid)));
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BufMgr.java: write_page() failed");
+		}
+		held.remove(pid);
+		heldFull = held.size() >= frames.length;
+	}
+
+	/**
+	 * Hold back writes of changed pages, or write them again as pages are
+	 * replaced, e.g. for a log that writes pages only at checkpoints (see
+	 * BTLog). Pages kept aside are written when writes are no longer held.
+	 *
+	 * @param hold
+	 *            true to hold writes back. Input parameter.
+	 * @exception BufMgrException
+	 *                writing a page failed
+	 */
+	void holdWrites(boolean hold) throws BufMgrException {
+		synchronized (SystemDefs.JavabaseDB) {
+			if (hold && held == null)
+				held = new HashMap<Integer, byte[]>();
+			else if (!hold && held != null) {
+				for (Integer pid : new ArrayList<Integer>(held.keySet()))
+					writeHeld(pid);
+				held = null;
+				heldFull = false;
+			}
+		}
+	}
+
+	/**
+	 * Are as many pages kept aside as the pool holds? They can only be
+	 * written by a checkpoint of the log then.
+	 *
+	 * @return true if a checkpoint is due
+	 */
+	boolean heldFull() {
+		return heldFull;
+	}
+
+	/**
+	 * Copies of the pages changed since they were last written, in the pool
+	 * or kept aside. The pages must not be changed meanwhile.
+	 *
+	 * @return the pages by page id
+	 */
+	Map<Integer, byte[]> changedPages() {
+		HashMap<Integer, byte[]> pages = new HashMap<Integer, byte[]>();
+		synchronized (SystemDefs.JavabaseDB) {
+			if (held != null)
+				pages.putAll(held);
+			for (Frame frame : frames)
+				if (frame.pid != INVALID_PAGE && !frame.freed && frame.dirty)
+					pages.put(frame.pid, frame.data.clone());
+		}
+		return pages;
+	}
+
+	/*
+	 * Write back the page of a frame if it is dirty. The lock of the disk
+	 * manager is held, so the frame is not taken for another page.
+	 */
+	private void flush(Frame frame) throws BufMgrException {
+		if (frame.pid == INVALID_PAGE || frame.freed || !frame.dirty)
+			return;
+		// changes made from now on make it dirty again
+		frame.dirty = false;
+		try {
+			SystemDefs.JavabaseDB.write_page(new PageId(frame.pid), new Page(
+					frame.data));
+		} catch (Exception e) {
+			frame.dirty = true;
+			throw new BufMgrException(e, "BufMgr.java: write_page() failed");
+		}
+	}
+
+	/**
+	 * Access method to data member.
+	 *
+	 * @return the number of pages in the pool
+	 */
+	public int getNumBuffers() {
+		// asked by the replacer of BufMgr while it is constructed
+		if (frames == null)
+			return super.getNumBuffers();
+		return frames.length;
+	}
+
+	/**
+	 * The number of pages in the pool that are not pinned.
+	 *
+	 * @return the number of frames with no pin
+	 */
+	public int getNumUnpinnedBuffers() {
+		int unpinned = 0;
+		for (Frame frame : frames)
+			if (frame.pins.get() == 0)
+				unpinned++;
+		return unpinned;
+	}
+}
@@ -0,0 +1,12 @@
+package btree;
+
+/**
+ * The classic split: half of the entries stay on the left page, half move to
+ * the new right page. This is the default policy of BTreeFile.
+ */
+public class HalfSplitPolicy implements SplitPolicy {
+
+	public int splitPoint(int entryCount, int insertPosition, boolean rightmost) {
+		return entryCount / 2;
+	}
+}
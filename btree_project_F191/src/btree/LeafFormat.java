@@ -0,0 +1,26 @@
+package btree;
+
+/**
+ * The encodings of leaf pages. The format of an index is chosen when the
+ * BTreeFile is created and recorded in its header page.
+ */
+public class LeafFormat {
+
+	/**
+	 * Every leaf entry holds its whole key.
+	 */
+	public static final int PLAIN = 0;
+
+	/**
+	 * For string keys only: a leaf stores the prefix that all of its keys
+	 * share once, and its entries hold only the rest of their keys.
+	 */
+	public static final int PREFIX = 1;
+
+	/**
+	 * A leaf stores each key once, with the rids of all of its entries; the
+	 * rids of a key with many entries go to overflow pages. Not for counted
+	 * indexes.
+	 */
+	public static final int POSTING = 2;
+}
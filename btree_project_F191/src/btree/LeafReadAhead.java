@@ -0,0 +1,153 @@
+package btree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * LeafReadAhead reads the leaves in front of a scan before the scan gets
+ * there. Once a scan has crossed START_AFTER leaves, a background thread
+ * follows the nextPage links from the leaf after the current one and reads
+ * the next leaves, so the scan finds them without waiting for the disk. The
+ * window doubles, up to MAX_WINDOW leaves, while the scan keeps going.
+ *
+ * With a ConcurrentBufMgr the reader pins each leaf, latched shared, and
+ * takes its link from the pinned page, so the leaves are in the pool when
+ * the scan gets there, and the links are the current ones even while a
+ * BTLog keeps changed pages from the disk. A BufMgr is not safe for
+ * another thread, so then the reader only reads the database file with a
+ * channel of its own, to bring the leaves into the cache of the operating
+ * system. A link read from a page that is not written back yet may be
+ * stale; that only costs a useless read.
+ */
+class LeafReadAhead implements GlobalConst {
+
+	// leaves a scan crosses before the read-ahead starts
+	private final static int START_AFTER = 2;
+	private final static int FIRST_WINDOW = 4;
+	private final static int MAX_WINDOW = 32;
+
+	private static ExecutorService reader;
+	// the database file, read by the reader thread only
+	private static FileChannel channel;
+	private static String channelName;
+
+	private int crossings;
+	private int window = FIRST_WINDOW;
+	// leaves read ahead that the scan has not reached yet
+	private int ahead;
+	// the leaf behind the last one read ahead
+	private volatile int frontier = INVALID_PAGE;
+	private Future<?> pending;
+
+	/**
+	 * Tell the read-ahead that the scan went into a new leaf.
+	 *
+	 * @param nextPage
+	 *            the page id of the leaf behind the new one. Input parameter.
+	 */
+	void crossed(int nextPage) {
+		crossings++;
+		if (ahead > 0)
+			ahead--;
+		if (crossings < START_AFTER || ahead > window / 2)
+			return;
+		if (pending != null && !pending.isDone())
+			return;
+
+		final int from = ahead == 0 ? nextPage : frontier;
+		if (from == INVALID_PAGE)
+			return;
+		final int count = window;
+		pending = reader().submit(new Runnable() {
+			public void run() {
+				frontier = readLeaves(from, count);
+			}
+		});
+		ahead += count;
+		window = Math.min(window * 2, MAX_WINDOW);
+	}
+
+	/*
+	 * Read `count' leaves, following their nextPage links from `pageno'.
+	 * Returns the leaf behind the last one read.
+	 */
+	private static int readLeaves(int pageno, int count) {
+		try {
+			if (SystemDefs.JavabaseBM instanceof ConcurrentBufMgr)
+				return pinLeaves(pageno, count);
+			return readFile(pageno, count);
+		} catch (Exception e) {
+			// reading ahead is only a hint
+			return INVALID_PAGE;
+		}
+	}
+
+	/*
+	 * Pin the leaves into the pool and unpin them again.
+	 */
+	private static int pinLeaves(int pageno, int count) throws Exception {
+		Page page = new Page();
+		PageId pid = new PageId();
+		for (int i = 0; i < count && pageno != INVALID_PAGE; i++) {
+			pid.pid = pageno;
+			BTLatches.shared(pageno);
+			try {
+				// a freed page is no leaf any more: the link was stale
+				if (BTLatches.isFreed(pageno))
+					return INVALID_PAGE;
+				BTBuffers.pinPage(pid, page);
+				pageno = BTIntPage.nextPage(page.getpage());
+				BTBuffers.unpinPage(pid, false);
+			} finally {
+				BTLatches.release(pid.pid);
+			}
+		}
+		return pageno;
+	}
+
+	/*
+	 * Read the leaves from the database file, with the channel that stays
+	 * open for it.
+	 */
+	private static int readFile(int pageno, int count) throws IOException {
+		String name = SystemDefs.JavabaseDB.db_name();
+		if (channel == null || !name.equals(channelName)) {
+			if (channel != null)
+				channel.close();
+			channel = null;
+			channel = new RandomAccessFile(name, "r").getChannel();
+			channelName = name;
+		}
+		ByteBuffer page = ByteBuffer.allocate(MINIBASE_PAGESIZE);
+		for (int i = 0; i < count && pageno != INVALID_PAGE; i++) {
+			long position = (long) pageno * MINIBASE_PAGESIZE;
+			if (pageno < 0 || position >= channel.size())
+				return INVALID_PAGE;
+			page.clear();
+			while (page.hasRemaining()
+					&& channel.read(page, position + page.position()) >= 0)
+				;
+			// the fields are written big-endian, as ByteBuffer reads them
+			pageno = page.getInt(HFPage.NEXT_PAGE);
+		}
+		return pageno;
+	}
+
+	private static synchronized ExecutorService reader() {
+		if (reader == null)
+			reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "btree leaf read-ahead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return reader;
+	}
+}
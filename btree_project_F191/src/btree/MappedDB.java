@@ -0,0 +1,205 @@
+package btree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * MappedDB is a disk manager that reads and writes pages through a memory
+ * mapping of the database file instead of a seek and a read or write call
+ * each. It takes the place of the DB of SystemDefs:
+ *
+ * <pre>
+ * new SystemDefs(dbpath, numPages, numBufs, &quot;Clock&quot;);
+ * MappedDB.install();
+ * </pre>
+ *
+ * The file is mapped in chunks of CHUNK_PAGES pages, each the first time
+ * one of its pages is read or written, so a large database that is mostly
+ * read maps only what it touches. A page is then copied from or to the
+ * mapping, which the operating system keeps in its page cache. The space
+ * map and the file directory are kept as by DB, in pages read and written
+ * the same way.
+ *
+ * Written pages reach the file when the system writes the mapping back, at
+ * the latest when the database is closed (see closeDB).
+ */
+public class MappedDB extends DB {
+
+	// pages mapped at once; 1 MB with the Minibase page size
+	private final static int CHUNK_PAGES = 1024;
+
+	private FileChannel channel;
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+	/**
+	 * Replace the disk manager of SystemDefs by a MappedDB for the same
+	 * file. The pages of the buffer manager are written out first; none may
+	 * be pinned, and no index may be in use meanwhile.
+	 *
+	 * @exception HashOperationException
+	 *                error from the buffer manager
+	 * @exception PageUnpinnedException
+	 *                error from the buffer manager
+	 * @exception PagePinnedException
+	 *                a page of the buffer manager is pinned
+	 * @exception PageNotFoundException
+	 *                error from the buffer manager
+	 * @exception BufMgrException
+	 *                error from the buffer manager
+	 * @exception InvalidPageNumberException
+	 *                error from the disk manager
+	 * @exception FileIOException
+	 *                error from the disk manager
+	 * @exception DiskMgrException
+	 *                error from the disk manager
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static void install() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, InvalidPageNumberException, FileIOException,
+			DiskMgrException, IOException {
+		synchronized (BTBuffers.diskLock()) {
+			SystemDefs.JavabaseBM.flushAllPages();
+			DB old = SystemDefs.JavabaseDB;
+			String name = old.db_name();
+			old.closeDB();
+			MappedDB db = new MappedDB();
+			SystemDefs.JavabaseDB = db;
+			db.openDB(name);
+		}
+	}
+
+	/**
+	 * Read a page from the mapping.
+	 *
+	 * @param pageno
+	 *            page number. Input parameter.
+	 * @param apage
+	 *            the page read. Output parameter.
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (pageno.pid < 0 || pageno.pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+		byte[] data = apage.getpage();
+		// a view of its own, so that threads do not share a position
+		ByteBuffer b = chunk(pageno.pid).duplicate();
+		b.position(offset(pageno.pid));
+		b.get(data);
+	}
+
+	/**
+	 * Write a page to the mapping.
+	 *
+	 * @param pageno
+	 *            page number. Input parameter.
+	 * @param apage
+	 *            the page to write. Input parameter.
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (pageno.pid < 0 || pageno.pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
+		byte[] data = apage.getpage();
+		ByteBuffer b = chunk(pageno.pid).duplicate();
+		b.position(offset(pageno.pid));
+		b.put(data);
+	}
+
+	/**
+	 * Write the mapping back to the file and close the database.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void closeDB() throws IOException {
+		unmap(true);
+		super.closeDB();
+	}
+
+	/**
+	 * Close the database and delete its file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void DBDestroy() throws IOException {
+		unmap(false);
+		super.DBDestroy();
+	}
+
+	/**
+	 * Write the pages written so far to the file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void force() throws IOException {
+		for (MappedByteBuffer chunk : chunks)
+			if (chunk != null)
+				chunk.force();
+	}
+
+	private static int offset(int pid) {
+		return (pid % CHUNK_PAGES) * MINIBASE_PAGESIZE;
+	}
+
+	/*
+	 * The chunk of a page, mapped if it is not yet. The file has its full
+	 * size from openDB on, so the last chunk is only mapped up to its end.
+	 */
+	private ByteBuffer chunk(int pid) throws FileIOException {
+		int n = pid / CHUNK_PAGES;
+		MappedByteBuffer[] mapped = chunks;
+		if (n < mapped.length && mapped[n] != null)
+			return mapped[n];
+		synchronized (this) {
+			mapped = Arrays.copyOf(chunks, Math.max(n + 1, chunks.length));
+			if (mapped[n] == null) {
+				try {
+					if (channel == null)
+						channel = new RandomAccessFile(db_name(), "rw")
+								.getChannel();
+					long start = (long) n * CHUNK_PAGES * MINIBASE_PAGESIZE;
+					long size = Math.min((long) CHUNK_PAGES * MINIBASE_PAGESIZE,
+							channel.size() - start);
+					mapped[n] = channel.map(FileChannel.MapMode.READ_WRITE,
+							start, size);
+				} catch (IOException e) {
+					throw new FileIOException(e, "DB file I/O error");
+				}
+				chunks = mapped;
+			}
+			return mapped[n];
+		}
+	}
+
+	private synchronized void unmap(boolean force) throws IOException {
+		if (force)
+			force();
+		chunks = new MappedByteBuffer[0];
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
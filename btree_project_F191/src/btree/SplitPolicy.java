@@ -0,0 +1,27 @@
+package btree;
+
+/**
+ * SplitPolicy decides where a full B+ tree page is split. BTreeFile asks it
+ * how many of the entries of the full page stay on the old (left) page; the
+ * rest move to the new right sibling. The entry being inserted goes left if
+ * its position is before the split point, and right otherwise.
+ */
+public interface SplitPolicy {
+
+	/**
+	 * Choose the split point of a full page.
+	 *
+	 * @param entryCount
+	 *            the number of entries on the full page. Input parameter.
+	 * @param insertPosition
+	 *            the slot the new entry would take, from 0 to entryCount.
+	 *            Input parameter.
+	 * @param rightmost
+	 *            true if the page is the right-most page of its level. Input
+	 *            parameter.
+	 * @return the number of entries that stay on the left page, from 1 to
+	 *         entryCount. It may only be entryCount if the new entry goes to
+	 *         the end of the page.
+	 */
+	public int splitPoint(int entryCount, int insertPosition, boolean rightmost);
+}
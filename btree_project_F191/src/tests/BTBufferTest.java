@@ -0,0 +1,120 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Tests of buffered indexes (see BTreeFile.isBuffered): the header of a
+ * file created on the pages of a destroyed buffered index, and inserts and
+ * deletes that are kept in the buffer before they reach the leaves.
+ */
+class BufferDriver extends IndexDriver {
+
+	private final static int N = 3000;
+	private final static int ROUNDS = 20;
+
+	BufferDriver() {
+		super("btbuffertest");
+	}
+
+	protected String testName() {
+		return "B+ tree buffered index";
+	}
+
+	protected boolean runAllTests() {
+		// a small pool, so that pages soon get the frames of freed ones
+		new SystemDefs(dbpath, 30000, 50, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Destroy a buffered index and create one that is not buffered. Its
+	 * header may get the frame of the buffered one's, bytes and all.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: create an index after a buffered one");
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				BTreeFile buffered = new BTreeFile("BUFFERED" + round,
+						AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+						LeafFormat.PLAIN, false, true);
+				if (!buffered.isBuffered())
+					return fail("the buffered index is not buffered");
+				for (int key = 0; key < 500; key++)
+					buffered.insert(new IntegerKey(key), rid(key));
+				buffered.destroyFile();
+
+				BTreeFile plain = new BTreeFile("PLAIN" + round,
+						AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+				if (plain.isBuffered())
+					return fail("the index of round " + round + " is buffered");
+				plain.destroyFile();
+			}
+			System.out.println("    " + ROUNDS
+					+ " indexes created after buffered ones");
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Insert and delete through the buffer: a delete returns false if the
+	 * entry is neither on the leaves nor in the buffer, lookups see the
+	 * buffered changes, and the leaves have them once the buffer is flushed.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: buffered inserts and deletes");
+		try {
+			BTreeFile file = new BTreeFile("BUFFERED", AttrType.attrInteger,
+					4, DeleteFashion.FULL_DELETE, LeafFormat.PLAIN, false, true);
+			TreeSet<Integer> left = new TreeSet<Integer>();
+			for (int key : shuffled(N, 5)) {
+				file.insert(new IntegerKey(key), rid(key));
+				left.add(key);
+			}
+			for (int key : shuffled(N, 6))
+				if (key % 4 == 0) {
+					if (!file.Delete(new IntegerKey(key), rid(key)))
+						return fail("delete of " + key + " returned false");
+					left.remove(key);
+				}
+			// the entry is looked for on the leaves and in the buffer
+			if (file.Delete(new IntegerKey(N + 1), rid(N + 1)))
+				return fail("delete of a missing entry returned true");
+			if (file.Delete(new IntegerKey(1), rid(N + 2)))
+				return fail("delete of a missing rid returned true");
+			if (file.Delete(new IntegerKey(4), rid(4)))
+				return fail("second delete of 4 returned true");
+			file.insert(new IntegerKey(N + 3), rid(N + 3));
+			if (!file.Delete(new IntegerKey(N + 3), rid(N + 3)))
+				return fail("delete of a buffered insert returned false");
+			if (file.Delete(new IntegerKey(N + 3), rid(N + 3)))
+				return fail("second delete of a buffered insert returned true");
+
+			List<RID> found = file.lookup(new IntegerKey(1));
+			if (found.size() != 1 || !found.get(0).equals(rid(1)))
+				return fail("lookup of 1 before the flush failed");
+			if (!file.lookup(new IntegerKey(4)).isEmpty())
+				return fail("lookup of a deleted key before the flush failed");
+			file.flushBuffer();
+			boolean ok = check(file, "BUFFERED", new ArrayList<Integer>(left));
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
+
+public class BTBufferTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new BufferDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,237 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * Tests of BTreeFile.bulkLoad: multi-level loads at several fill factors,
+ * loads of prefix compressed and posting leaves, and input that is
+ * rejected, which must leave no page pinned or allocated behind.
+ */
+class BulkLoadDriver extends IndexDriver {
+
+	private final static int N = 20000;
+
+	// an integer key entry and its slot
+	private final static int ENTRY = 12 + HFPage.SIZE_OF_SLOT;
+
+	BulkLoadDriver() {
+		super("btbulkloadtest");
+	}
+
+	protected String testName() {
+		return "B+ tree bulk load";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 30000, 500, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Load integer keys at several fill factors, and insert into the loaded
+	 * index.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: load several levels");
+		try {
+			float[] fills = { 0.5f, 0.7f, 1.0f };
+			for (float fill : fills) {
+				String name = "BULK" + (int) (fill * 100);
+				BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+						DeleteFashion.FULL_DELETE);
+				List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+				for (int key = 0; key < N; key++)
+					entries.add(new KeyDataEntry(new IntegerKey(key), rid(key)));
+				file.bulkLoad(entries.iterator(), fill);
+
+				List<Integer> leaves = new ArrayList<Integer>();
+				int levels = leaves(rootOf(name), leaves);
+				// a page keeps the bytes beyond the fill factor free
+				int space = MAX_SPACE - HFPage.DPFIXED;
+				int reserve = (int) ((1.0f - fill) * space);
+				int perLeaf = (space - reserve) / ENTRY;
+				int expected = (N + perLeaf - 1) / perLeaf;
+				System.out.println("    fill " + fill + ": " + levels
+						+ " levels, " + leaves.size() + " leaves, " + expected
+						+ " expected");
+				if (levels < 3)
+					return fail(name + " has " + levels + " levels");
+				if (leaves.size() != expected)
+					return fail(name + " has " + leaves.size() + " leaves");
+				List<Integer> keys = new ArrayList<Integer>();
+				for (int key = 0; key < N; key++)
+					keys.add(key);
+				if (!check(file, name, keys))
+					return false;
+
+				// the loaded index takes inserts on both ends and inside
+				for (int key : shuffled(N, 1))
+					if (key % 7 == 0)
+						file.insert(new IntegerKey(key + N), rid(key + N));
+				for (int key = -100; key < 0; key++)
+					file.insert(new IntegerKey(key), rid(key));
+				for (int key = -100; key < 0; key++)
+					keys.add(0, key);
+				for (int key = 0; key < N; key += 7)
+					keys.add(key + N);
+				Collections.sort(keys);
+				if (!check(file, name, keys))
+					return false;
+				file.destroyFile();
+			}
+			return checkPins("after the loads");
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Reject input that is not sorted or holds no leaf entries, after a
+	 * part of it is loaded.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: reject bad input");
+		try {
+			int free = firstFree();
+			boolean ok = true;
+			for (int format = 0; format < 2; format++) {
+				int leafFormat = format == 0 ? LeafFormat.PLAIN
+						: LeafFormat.POSTING;
+				String name = "BAD" + format;
+				BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+						DeleteFashion.FULL_DELETE, leafFormat);
+
+				List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+				for (int key = 0; key < 5000; key++)
+					entries.add(new KeyDataEntry(new IntegerKey(key), rid(key)));
+				// an overflow chain, if the leaves are posting leaves
+				for (int i = 0; i < 200; i++)
+					entries.add(new KeyDataEntry(new IntegerKey(5000), rid(N
+							+ i)));
+				entries.add(new KeyDataEntry(new IntegerKey(10), rid(10)));
+				ok = rejected(file, name, entries, "unsorted input") && ok;
+
+				entries.set(entries.size() - 1, new KeyDataEntry(
+						new IntegerKey(6000), new PageId(6000)));
+				ok = rejected(file, name, entries, "an index entry") && ok;
+
+				// the index is still empty, and can be loaded
+				entries.remove(entries.size() - 1);
+				file.bulkLoad(entries.iterator(), 1.0f);
+				ok = checkEntries(file, name, entries) && ok;
+				file.destroyFile();
+			}
+			if (firstFree() != free)
+				return fail("pages are left allocated");
+			return checkPins("after the loads") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Load string keys into prefix compressed leaves, which take fewer
+	 * leaves than plain ones.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: load prefix compressed leaves");
+		try {
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < N; key++) {
+				// the keys of a leaf share most of their digits
+				entries.add(new KeyDataEntry(new StringKey(String.format(
+						"%012d", key)), rid(key)));
+				keys.add(key);
+			}
+			int[] leafCounts = new int[2];
+			for (int format = 0; format < 2; format++) {
+				String name = "PREFIX" + format;
+				BTreeFile file = new BTreeFile(name, AttrType.attrString, 12,
+						DeleteFashion.FULL_DELETE, format == 0 ? LeafFormat.PLAIN
+								: LeafFormat.PREFIX);
+				file.bulkLoad(entries.iterator(), 1.0f);
+				if (!check(file, name, keys))
+					return false;
+				List<Integer> leaves = new ArrayList<Integer>();
+				leaves(rootOf(name), leaves);
+				leafCounts[format] = leaves.size();
+				file.destroyFile();
+			}
+			System.out.println("    " + leafCounts[0] + " plain leaves, "
+					+ leafCounts[1] + " prefix compressed leaves");
+			if (leafCounts[1] * 4 > leafCounts[0] * 3)
+				return fail("prefix compression saves less than a quarter");
+			return checkPins("after the loads");
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Load duplicates into posting leaves, some with overflow pages.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: load posting leaves");
+		try {
+			int free = firstFree();
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int key = 0; key < 2000; key++) {
+				// every 100th key has more rids than a record takes
+				int count = key % 100 == 0 ? 300 : key % 3 + 1;
+				for (int i = 0; i < count; i++)
+					entries.add(new KeyDataEntry(new IntegerKey(key), new RID(
+							new PageId(key), i)));
+			}
+			BTreeFile file = new BTreeFile("POSTING", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE, LeafFormat.POSTING);
+			file.bulkLoad(entries.iterator(), 1.0f);
+			boolean ok = checkEntries(file, "POSTING", entries);
+			file.destroyFile();
+			if (firstFree() != free)
+				return fail("pages of the posting index are left allocated");
+			return checkPins("after the load") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Load entries that the bulk load has to reject, and check that the
+	 * index stays empty.
+	 */
+	private boolean rejected(BTreeFile file, String name,
+			List<KeyDataEntry> entries, String what) throws Exception {
+		try {
+			file.bulkLoad(entries.iterator(), 1.0f);
+			return fail(name + ": the load of " + what + " succeeded");
+		} catch (InsertException e) {
+			System.out.println("    " + name + ": " + what + " rejected");
+		}
+		if (rootOf(name).pid != INVALID_PAGE)
+			return fail(name + " got a root");
+		// the header page of the open index stays pinned
+		int pinned = SystemDefs.JavabaseBM.getNumBuffers()
+				- SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		if (pinned != 1)
+			return fail(pinned + " pages are pinned after the load of " + what);
+		return true;
+	}
+}
+
+public class BTBulkLoadTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new BulkLoadDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
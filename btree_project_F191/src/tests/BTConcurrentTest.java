@@ -0,0 +1,364 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Tests of an index that several threads use at once. Writer threads insert
+ * and delete entries of their own and check each change against a model of
+ * them, while reader threads scan the index both ways and look up entries
+ * that no thread deletes. Afterwards the index must hold exactly what the
+ * models hold, and no page may be left pinned.
+ */
+class ConcurrentDriver extends IndexDriver {
+
+	private final static int WRITERS = 6;
+	private final static int READERS = 2;
+	private final static int OPS = 3000;
+
+	// the keys are taken from 0 up to KEYS; every 10th key has an entry
+	// that no thread deletes, whose rid is on page STABLE
+	private final static int KEYS = 4000;
+	private final static int STABLE = WRITERS;
+
+	private final static int POOL = 100;
+
+	// the first failure of any thread of a run
+	private String failure;
+
+	ConcurrentDriver() {
+		super("btconcurrenttest");
+	}
+
+	protected String testName() {
+		return "B+ tree concurrent access";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 30000, 500, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Integer keys with DeleteFashion.FULL_DELETE, on the BufMgr of
+	 * SystemDefs.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: integer keys, full delete");
+		return run("CONC1", AttrType.attrInteger, DeleteFashion.FULL_DELETE,
+				false, 1);
+	}
+
+	/**
+	 * String keys with DeleteFashion.NAIVE_DELETE, on the BufMgr of
+	 * SystemDefs.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: string keys, naive delete");
+		return run("CONC2", AttrType.attrString, DeleteFashion.NAIVE_DELETE,
+				false, 2);
+	}
+
+	/**
+	 * Integer keys with DeleteFashion.FULL_DELETE on a ConcurrentBufMgr whose
+	 * pool is too small to hold the index, so pages are replaced while the
+	 * threads run.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: a ConcurrentBufMgr");
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			ConcurrentBufMgr.install(POOL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return run("CONC3", AttrType.attrInteger, DeleteFashion.FULL_DELETE,
+				false, 3);
+	}
+
+	/**
+	 * A counted index, whose writers latch the header, on the
+	 * ConcurrentBufMgr of test 3.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: a counted index");
+		return run("CONC4", AttrType.attrInteger, DeleteFashion.FULL_DELETE,
+				true, 4);
+	}
+
+	/*
+	 * Run the writers and readers on a new index, and check it against the
+	 * models of the writers.
+	 */
+	private boolean run(String name, int keyType, int fashion,
+			boolean counted, long seed) {
+		try {
+			BTreeFile file = new BTreeFile(name, keyType,
+					keyType == AttrType.attrInteger ? 4 : 12, fashion,
+					LeafFormat.PLAIN, counted);
+			for (int key : shuffled(KEYS, seed))
+				if (key % 10 == 0)
+					file.insert(key(keyType, key), stable(key));
+
+			failure = null;
+			Writer[] writers = new Writer[WRITERS];
+			Reader[] readers = new Reader[READERS];
+			for (int i = 0; i < WRITERS; i++)
+				writers[i] = new Writer(file, keyType, i, seed * 100 + i);
+			for (int i = 0; i < READERS; i++)
+				readers[i] = new Reader(file, keyType);
+			for (Reader reader : readers)
+				reader.start();
+			for (Writer writer : writers)
+				writer.start();
+			for (Writer writer : writers)
+				writer.join();
+			for (Reader reader : readers) {
+				reader.done = true;
+				reader.join();
+			}
+			// the index is checked and destroyed even if a thread failed
+			boolean ok = failure == null || fail(name + ": " + failure);
+			int scans = 0;
+			for (Reader reader : readers)
+				scans += reader.scans;
+			System.out.println("    " + name + ": " + scans
+					+ " scans while the writers ran");
+
+			// the entries of all models, in the order of a scan
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int key = 0; key < KEYS; key++) {
+				KeyClass entryKey = key(keyType, key);
+				if (key % 10 == 0)
+					entries.add(new KeyDataEntry(entryKey, stable(key)));
+				for (Writer writer : writers)
+					for (int id : writer.live.get(key))
+						entries.add(new KeyDataEntry(entryKey, new RID(
+								new PageId(writer.page), id)));
+			}
+			ok = checkModel(file, name, entries) && ok;
+			if (counted && file.countRange(null, null) != entries.size())
+				ok = fail(name + ": countRange of all entries is "
+						+ file.countRange(null, null));
+			file.close();
+			ok = checkPins("after the threads ran") && ok;
+			file = new BTreeFile(name);
+			file.destroyFile();
+			return checkPins("after the index was destroyed") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Check that a scan returns the expected entries. The entries of a key
+	 * may come in any order.
+	 */
+	private boolean checkModel(BTreeFile file, String name,
+			List<KeyDataEntry> entries) throws Exception {
+		List<String> expected = new ArrayList<String>();
+		for (KeyDataEntry entry : entries)
+			expected.add(describe(entry));
+		List<String> scanned = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(null, null);
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				scanned.add(describe(entry));
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		System.out.println("    " + name + ": " + scanned.size()
+				+ " entries, " + expected.size() + " expected");
+		// the descriptions sort by key first
+		List<String> sorted = new ArrayList<String>(scanned);
+		Collections.sort(sorted);
+		Collections.sort(expected);
+		if (!sorted.equals(expected))
+			return fail(name + " does not hold the entries of the models");
+		for (int i = 1; i < scanned.size(); i++)
+			if (scanned.get(i - 1).substring(0, 8).compareTo(
+					scanned.get(i).substring(0, 8)) > 0)
+				return fail(name + ": the scan is out of order at " + i);
+		return true;
+	}
+
+	private static String describe(KeyDataEntry entry) {
+		RID rid = ((LeafData) entry.data).getData();
+		return String.format("%08d %d %d", intKey(entry.key), rid.pageNo.pid,
+				rid.slotNo);
+	}
+
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		return new StringKey(String.format("%08d", key));
+	}
+
+	private static RID stable(int key) {
+		return new RID(new PageId(STABLE), key);
+	}
+
+	private synchronized void failed(String message) {
+		if (failure == null)
+			failure = message;
+	}
+
+	private synchronized boolean failed() {
+		return failure != null;
+	}
+
+	/*
+	 * Inserts and deletes entries whose rids are on page `page', and only
+	 * those, so each change can be checked against its model.
+	 */
+	private class Writer extends Thread {
+
+		private final BTreeFile file;
+		private final int keyType;
+		private final int page;
+		private final Random random;
+
+		// the ids of the live entries of each key
+		final List<List<Integer>> live = new ArrayList<List<Integer>>();
+
+		Writer(BTreeFile file, int keyType, int page, long seed) {
+			this.file = file;
+			this.keyType = keyType;
+			this.page = page;
+			random = new Random(seed);
+			for (int key = 0; key < KEYS; key++)
+				live.add(new ArrayList<Integer>());
+		}
+
+		public void run() {
+			try {
+				for (int id = 0; id < OPS && !failed(); id++) {
+					int key = random.nextInt(KEYS);
+					List<Integer> ids = live.get(key);
+					int op = random.nextInt(10);
+					if (op < 5) {
+						file.insert(key(keyType, key), new RID(new PageId(page),
+								id));
+						ids.add(id);
+					} else if (op < 8 && !ids.isEmpty()) {
+						int old = ids.remove(random.nextInt(ids.size()));
+						if (!file.Delete(key(keyType, key), new RID(new PageId(
+								page), old)))
+							failed("delete of " + key + " " + old + " failed");
+					} else if (op < 9) {
+						// an entry this thread never inserted
+						if (file.Delete(key(keyType, key), new RID(new PageId(
+								page), -1)))
+							failed("delete of a missing entry of " + key
+									+ " succeeded");
+					} else
+						lookup(key, ids);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				failed("a writer failed: " + e);
+			}
+		}
+
+		/*
+		 * The rids of a key on page `page' must be those of the model.
+		 */
+		private void lookup(int key, List<Integer> ids) throws Exception {
+			List<Integer> found = new ArrayList<Integer>();
+			for (RID rid : file.lookup(key(keyType, key)))
+				if (rid.pageNo.pid == page)
+					found.add(rid.slotNo);
+			List<Integer> expected = new ArrayList<Integer>(ids);
+			Collections.sort(found);
+			Collections.sort(expected);
+			if (!found.equals(expected))
+				failed("lookup of " + key + " found " + found + ", expected "
+						+ expected);
+		}
+	}
+
+	/*
+	 * Scans the index forward and backward until `done', and looks up the
+	 * entries no thread deletes. Every scan must be in key order and return
+	 * each of those entries.
+	 */
+	private class Reader extends Thread {
+
+		private final BTreeFile file;
+		private final int keyType;
+		private final Random random = new Random();
+
+		volatile boolean done;
+		int scans;
+
+		Reader(BTreeFile file, int keyType) {
+			this.file = file;
+			this.keyType = keyType;
+		}
+
+		public void run() {
+			try {
+				while (!done && !failed()) {
+					scan(file.new_scan(null, null), true);
+					scan(file.new_reverse_scan(null, null), false);
+					for (int i = 0; i < 20; i++) {
+						int key = random.nextInt(KEYS / 10) * 10;
+						if (!holds(file.lookup(key(keyType, key)), stable(key)))
+							failed("lookup of " + key + " lost a stable entry");
+					}
+					scans++;
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				failed("a reader failed: " + e);
+			}
+		}
+
+		private void scan(IndexFileScan scan, boolean forward)
+				throws Exception {
+			int stable = 0, last = forward ? -1 : KEYS;
+			try {
+				KeyDataEntry entry;
+				while ((entry = scan.get_next()) != null) {
+					int key = intKey(entry.key);
+					if (forward ? key < last : key > last) {
+						failed((forward ? "" : "reverse ") + "scan returned "
+								+ key + " after " + last);
+						return;
+					}
+					last = key;
+					if (((LeafData) entry.data).getData().pageNo.pid == STABLE)
+						stable++;
+				}
+			} finally {
+				if (scan instanceof BTFileScan)
+					((BTFileScan) scan).DestroyBTreeFileScan();
+				else
+					((BTReverseScan) scan).DestroyBTreeFileScan();
+			}
+			if (stable != KEYS / 10)
+				failed((forward ? "" : "reverse ") + "scan returned " + stable
+						+ " stable entries");
+		}
+	}
+
+	private static boolean holds(List<RID> rids, RID rid) {
+		for (RID entry : rids)
+			if (entry.equals(rid))
+				return true;
+		return false;
+	}
+}
+
+public class BTConcurrentTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new ConcurrentDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
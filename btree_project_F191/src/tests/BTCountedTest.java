@@ -0,0 +1,288 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Tests of counted indexes: rank, select and countRange are checked against
+ * a sorted list of the keys after random inserts, deletes of every delete
+ * fashion and bulk loads.
+ */
+class CountedDriver extends IndexDriver {
+
+	// the keys are taken from 0 up to KEYS, so most of them have duplicates
+	private final static int KEYS = 3000;
+
+	private final static int N = 8000;
+
+	CountedDriver() {
+		super("btcountedtest");
+	}
+
+	protected String testName() {
+		return "B+ tree counted index";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 30000, 500, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Insert and delete at random with DeleteFashion.FULL_DELETE, and delete
+	 * everything at last.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: full delete");
+		return insertAndDelete("COUNT1", DeleteFashion.FULL_DELETE, 1);
+	}
+
+	/**
+	 * Insert and delete at random with DeleteFashion.NAIVE_DELETE, and delete
+	 * everything at last.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: naive delete");
+		return insertAndDelete("COUNT2", DeleteFashion.NAIVE_DELETE, 2);
+	}
+
+	/**
+	 * Insert and delete string keys in prefix compressed leaves.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: prefix compressed leaves");
+		try {
+			BTreeFile file = new BTreeFile("COUNT3", AttrType.attrString, 12,
+					DeleteFashion.FULL_DELETE, LeafFormat.PREFIX, true);
+			Random random = new Random(3);
+			List<int[]> live = new ArrayList<int[]>();
+			for (int i = 0; i < N; i++) {
+				int key = random.nextInt(KEYS);
+				file.insert(stringKey(key), new RID(new PageId(key), i));
+				live.add(new int[] { key, i });
+			}
+			if (!checkCounts(file, "COUNT3", live))
+				return false;
+			Collections.shuffle(live, random);
+			while (live.size() > N / 3) {
+				int[] entry = live.remove(live.size() - 1);
+				if (!file.Delete(stringKey(entry[0]), new RID(new PageId(
+						entry[0]), entry[1])))
+					return fail("delete of " + entry[0] + " failed");
+			}
+			boolean ok = checkCounts(file, "COUNT3", live);
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Load duplicates into a counted index and insert into it. An index that
+	 * is not counted rejects rank, select and countRange.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: bulk load");
+		try {
+			BTreeFile file = new BTreeFile("COUNT4", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE, LeafFormat.PLAIN, true);
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			List<int[]> live = new ArrayList<int[]>();
+			for (int i = 0; i < 3 * N; i++) {
+				int key = i / 7;
+				entries.add(new KeyDataEntry(new IntegerKey(key), new RID(
+						new PageId(key), i)));
+				live.add(new int[] { key, i });
+			}
+			file.bulkLoad(entries.iterator(), 0.8f);
+			if (!checkCounts(file, "COUNT4", live))
+				return false;
+			Random random = new Random(4);
+			for (int i = 0; i < N / 2; i++) {
+				int key = random.nextInt(KEYS + 500) - 250;
+				file.insert(new IntegerKey(key), new RID(new PageId(key), -i));
+				live.add(new int[] { key, -i });
+			}
+			boolean ok = checkCounts(file, "COUNT4", live);
+			file.destroyFile();
+
+			BTreeFile plain = new BTreeFile("PLAIN", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			plain.insert(new IntegerKey(1), rid(1));
+			ok = rejected(plain) && ok;
+			plain.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private boolean insertAndDelete(String name, int fashion, long seed) {
+		try {
+			BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+					fashion, LeafFormat.PLAIN, true);
+			Random random = new Random(seed);
+			List<int[]> live = new ArrayList<int[]>();
+			for (int round = 0; round < 3; round++) {
+				for (int i = 0; i < N; i++) {
+					int key = random.nextInt(KEYS);
+					int id = round * N + i;
+					file.insert(new IntegerKey(key), new RID(new PageId(key),
+							id));
+					live.add(new int[] { key, id });
+				}
+				if (!checkCounts(file, name, live))
+					return false;
+				// delete two thirds of the entries in random order
+				Collections.shuffle(live, random);
+				for (int left = live.size() / 3; live.size() > left;) {
+					int[] entry = live.remove(live.size() - 1);
+					if (!file.Delete(new IntegerKey(entry[0]), new RID(
+							new PageId(entry[0]), entry[1])))
+						return fail("delete of " + entry[0] + " failed");
+				}
+				if (!checkCounts(file, name, live))
+					return false;
+			}
+
+			while (!live.isEmpty()) {
+				int[] entry = live.remove(live.size() - 1);
+				if (!file.Delete(new IntegerKey(entry[0]), new RID(new PageId(
+						entry[0]), entry[1])))
+					return fail("delete of " + entry[0] + " failed");
+			}
+			if (!checkCounts(file, name, live))
+				return false;
+			for (int key = 0; key < 100; key++) {
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+				live.add(new int[] { key, key });
+			}
+			boolean ok = checkCounts(file, name, live);
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Check rank, select and countRange against the sorted keys of the live
+	 * entries, for every position and for every key around those in the
+	 * index.
+	 */
+	private boolean checkCounts(BTreeFile file, String name,
+			List<int[]> live) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int[] entry : live)
+			keys.add(entry[0]);
+		Collections.sort(keys);
+		boolean strings = file.getLeafFormat() == LeafFormat.PREFIX;
+		System.out.println("    " + name + ": " + keys.size() + " entries");
+
+		if (file.countRange(null, null) != keys.size())
+			return fail(name + ": countRange of all entries is "
+					+ file.countRange(null, null));
+		for (int k = 0; k < keys.size(); k++) {
+			KeyDataEntry entry = file.select(k);
+			if (entry == null)
+				return fail(name + ": no entry at " + k);
+			int key = intKey(entry.key);
+			if (key != keys.get(k))
+				return fail(name + ": entry " + k + " has key " + key
+						+ ", expected " + keys.get(k));
+			if (((LeafData) entry.data).getData().pageNo.pid != key)
+				return fail(name + ": entry " + k
+						+ " has the rid of another key");
+		}
+		if (file.select(keys.size()) != null || file.select(-1) != null)
+			return fail(name + ": select out of range returned an entry");
+
+		int lo = keys.isEmpty() ? 0 : keys.get(0);
+		int hi = keys.isEmpty() ? 0 : keys.get(keys.size() - 1);
+		for (int key = lo - 2; key <= hi + 2; key++) {
+			KeyClass from = key(strings, key);
+			int below = lowerBound(keys, key);
+			if (file.rank(from) != below)
+				return fail(name + ": rank of " + key + " is "
+						+ file.rank(from) + ", expected " + below);
+			int to = key + Math.abs(key) % 50;
+			KeyClass until = key(strings, to);
+			int count = lowerBound(keys, to + 1) - below;
+			if (file.countRange(from, until) != count)
+				return fail(name + ": countRange " + key + " to " + to
+						+ " is " + file.countRange(from, until)
+						+ ", expected " + count);
+			if (file.countRange(from, null) != keys.size() - below)
+				return fail(name + ": countRange from " + key + " is "
+						+ file.countRange(from, null));
+			if (file.countRange(null, from) != lowerBound(keys, key + 1))
+				return fail(name + ": countRange up to " + key + " is "
+						+ file.countRange(null, from));
+		}
+		// a range whose bounds are the wrong way round holds nothing
+		if (file.countRange(key(strings, hi), key(strings, lo - 1)) != 0)
+			return fail(name + ": an empty range is not empty");
+		return true;
+	}
+
+	/*
+	 * The number of keys less than `key' in a sorted list.
+	 */
+	private static int lowerBound(List<Integer> keys, int key) {
+		int low = 0, high = keys.size();
+		while (low < high) {
+			int middle = (low + high) / 2;
+			if (keys.get(middle) < key)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private boolean rejected(BTreeFile file) throws Exception {
+		try {
+			file.rank(new IntegerKey(1));
+			return fail("rank of an index that is not counted succeeded");
+		} catch (IndexSearchException e) {
+		}
+		try {
+			file.select(0);
+			return fail("select of an index that is not counted succeeded");
+		} catch (IndexSearchException e) {
+		}
+		try {
+			file.countRange(null, null);
+			return fail("countRange of an index that is not counted succeeded");
+		} catch (IndexSearchException e) {
+		}
+		System.out.println("    PLAIN: rank, select and countRange rejected");
+		return true;
+	}
+
+	/*
+	 * String keys sort as the integers they hold, and share their leading
+	 * zeros.
+	 */
+	private static StringKey stringKey(int key) {
+		return new StringKey(String.format("%08d", key));
+	}
+
+	private static KeyClass key(boolean strings, int key) {
+		return strings ? stringKey(key) : new IntegerKey(key);
+	}
+}
+
+public class BTCountedTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new CountedDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,209 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * Deterministic tests of BTreeFile with DeleteFashion.FULL_DELETE. Each test
+ * builds a tree of several levels, deletes most of it and checks the scan
+ * order, that every page but the root is still about half full, and how
+ * many pages are left.
+ */
+class DeleteDriver extends IndexDriver {
+
+	private final static int N = 20000;
+
+	// an integer key entry and its slot
+	private final static int ENTRY = 12 + HFPage.SIZE_OF_SLOT;
+
+	DeleteDriver() {
+		super("btdeletetest");
+	}
+
+	protected String testName() {
+		return "B+ tree full delete";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 30000, 500, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Delete all but every 50th key of a tree filled in ascending order.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: delete most of an ascending tree");
+		try {
+			BTreeFile file = new BTreeFile("DEL1", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			for (int i = 0; i < N; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			int before = countPages("DEL1");
+
+			List<Integer> order = shuffled(N, 1);
+			TreeSet<Integer> left = new TreeSet<Integer>();
+			for (int i = 0; i < N; i += 50)
+				left.add(i);
+			for (int key : order)
+				if (!left.contains(key)
+						&& !file.Delete(new IntegerKey(key), rid(key)))
+					return fail("delete of " + key + " failed");
+			boolean ok = check(file, "DEL1", new ArrayList<Integer>(left),
+					before);
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Delete all entries of a key whose duplicates span several leaves, and
+	 * then every other key, in random order.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: delete duplicates spanning leaves");
+		try {
+			BTreeFile file = new BTreeFile("DEL2", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			List<Integer> order = shuffled(N / 4, 2);
+			for (int key : order)
+				file.insert(new IntegerKey(key), rid(key));
+			// about five leaves of one key
+			for (int i = 0; i < 300; i++)
+				file.insert(new IntegerKey(1000), rid(N + i));
+			int before = countPages("DEL2");
+
+			for (int i = 299; i >= 0; i--)
+				if (!file.Delete(new IntegerKey(1000), rid(N + i)))
+					return fail("delete of duplicate " + i + " failed");
+			List<Integer> left = new ArrayList<Integer>();
+			for (int key : order)
+				if (key % 2 == 0) {
+					if (!file.Delete(new IntegerKey(key), rid(key)))
+						return fail("delete of " + key + " failed");
+				} else
+					left.add(key);
+			Collections.sort(left);
+			boolean ok = check(file, "DEL2", left, before);
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Delete every entry, so the root collapses level by level down to an
+	 * empty tree, and fill the tree again.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: delete everything");
+		try {
+			BTreeFile file = new BTreeFile("DEL3", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			for (int key : shuffled(N / 2, 3))
+				file.insert(new IntegerKey(key), rid(key));
+			int before = countPages("DEL3");
+			for (int key : shuffled(N / 2, 4))
+				if (!file.Delete(new IntegerKey(key), rid(key)))
+					return fail("delete of " + key + " failed");
+			if (!check(file, "DEL3", new ArrayList<Integer>(), before))
+				return false;
+			if (file.Delete(new IntegerKey(5), rid(5)))
+				return fail("delete from an empty tree succeeded");
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < 500; i++) {
+				file.insert(new IntegerKey(i), rid(i));
+				keys.add(i);
+			}
+			boolean ok = check(file, "DEL3", keys, before);
+			file.destroyFile();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Check the keys a scan returns, the fill of the pages and their count.
+	 */
+	private boolean check(BTreeFile file, String name, List<Integer> keys,
+			int before) throws Exception {
+		if (!check(file, name, keys))
+			return false;
+
+		int[] stats = new int[3];
+		PageId root = rootOf(name);
+		if (root.pid != INVALID_PAGE)
+			walk(root, true, stats);
+		if (stats[2] > 0)
+			return fail(stats[2] + " pages are less than half full");
+		// a page but the root holds about half a page of entries
+		int records = (MAX_SPACE - HFPage.DPFIXED) / 2 / ENTRY - 1;
+		int most = keys.size() / records + 1;
+		System.out.println("    pages " + before + " -> " + stats[0] + " (" + stats[1] + " leaves)");
+		if (stats[1] > most)
+			return fail(stats[1] + " leaves for " + keys.size()
+					+ " entries, at most " + most + " expected");
+		return true;
+	}
+
+	/*
+	 * Count the pages below `pid' in stats[0], the leaves in stats[1] and the
+	 * pages but the root that are less than half full in stats[2]. A split
+	 * divides the entries of a page by their number, so a page may lack up
+	 * to one entry to be half full.
+	 */
+	private void walk(PageId pid, boolean root, int[] stats) throws Exception {
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pid, page, false);
+		try {
+			HFPage node = new HFPage(page);
+			stats[0]++;
+			int used = MAX_SPACE - HFPage.DPFIXED - node.available_space()
+					- HFPage.SIZE_OF_SLOT;
+			if (!root && used + ENTRY < (MAX_SPACE - HFPage.DPFIXED) / 2)
+				stats[2]++;
+			if (node.getType() == NodeType.LEAF) {
+				stats[1]++;
+				return;
+			}
+			walk(node.getPrevPage(), false, stats);
+			for (int slot = 0; slot < node.getSlotCnt(); slot++) {
+				// an index entry ends with the page id of its child
+				int end = node.getSlotOffset(slot) + node.getSlotLength(slot);
+				walk(new PageId(Convert.getIntValue(end - 4, page.getpage())),
+						false, stats);
+			}
+		} finally {
+			SystemDefs.JavabaseBM.unpinPage(pid, false);
+		}
+	}
+
+	/*
+	 * Count the pages of an index.
+	 */
+	private int countPages(String name) throws Exception {
+		int[] stats = new int[3];
+		walk(rootOf(name), true, stats);
+		return stats[0];
+	}
+}
+
+public class BTDeleteTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new DeleteDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,465 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * Tests of the leaf formats and scan directions: posting leaves whose rid
+ * lists grow past a record into overflow chains and shrink back, prefix
+ * compressed leaves, separators of string keys truncated to the shortest
+ * distinguishing prefix, and reverse scans, each checked against the
+ * entries inserted.
+ */
+class LeafFormatDriver extends IndexDriver {
+
+	// the rids of a key with posting leaves, around the quarter of a page a
+	// record holds, and far beyond it
+	private final static int[] COUNTS = { 1, 2, 29, 30, 31, 32, 33 };
+
+	LeafFormatDriver() {
+		super("btleafformattest");
+	}
+
+	protected String testName() {
+		return "B+ tree leaf formats";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 30000, 500, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Insert rid lists into posting leaves, some long enough for overflow
+	 * chains, delete single rids out of them and shorten the chains until
+	 * the rids come back into the leaf. The pages of the chains are freed
+	 * with the index.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: posting leaves");
+		try {
+			int free = firstFree();
+			BTreeFile file = new BTreeFile("POSTING", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE, LeafFormat.POSTING);
+			Map<Integer, List<RID>> model = new TreeMap<Integer, List<RID>>();
+			List<int[]> entries = new ArrayList<int[]>();
+			for (int key = 0; key < 300; key++) {
+				int count = key % 50 == 0 ? 1000 : key % 10 == 0 ? 200
+						: COUNTS[key % COUNTS.length];
+				model.put(key, new ArrayList<RID>());
+				for (int i = 0; i < count; i++)
+					entries.add(new int[] { key, i });
+			}
+			Collections.shuffle(entries, new Random(1));
+			for (int[] entry : entries) {
+				RID rid = new RID(new PageId(entry[1]), entry[0]);
+				file.insert(new IntegerKey(entry[0]), rid);
+				model.get(entry[0]).add(rid);
+			}
+			if (!checkBothWays(file, "POSTING", sorted(model)))
+				return false;
+
+			// one rid out of the middle of each list, and one it never held
+			Random random = new Random(2);
+			for (int key = 0; key < 300; key++) {
+				List<RID> rids = model.get(key);
+				RID rid = rids.remove(random.nextInt(rids.size()));
+				if (!file.Delete(new IntegerKey(key), rid))
+					return fail("delete of a rid of " + key + " failed");
+				if (file.Delete(new IntegerKey(key), rid))
+					return fail("second delete of a rid of " + key
+							+ " succeeded");
+				if (file.Delete(new IntegerKey(key), new RID(new PageId(-1),
+						key)))
+					return fail("delete of a missing rid of " + key
+							+ " succeeded");
+			}
+			if (!checkBothWays(file, "POSTING", sorted(model)))
+				return false;
+
+			// the long lists shrink until they fit into a record again
+			for (int key = 0; key < 300; key += 10) {
+				List<RID> rids = model.get(key);
+				Collections.shuffle(rids, random);
+				while (rids.size() > 20)
+					if (!file.Delete(new IntegerKey(key), rids.remove(rids
+							.size() - 1)))
+						return fail("delete of a rid of " + key + " failed");
+			}
+			boolean ok = checkBothWays(file, "POSTING", sorted(model));
+			file.destroyFile();
+			if (firstFree() != free)
+				return fail("pages of the posting index are left allocated");
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Insert and delete string keys in prefix compressed leaves, with keys
+	 * that do not share the prefix of the leaf they go to. The leaves hold
+	 * more keys than plain ones.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: prefix compressed leaves");
+		try {
+			int[] leafCounts = new int[2];
+			boolean ok = true;
+			for (int format = 0; format < 2; format++) {
+				String name = format == 0 ? "PLAIN" : "PREFIX";
+				BTreeFile file = new BTreeFile(name, AttrType.attrString, 32,
+						DeleteFashion.FULL_DELETE, format == 0 ? LeafFormat.PLAIN
+								: LeafFormat.PREFIX);
+				Random random = new Random(3);
+				List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+				for (int i = 0; i < 8000; i++) {
+					// long runs of one prefix, and a few keys between them
+					String key = i % 100 == 0 ? String.format("m%05d", i)
+							: String.format("tenant/%02d/user/%06d", i / 1000,
+									random.nextInt(1000000));
+					KeyDataEntry entry = new KeyDataEntry(new StringKey(key),
+							rid(i));
+					file.insert(entry.key, rid(i));
+					entries.add(entry);
+				}
+				Collections.shuffle(entries, random);
+				for (int i = 0; i < entries.size() / 3; i++) {
+					KeyDataEntry entry = entries.remove(entries.size() - 1);
+					if (!file.Delete(entry.key, ((LeafData) entry.data)
+							.getData()))
+						return fail(name + ": delete of " + entry.key
+								+ " failed");
+				}
+				ok = checkBothWays(file, name, sorted(entries)) && ok;
+				List<Integer> leaves = new ArrayList<Integer>();
+				leaves(rootOf(name), leaves);
+				leafCounts[format] = leaves.size();
+				file.destroyFile();
+			}
+			System.out.println("    " + leafCounts[0] + " plain leaves, "
+					+ leafCounts[1] + " prefix compressed leaves");
+			if (leafCounts[1] >= leafCounts[0])
+				return fail("prefix compressed leaves hold no more keys");
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * The separators of long string keys that differ early are short, and
+	 * still separate the keys of their children, after splits and after
+	 * merges.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: truncated separators");
+		try {
+			BTreeFile file = new BTreeFile("SEPARATORS", AttrType.attrString,
+					40, DeleteFashion.FULL_DELETE);
+			List<String> keys = new ArrayList<String>();
+			for (int i : shuffled(20000, 4))
+				if (i % 3 == 0)
+					keys.add(String.format(
+							"customer-%06d-000000000000000000000000", i));
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < keys.size(); i++) {
+				file.insert(new StringKey(keys.get(i)), rid(i));
+				entries.add(new KeyDataEntry(new StringKey(keys.get(i)),
+						rid(i)));
+			}
+			if (!checkSeparators("SEPARATORS")
+					|| !checkBothWays(file, "SEPARATORS", sorted(entries)))
+				return false;
+
+			Collections.shuffle(entries, new Random(5));
+			while (entries.size() > keys.size() / 5) {
+				KeyDataEntry entry = entries.remove(entries.size() - 1);
+				if (!file.Delete(entry.key, ((LeafData) entry.data)
+						.getData()))
+					return fail("delete of " + entry.key + " failed");
+			}
+			boolean ok = checkSeparators("SEPARATORS")
+					&& checkBothWays(file, "SEPARATORS", sorted(entries));
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Reverse scans of ranges over duplicates that span leaves, on plain and
+	 * posting leaves, and deletes of the current entry during a reverse
+	 * scan.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: reverse scans");
+		try {
+			boolean ok = true;
+			for (int format = 0; format < 2; format++) {
+				String name = format == 0 ? "REVERSE" : "REVERSEPOSTING";
+				BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+						DeleteFashion.FULL_DELETE, format == 0 ? LeafFormat.PLAIN
+								: LeafFormat.POSTING);
+				List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+				for (int key : shuffled(2000, 6)) {
+					// every 100th key spans several leaves
+					int count = key % 100 == 0 ? 300 : key % 2 + 1;
+					for (int i = 0; i < count; i++)
+						entries.add(new KeyDataEntry(new IntegerKey(key),
+								new RID(new PageId(i), key)));
+				}
+				for (KeyDataEntry entry : entries)
+					file.insert(entry.key, ((LeafData) entry.data).getData());
+				if (!checkBothWays(file, name, sorted(entries)))
+					return false;
+
+				Random random = new Random(7);
+				for (int range = 0; range < 100; range++) {
+					int lo = random.nextInt(2100) - 50;
+					int hi = lo + random.nextInt(range % 2 == 0 ? 20 : 500);
+					// bounds on keys that span leaves
+					if (range % 10 == 0)
+						lo = hi = 100 * random.nextInt(20);
+					if (!checkRange(file, name, range % 7 == 0 ? null
+							: new IntegerKey(lo), range % 5 == 0 ? null
+							: new IntegerKey(hi)))
+						return false;
+				}
+
+				// delete every third entry the scan returns
+				int deleted = 0;
+				List<KeyDataEntry> left = new ArrayList<KeyDataEntry>();
+				BTReverseScan scan = file.new_reverse_scan(null, null);
+				try {
+					KeyDataEntry entry;
+					for (int i = 0; (entry = scan.get_next()) != null; i++)
+						if (i % 3 == 0) {
+							scan.delete_current();
+							deleted++;
+						} else
+							left.add(entry);
+				} finally {
+					scan.DestroyBTreeFileScan();
+				}
+				Collections.reverse(left);
+				System.out.println("    " + name + ": " + deleted
+						+ " entries deleted by the reverse scan");
+				ok = checkBothWays(file, name, sorted(left)) && ok;
+				file.destroyFile();
+			}
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Check the entries a forward scan returns, and that a reverse scan
+	 * returns them backwards. The entries of a key are in rid order on
+	 * posting leaves, and in any order on the others.
+	 */
+	private boolean checkBothWays(BTreeFile file, String name,
+			List<KeyDataEntry> entries) throws Exception {
+		List<KeyDataEntry> forward = new ArrayList<KeyDataEntry>();
+		BTFileScan scan = file.new_scan(null, null);
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				forward.add(entry);
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		System.out.println("    " + name + ": " + forward.size()
+				+ " entries, " + entries.size() + " expected");
+		if (!describe(sorted(forward)).equals(describe(entries)))
+			return fail(name + " does not hold the expected entries");
+		for (int i = 1; i < forward.size(); i++)
+			if (BT.keyCompare(forward.get(i - 1).key, forward.get(i).key) > 0)
+				return fail(name + ": the scan is out of order at " + i);
+		if (file.getLeafFormat() == LeafFormat.POSTING
+				&& !describe(forward).equals(describe(entries)))
+			return fail(name + ": the rids of a key are out of order");
+
+		Collections.reverse(forward);
+		if (!describe(reverse(file, null, null)).equals(describe(forward)))
+			return fail(name + ": the reverse scan does not return the entries"
+					+ " backwards");
+		return true;
+	}
+
+	/*
+	 * Check that a reverse scan of a range returns the entries of a forward
+	 * scan of it backwards.
+	 */
+	private boolean checkRange(BTreeFile file, String name, KeyClass lo,
+			KeyClass hi) throws Exception {
+		List<KeyDataEntry> forward = new ArrayList<KeyDataEntry>();
+		BTFileScan scan = file.new_scan(lo, hi);
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				forward.add(entry);
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		Collections.reverse(forward);
+		List<KeyDataEntry> backward = reverse(file, lo, hi);
+		if (!describe(backward).equals(describe(forward)))
+			return fail(name + ": the reverse scan from " + hi + " to " + lo
+					+ " returned " + backward.size() + " entries, "
+					+ forward.size() + " expected");
+		return true;
+	}
+
+	private static List<KeyDataEntry> reverse(BTreeFile file, KeyClass lo,
+			KeyClass hi) throws Exception {
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		BTReverseScan scan = file.new_reverse_scan(lo, hi);
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				entries.add(entry);
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		return entries;
+	}
+
+	/*
+	 * Check that every separator is shorter than the keys, greater than all
+	 * keys of the children on its left and not greater than those on its
+	 * right.
+	 */
+	private boolean checkSeparators(String name) throws Exception {
+		int[] stats = new int[2];
+		String[] bounds = new String[2];
+		if (!walk(rootOf(name), bounds, stats))
+			return false;
+		System.out.println("    " + name + ": " + stats[0]
+				+ " separators, " + stats[1] + " characters long at most");
+		if (stats[1] > 16)
+			return fail(name + " has separators of " + stats[1]
+					+ " characters");
+		return true;
+	}
+
+	/*
+	 * Walk the subtree below `pid': its least and greatest keys go to
+	 * bounds, the number of its separators to stats[0] and the length of the
+	 * longest to stats[1].
+	 */
+	private boolean walk(PageId pid, String[] bounds, int[] stats)
+			throws Exception {
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pid, page, false);
+		try {
+			RID rid = new RID();
+			if (new HFPage(page).getType() == NodeType.LEAF) {
+				BTLeafPage leaf = new BTLeafPage(page, AttrType.attrString);
+				KeyDataEntry entry = leaf.getFirst(rid);
+				for (; entry != null; entry = leaf.getNext(rid)) {
+					String key = ((StringKey) entry.key).getKey();
+					if (bounds[0] == null)
+						bounds[0] = key;
+					bounds[1] = key;
+				}
+				return true;
+			}
+			BTIndexPage index = new BTIndexPage(page, AttrType.attrString);
+			String[] child = new String[2];
+			if (!walk(new HFPage(page).getPrevPage(), child, stats))
+				return false;
+			bounds[0] = child[0];
+			KeyDataEntry entry = index.getFirst(rid);
+			for (; entry != null; entry = index.getNext(rid)) {
+				String separator = ((StringKey) entry.key).getKey();
+				String left = child[1];
+				child = new String[2];
+				// an index entry ends with the page id of its child
+				int end = index.getSlotOffset(rid.slotNo)
+						+ index.getSlotLength(rid.slotNo);
+				PageId childId = new PageId(Convert.getIntValue(end - 4,
+						page.getpage()));
+				if (!walk(childId, child, stats))
+					return false;
+				if (left != null && left.compareTo(separator) >= 0
+						|| child[0] != null && separator.compareTo(child[0]) > 0)
+					return fail("separator " + separator + " between " + left
+							+ " and " + child[0]);
+				stats[0]++;
+				stats[1] = Math.max(stats[1], separator.length());
+			}
+			bounds[1] = child[1];
+			return true;
+		} finally {
+			SystemDefs.JavabaseBM.unpinPage(pid, false);
+		}
+	}
+
+	/*
+	 * The rids of each key in the order a scan of posting leaves returns
+	 * them.
+	 */
+	private static List<KeyDataEntry> sorted(Map<Integer, List<RID>> model) {
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		for (Map.Entry<Integer, List<RID>> key : model.entrySet())
+			for (RID rid : key.getValue())
+				entries.add(new KeyDataEntry(new IntegerKey(key.getKey()), rid));
+		return sorted(entries);
+	}
+
+	/*
+	 * Entries in key order, and those of a key in rid order.
+	 */
+	private static List<KeyDataEntry> sorted(List<KeyDataEntry> entries) {
+		List<KeyDataEntry> sorted = new ArrayList<KeyDataEntry>(entries);
+		Collections.sort(sorted, new Comparator<KeyDataEntry>() {
+			public int compare(KeyDataEntry a, KeyDataEntry b) {
+				try {
+					int order = BT.keyCompare(a.key, b.key);
+					if (order != 0)
+						return order;
+				} catch (KeyNotMatchException e) {
+					throw new IllegalArgumentException(e);
+				}
+				RID ridA = ((LeafData) a.data).getData();
+				RID ridB = ((LeafData) b.data).getData();
+				if (ridA.pageNo.pid != ridB.pageNo.pid)
+					return ridA.pageNo.pid < ridB.pageNo.pid ? -1 : 1;
+				return ridA.slotNo < ridB.slotNo ? -1
+						: ridA.slotNo == ridB.slotNo ? 0 : 1;
+			}
+		});
+		return sorted;
+	}
+
+	private static List<String> describe(List<KeyDataEntry> entries) {
+		List<String> described = new ArrayList<String>();
+		for (KeyDataEntry entry : entries) {
+			RID rid = ((LeafData) entry.data).getData();
+			String key = entry.key instanceof IntegerKey ? ""
+					+ ((IntegerKey) entry.key).getKey() : ((StringKey) entry.key)
+					.getKey();
+			described.add(key + " " + rid.pageNo.pid + " " + rid.slotNo);
+		}
+		return described;
+	}
+}
+
+public class BTLeafFormatTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new LeafFormatDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
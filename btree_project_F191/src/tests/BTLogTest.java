@@ -0,0 +1,210 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Recovery tests of BTLog. Each test makes its inserts and deletes in a
+ * process of its own, which ends without writing the buffer pool once they
+ * returned, as a crash would. The test then opens the database again,
+ * which replays the log, and checks the keys of every index against the
+ * ones the changes leave.
+ */
+class LogDriver extends IndexDriver {
+
+	private final static int N = 6000;
+	private final static int THREADS = 4;
+
+	LogDriver() {
+		super("btlogtest");
+	}
+
+	protected String testName() {
+		return "B+ tree log recovery";
+	}
+
+	/**
+	 * Replay inserts and deletes that are only in the log.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: replay the log after a crash");
+		return crashAndRecover(1);
+	}
+
+	/**
+	 * Replay the changes of several threads, whose records are written in
+	 * groups, with a pool so small that checkpoints are made while they
+	 * run.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: replay changes committed in groups");
+		return crashAndRecover(2);
+	}
+
+	/**
+	 * Replay a checkpoint that replaced the log by the changes a memtable
+	 * keeps, and the changes after it.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: replay a log replaced by a checkpoint");
+		return crashAndRecover(3);
+	}
+
+	/*
+	 * Run the changes of a test in a process that crashes, recover its
+	 * database and check the indexes.
+	 */
+	private boolean crashAndRecover(int test) {
+		String db = dbpath + test;
+		String log = logpath + test;
+		new File(db).delete();
+		new File(log).delete();
+		try {
+			String java = System.getProperty("java.home") + File.separator
+					+ "bin" + File.separator + "java";
+			Process writer = new ProcessBuilder(java, "-cp",
+					System.getProperty("java.class.path"), "tests.BTLogTest",
+					"write", "" + test, db, log).inheritIO().start();
+			if (writer.waitFor() != 0)
+				return fail("the changes failed");
+
+			new SystemDefs(db, 0, 100, "Clock");
+			ConcurrentBufMgr.install(100);
+			BTLog.install(log);
+			boolean ok = true;
+			for (int file = 0; file < files(test); file++) {
+				BTreeFile index = new BTreeFile("LOG" + file);
+				ok = check(index, "LOG" + file, expected(test, file)) && ok;
+				index.close();
+			}
+			BTLog.close();
+			return ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			new File(db).delete();
+			new File(log).delete();
+		}
+	}
+
+	/*
+	 * Make the changes of a test, then end the process without writing
+	 * the pool.
+	 */
+	static void write(int test, String db, String log) throws Exception {
+		new SystemDefs(db, 30000, test == 2 ? 40 : 1000, "Clock");
+		ConcurrentBufMgr.install(test == 2 ? 40 : 1000);
+		BTLog.install(log);
+		if (test == 1) {
+			BTreeFile ints = new BTreeFile("LOG0", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			BTreeFile strings = new BTreeFile("LOG1", AttrType.attrString, 12,
+					DeleteFashion.NAIVE_DELETE);
+			change(ints, 0, 0, N);
+			change(strings, 1, 0, N);
+		} else if (test == 2) {
+			final BTreeFile file = new BTreeFile("LOG0", AttrType.attrInteger,
+					4, DeleteFashion.FULL_DELETE);
+			final Exception[] failed = new Exception[1];
+			Thread[] threads = new Thread[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int part = t;
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							change(file, 0, part * N, (part + 1) * N);
+						} catch (Exception e) {
+							failed[0] = e;
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			if (failed[0] != null)
+				throw failed[0];
+		} else {
+			BTreeFile file = new BTreeFile("LOG0", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			BTreeFile tabled = new BTreeFile("LOG1", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			BTMemTable table = new BTMemTable(tabled, 4 * N);
+			change(file, 0, 0, N / 2);
+			for (int key : shuffled(0, N / 2, 1))
+				table.insert(new IntegerKey(key), rid(key));
+			// the pages of LOG0 go to the database, the log keeps the
+			// inserts of the table only
+			BTLog.checkpoint();
+			change(file, 0, N / 2, N);
+			for (int key = 0; key < N / 2; key += 3)
+				table.Delete(new IntegerKey(key), rid(key));
+		}
+		System.out.flush();
+		Runtime.getRuntime().halt(0);
+	}
+
+	/*
+	 * Insert the keys from `from' up to `to' in a shuffled order, and
+	 * delete every third of them.
+	 */
+	private static void change(BTreeFile file, int type, int from, int to)
+			throws Exception {
+		for (int key : shuffled(from, to, from + type))
+			file.insert(key(type, key), rid(key));
+		for (int key : shuffled(from, to, from + type + 1))
+			if (key % 3 == 0 && !file.Delete(key(type, key), rid(key)))
+				throw new Exception("delete of " + key + " failed");
+	}
+
+	private static int files(int test) {
+		return test == 2 ? 1 : 2;
+	}
+
+	/*
+	 * The keys an index of a test holds after its changes.
+	 */
+	private static List<Integer> expected(int test, int file) {
+		int to = test == 2 ? THREADS * N : test == 3 && file == 1 ? N / 2 : N;
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < to; key++)
+			if (key % 3 != 0)
+				keys.add(key);
+		if (test == 1 && file == 1)
+			// in the order of the strings
+			Collections.sort(keys, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return ("" + a).compareTo("" + b);
+				}
+			});
+		return keys;
+	}
+
+	private static KeyClass key(int type, int key) {
+		if (type == 0)
+			return new IntegerKey(key);
+		return new StringKey("" + key);
+	}
+}
+
+public class BTLogTest {
+
+	public static void main(String[] argvs) {
+		// the process of a test that makes the changes
+		if (argvs.length == 4 && argvs[0].equals("write")) {
+			try {
+				LogDriver.write(Integer.parseInt(argvs[1]), argvs[2], argvs[3]);
+			} catch (Exception e) {
+				e.printStackTrace();
+				Runtime.getRuntime().halt(1);
+			}
+			return;
+		}
+		boolean ok = new LogDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,298 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import global.*;
+
+/**
+ * Tests of the lookups that do not open a scan: lookup(KeyClass),
+ * lookup(int, RID) and multiGet, on each leaf format, with keys that are
+ * missing, keys whose entries span several leaves, and batches that repeat
+ * keys or skip over leaves.
+ */
+class LookupDriver extends IndexDriver {
+
+	// the keys are taken from 0 up to KEYS; those with key % 7 == 3 are left
+	// out, every 5th key has three entries and SPAN has enough to fill
+	// several leaves
+	private final static int KEYS = 5000;
+	private final static int SPAN = 2501;
+
+	LookupDriver() {
+		super("btlookuptest");
+	}
+
+	protected String testName() {
+		return "B+ tree lookup";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 30000, 500, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Look up the keys of an index with plain leaves, before and after
+	 * deleting a part of them.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: plain leaves");
+		try {
+			BTreeFile file = new BTreeFile("LOOKUP1", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			Map<Integer, List<RID>> model = fill(file, AttrType.attrInteger, 1);
+			if (!checkLookups(file, "LOOKUP1", model, 1))
+				return false;
+			delete(file, AttrType.attrInteger, model, 2);
+			boolean ok = checkLookups(file, "LOOKUP1", model, 3);
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Look up the keys of an index with posting leaves, where SPAN has an
+	 * overflow chain.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: posting leaves");
+		try {
+			BTreeFile file = new BTreeFile("LOOKUP2", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE, LeafFormat.POSTING);
+			Map<Integer, List<RID>> model = fill(file, AttrType.attrInteger, 4);
+			if (!checkLookups(file, "LOOKUP2", model, 4))
+				return false;
+			delete(file, AttrType.attrInteger, model, 5);
+			boolean ok = checkLookups(file, "LOOKUP2", model, 6);
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Look up string keys in prefix compressed leaves. lookup(int, RID)
+	 * rejects them.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: prefix compressed leaves");
+		try {
+			BTreeFile file = new BTreeFile("LOOKUP3", AttrType.attrString, 12,
+					DeleteFashion.FULL_DELETE, LeafFormat.PREFIX);
+			Map<Integer, List<RID>> model = fill(file, AttrType.attrString, 7);
+			boolean ok = checkLookups(file, "LOOKUP3", model, 7);
+			try {
+				file.lookup(1, new RID());
+				ok = fail("lookup(int, RID) of string keys succeeded");
+			} catch (KeyNotMatchException e) {
+			}
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Batches that multiGet rejects, and lookups of an empty index.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: bad batches and an empty index");
+		try {
+			BTreeFile file = new BTreeFile("LOOKUP4", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			List<RID> rids = new ArrayList<RID>();
+			KeyClass[] keys = { new IntegerKey(1), new IntegerKey(5) };
+			if (file.multiGet(keys, rids, new int[2]) != 0
+					|| !file.lookup(new IntegerKey(1)).isEmpty()
+					|| file.lookup(1, new RID()))
+				return fail("an empty index found an entry");
+			file.insert(new IntegerKey(1), rid(1));
+			boolean ok = true;
+			try {
+				file.multiGet(new KeyClass[] { new IntegerKey(5),
+						new IntegerKey(1) }, rids, new int[2]);
+				ok = fail("multiGet of unsorted keys succeeded");
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				file.multiGet(keys, rids, new int[1]);
+				ok = fail("multiGet with too few ends succeeded");
+			} catch (IllegalArgumentException e) {
+			}
+			file.destroyFile();
+			return checkPins("after the test") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Insert the entries of the keys in random order, and return the rids of
+	 * each key.
+	 */
+	private Map<Integer, List<RID>> fill(BTreeFile file, int keyType,
+			long seed) throws Exception {
+		Map<Integer, List<RID>> model = new TreeMap<Integer, List<RID>>();
+		List<int[]> entries = new ArrayList<int[]>();
+		for (int key = 0; key < KEYS; key++) {
+			if (key % 7 == 3)
+				continue;
+			int count = key == SPAN ? 600 : key % 5 == 0 ? 3 : 1;
+			for (int i = 0; i < count; i++)
+				entries.add(new int[] { key, i });
+		}
+		Collections.shuffle(entries, new Random(seed));
+		for (int[] entry : entries) {
+			RID rid = new RID(new PageId(entry[0]), entry[1]);
+			file.insert(key(keyType, entry[0]), rid);
+			List<RID> rids = model.get(entry[0]);
+			if (rids == null)
+				model.put(entry[0], rids = new ArrayList<RID>());
+			rids.add(rid);
+		}
+		return model;
+	}
+
+	/*
+	 * Delete all entries of every 4th key, and one entry of SPAN out of 3.
+	 */
+	private void delete(BTreeFile file, int keyType,
+			Map<Integer, List<RID>> model, long seed) throws Exception {
+		for (int key = 0; key < KEYS; key += 4) {
+			List<RID> rids = model.remove(key);
+			if (rids != null)
+				for (RID rid : rids)
+					file.Delete(key(keyType, key), rid);
+		}
+		List<RID> span = model.get(SPAN);
+		Collections.shuffle(span, new Random(seed));
+		for (int i = span.size() - 1; i >= 0; i -= 3)
+			file.Delete(key(keyType, SPAN), span.remove(i));
+	}
+
+	/*
+	 * Check every key and the keys around them with lookup(KeyClass) and
+	 * lookup(int, RID), and random batches with multiGet, against the model.
+	 */
+	private boolean checkLookups(BTreeFile file, String name,
+			Map<Integer, List<RID>> model, long seed) throws Exception {
+		int keyType = AttrType.attrInteger;
+		if (file.getLeafFormat() == LeafFormat.PREFIX)
+			keyType = AttrType.attrString;
+		for (int key = -2; key < KEYS + 2; key++) {
+			List<RID> expected = expected(model, key);
+			List<RID> found = file.lookup(key(keyType, key));
+			if (!same(found, expected))
+				return fail(name + ": lookup of " + key + " found "
+						+ found.size() + " rids, expected " + expected.size());
+			if (keyType != AttrType.attrInteger)
+				continue;
+			// the first entry in index order
+			RID first = new RID();
+			if (file.lookup(key, first) != !expected.isEmpty())
+				return fail(name + ": lookup(int, RID) of " + key
+						+ " returned " + expected.isEmpty());
+			if (!expected.isEmpty() && !first.equals(found.get(0)))
+				return fail(name + ": lookup(int, RID) of " + key
+						+ " did not find the first entry");
+		}
+
+		// the lists are used for all batches, and hold an entry in front
+		Random random = new Random(seed);
+		List<RID> rids = new ArrayList<RID>();
+		rids.add(rid(-1));
+		int[] ends = new int[KEYS];
+		int total = 0;
+		for (int batch = 0; batch < 200; batch++) {
+			List<Integer> keys = new ArrayList<Integer>();
+			int size = 1 + random.nextInt(60);
+			// close keys share leaves, far ones start again from the root
+			int spread = batch % 2 == 0 ? 40 : KEYS;
+			int from = random.nextInt(KEYS);
+			for (int i = 0; i < size; i++)
+				keys.add(Math.max(from + random.nextInt(spread) - 2, 0));
+			if (batch % 3 == 0) {
+				keys.add(SPAN);
+				keys.add(SPAN);
+			}
+			Collections.sort(keys);
+			if (!multiGet(file, name, model, keyType, keys, rids, ends))
+				return false;
+			total += keys.size();
+		}
+		// every key, over every leaf
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int key = 0; key < KEYS; key++)
+			keys.add(key);
+		if (!multiGet(file, name, model, keyType, keys, rids, ends))
+			return false;
+		System.out.println("    " + name + ": " + model.size()
+				+ " keys looked up, " + (total + KEYS) + " keys in batches");
+		return true;
+	}
+
+	private boolean multiGet(BTreeFile file, String name,
+			Map<Integer, List<RID>> model, int keyType, List<Integer> keys,
+			List<RID> rids, int[] ends) throws Exception {
+		KeyClass[] batch = new KeyClass[keys.size()];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = key(keyType, keys.get(i));
+		while (rids.size() > 1)
+			rids.remove(rids.size() - 1);
+		int added = file.multiGet(batch, rids, ends);
+		if (added != rids.size() - 1 || !rids.get(0).equals(rid(-1)))
+			return fail(name + ": multiGet changed the list in front");
+		for (int i = 0; i < batch.length; i++) {
+			int start = i == 0 ? 0 : ends[i - 1];
+			List<RID> found = rids.subList(1 + start, 1 + ends[i]);
+			if (!same(found, expected(model, keys.get(i))))
+				return fail(name + ": multiGet found " + found.size()
+						+ " rids of " + keys.get(i) + " at " + i + ", expected "
+						+ expected(model, keys.get(i)).size());
+		}
+		return true;
+	}
+
+	private static List<RID> expected(Map<Integer, List<RID>> model, int key) {
+		List<RID> rids = model.get(key);
+		return rids == null ? new ArrayList<RID>() : rids;
+	}
+
+	/*
+	 * Do two lists hold the same rids, in any order?
+	 */
+	private static boolean same(List<RID> found, List<RID> expected) {
+		return describe(found).equals(describe(expected));
+	}
+
+	private static List<String> describe(List<RID> rids) {
+		List<String> described = new ArrayList<String>();
+		for (RID rid : rids)
+			described.add(rid.pageNo.pid + " " + rid.slotNo);
+		Collections.sort(described);
+		return described;
+	}
+
+	private static KeyClass key(int keyType, int key) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(key);
+		return new StringKey(String.format("%08d", key));
+	}
+}
+
+public class BTLookupTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new LookupDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,186 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import btree.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * A disk manager that remembers which thread read which page.
+ */
+class ReadCountingDB extends DB {
+
+	private final Map<String, Set<Integer>> reads = new HashMap<String, Set<Integer>>();
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		super.read_page(pageno, apage);
+		String thread = Thread.currentThread().getName();
+		synchronized (reads) {
+			Set<Integer> pages = reads.get(thread);
+			if (pages == null)
+				reads.put(thread, pages = new HashSet<Integer>());
+			pages.add(pageno.pid);
+		}
+	}
+
+	/*
+	 * The pages a thread read since the last clear().
+	 */
+	Set<Integer> readBy(String thread) {
+		synchronized (reads) {
+			Set<Integer> pages = reads.get(thread);
+			return pages == null ? new HashSet<Integer>()
+					: new HashSet<Integer>(pages);
+		}
+	}
+
+	void clear() {
+		synchronized (reads) {
+			reads.clear();
+		}
+	}
+}
+
+/**
+ * Tests of the read-ahead of long scans (see BTreeFile.new_scan) with a
+ * ConcurrentBufMgr: the leaves in front of a scan of a cold pool are read
+ * into the pool by the read-ahead thread, and only leaves of the index are.
+ */
+class ReadAheadDriver extends IndexDriver {
+
+	private final static int N = 20000;
+	private final static int POOL = 100;
+	private final static String READER = "btree leaf read-ahead";
+
+	private ReadCountingDB db;
+
+	ReadAheadDriver() {
+		super("btreadaheadtest");
+	}
+
+	protected String testName() {
+		return "B+ tree leaf read-ahead";
+	}
+
+	protected boolean runAllTests() {
+		try {
+			new SystemDefs(dbpath, 30000, POOL, "Clock");
+			ConcurrentBufMgr.install(POOL);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return super.runAllTests();
+	}
+
+	/**
+	 * Scan an index whose leaves are all on disk.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: scan a cold pool");
+		try {
+			BTreeFile file = new BTreeFile("AHEAD1", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			for (int key : shuffled(N, 1))
+				file.insert(new IntegerKey(key), rid(key));
+			file.close();
+			coldPool();
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < N; key++)
+				keys.add(key);
+			file = new BTreeFile("AHEAD1");
+			db.clear();
+			boolean ok = check(file, "AHEAD1", keys) && checkReads("AHEAD1");
+			file.destroyFile();
+			return checkPins("after the scan") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Scan an index while a log keeps the pages split since the last
+	 * checkpoint from the disk, so their links on disk are stale.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: scan leaves split after a checkpoint");
+		try {
+			coldPool();
+			BTLog.install(logpath);
+			BTreeFile file = new BTreeFile("AHEAD2", AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+			for (int key : shuffled(N, 2))
+				if (key % 2 == 0)
+					file.insert(new IntegerKey(key), rid(key));
+			BTLog.checkpoint();
+			// splits all over the index
+			for (int key : shuffled(N, 3))
+				if (key % 2 == 1 && key % 10 < 5)
+					file.insert(new IntegerKey(key), rid(key));
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int key = 0; key < N; key++)
+				if (key % 2 == 0 || key % 10 < 5)
+					keys.add(key);
+			db.clear();
+			boolean ok = check(file, "AHEAD2", keys) && checkReads("AHEAD2");
+			file.destroyFile();
+			BTLog.close();
+			return checkPins("after the scan") && ok;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Write the pool out and start with an empty one, on a disk manager that
+	 * counts the reads.
+	 */
+	private void coldPool() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		DB old = SystemDefs.JavabaseDB;
+		String name = old.db_name();
+		old.closeDB();
+		db = new ReadCountingDB();
+		SystemDefs.JavabaseDB = db;
+		db.openDB(name);
+		ConcurrentBufMgr.install(POOL);
+	}
+
+	/*
+	 * Check that the read-ahead thread read leaves of the index, and only
+	 * those.
+	 */
+	private boolean checkReads(String name) throws Exception {
+		// let a read-ahead that is still going finish
+		Thread.sleep(200);
+		Set<Integer> ahead = db.readBy(READER);
+		Set<Integer> scanned = db.readBy(Thread.currentThread().getName());
+		Set<Integer> leaves = new HashSet<Integer>();
+		leaves(rootOf(name), leaves);
+		System.out.println("    " + leaves.size() + " leaves, "
+				+ ahead.size() + " read ahead, " + scanned.size()
+				+ " pages read by the scan");
+		if (ahead.isEmpty())
+			return fail("no leaf was read ahead");
+		ahead.removeAll(leaves);
+		if (!ahead.isEmpty())
+			return fail(ahead.size() + " pages read ahead are no leaves");
+		return true;
+	}
+}
+
+public class BTReadAheadTest {
+
+	public static void main(String[] argvs) {
+		boolean ok = new ReadAheadDriver().runTests();
+		Runtime.getRuntime().exit(ok ? 0 : 1);
+	}
+}
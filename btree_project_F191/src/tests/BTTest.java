@@ -102,10 +102,14 @@ class BTDriver implements GlobalConst {
 		System.out
 				.println("\n           ---Integer Key (for choices [3]-[5]) ---");
 		System.out.println("\n[3]   Insert a Record");
-		System.out.println("[4]   Delete a Record (Naive Delete)");
-		System.out.println("[5]   Delete some records (Naive Delete)");
+		boolean full = deleteFashion == DeleteFashion.FULL_DELETE;
+		String fashion = full ? "Full Delete" : "Naive Delete";
+		System.out.println("[4]   Delete a Record (" + fashion + ")");
+		System.out.println("[5]   Delete some records (" + fashion + ")");
 
 		System.out.println("\n[6]  Quit!");
+		System.out.println("[7]   Start a new file with "
+				+ (full ? "Naive Delete" : "Full Delete"));
 		System.out.print("Hi, make your choice :");
 	}
 
@@ -236,6 +240,20 @@ class BTDriver implements GlobalConst {
 
 				case 6:
 					break;
+
+				case 7:
+					// the delete fashion of a file is fixed when it is created
+					file.close();
+					if (deleteFashion == DeleteFashion.FULL_DELETE)
+						deleteFashion = DeleteFashion.NAIVE_DELETE;
+					else
+						deleteFashion = DeleteFashion.FULL_DELETE;
+					postfix++;
+					System.out.println(" ***************** The file name is: "
+							+ "AAA" + postfix + "  **********");
+					file = new BTreeFile("AAA" + postfix, keyType, 4,
+							deleteFashion);
+					break;
 				}
 
 			} catch (Exception e) {
@@ -0,0 +1,171 @@
+package tests;
+
+import java.util.*;
+
+import btree.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * Base class of the drivers that test a BTreeFile: the keys and rids they
+ * insert, and the checks of what an index holds afterwards.
+ */
+abstract class IndexDriver extends TestDriver implements GlobalConst {
+
+	protected IndexDriver(String nameRoot) {
+		super(nameRoot);
+	}
+
+	/*
+	 * Check the keys a scan of an index returns, and that each of them has
+	 * the rid of its key. String keys are compared as the integers they
+	 * hold.
+	 */
+	protected boolean check(BTreeFile file, String name, List<Integer> keys)
+			throws Exception {
+		List<Integer> scanned = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				int key = intKey(entry.key);
+				if (!((LeafData) entry.data).getData().equals(rid(key)))
+					return fail(name + ": key " + key + " has another rid");
+				scanned.add(key);
+			}
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		System.out.println("    " + name + ": " + scanned.size()
+				+ " entries, " + keys.size() + " expected");
+		if (!scanned.equals(keys))
+			return fail(name + " does not hold the expected keys");
+		return true;
+	}
+
+	/*
+	 * Check the entries a scan of an index returns, keys and rids.
+	 */
+	protected boolean checkEntries(BTreeFile file, String name,
+			List<KeyDataEntry> entries) throws Exception {
+		int n = 0;
+		BTFileScan scan = file.new_scan(null, null);
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				if (n < entries.size()) {
+					KeyDataEntry expected = entries.get(n);
+					if (BT.keyCompare(entry.key, expected.key) != 0
+							|| !((LeafData) entry.data).getData().equals(
+									((LeafData) expected.data).getData()))
+						return fail(name + ": entry " + n + " is " + entry.key
+								+ " " + entry.data + ", expected "
+								+ expected.key + " " + expected.data);
+				}
+				n++;
+			}
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		System.out.println("    " + name + ": " + n + " entries, "
+				+ entries.size() + " expected");
+		if (n != entries.size())
+			return fail(name + " does not hold the expected entries");
+		return true;
+	}
+
+	/*
+	 * Check that no page is left pinned.
+	 */
+	protected static boolean checkPins(String when) {
+		int pinned = SystemDefs.JavabaseBM.getNumBuffers()
+				- SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		if (pinned != 0)
+			return fail(pinned + " pages are pinned " + when);
+		return true;
+	}
+
+	/*
+	 * The root of an index: the header page keeps it as its next page.
+	 */
+	protected static PageId rootOf(String name) throws Exception {
+		PageId header = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(header, page, false);
+		PageId root = new HFPage(page).getNextPage();
+		SystemDefs.JavabaseBM.unpinPage(header, false);
+		return root;
+	}
+
+	/*
+	 * Collect the leaves below `pid' from left to right. Returns the number
+	 * of levels.
+	 */
+	protected static int leaves(PageId pid, Collection<Integer> leaves)
+			throws Exception {
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pid, page, false);
+		try {
+			HFPage node = new HFPage(page);
+			if (node.getType() == NodeType.LEAF) {
+				leaves.add(pid.pid);
+				return 1;
+			}
+			int levels = leaves(node.getPrevPage(), leaves);
+			for (int slot = 0; slot < node.getSlotCnt(); slot++) {
+				// an index entry ends with the page id of its child
+				int end = node.getSlotOffset(slot) + node.getSlotLength(slot);
+				leaves(new PageId(Convert.getIntValue(end - 4, page.getpage())),
+						leaves);
+			}
+			return levels + 1;
+		} finally {
+			SystemDefs.JavabaseBM.unpinPage(pid, false);
+		}
+	}
+
+	/*
+	 * The first page of the first run of free pages that could take a
+	 * large index. Pages that an index leaves allocated move it.
+	 */
+	protected static int firstFree() throws Exception {
+		PageId pageno = new PageId();
+		SystemDefs.JavabaseDB.allocate_page(pageno, 1000);
+		SystemDefs.JavabaseDB.deallocate_page(pageno, 1000);
+		return pageno.pid;
+	}
+
+	protected static int intKey(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey();
+		return Integer.parseInt(((StringKey) key).getKey());
+	}
+
+	/*
+	 * The keys from 0 up to n in a shuffled order.
+	 */
+	protected static List<Integer> shuffled(int n, long seed) {
+		return shuffled(0, n, seed);
+	}
+
+	/*
+	 * The keys from `from' up to `to' in a shuffled order.
+	 */
+	protected static List<Integer> shuffled(int from, int to, long seed) {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = from; i < to; i++)
+			keys.add(i);
+		Collections.shuffle(keys, new Random(seed));
+		return keys;
+	}
+
+	protected static RID rid(int i) {
+		return new RID(new PageId(i), i);
+	}
+
+	protected static boolean fail(String message) {
+		System.out.println("    *** " + message);
+		return false;
+	}
+}